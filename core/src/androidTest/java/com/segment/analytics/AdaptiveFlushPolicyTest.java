@@ -0,0 +1,78 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.segment.analytics;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.segment.analytics.FlushPolicy.Connection;
+import static com.segment.analytics.FlushPolicy.Decision;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) @Config(emulateSdk = 18, manifest = Config.NONE)
+public class AdaptiveFlushPolicyTest {
+  final AdaptiveFlushPolicy policy = new AdaptiveFlushPolicy();
+
+  static FlushPolicy.Conditions conditions(Connection connection, int batteryLevel,
+      long throughput) {
+    return new FlushPolicy.Conditions(connection, batteryLevel, false, throughput);
+  }
+
+  @Test public void uploadsOnWifiAndHoldsWithoutNetwork() {
+    Decision decision = policy.decide(conditions(Connection.WIFI, 5, 1000), false);
+    assertThat(decision.upload).isTrue();
+    assertThat(decision.delayMillis).isEqualTo(0);
+    assertThat(decision.maxRequestSize).isEqualTo(Integer.MAX_VALUE);
+
+    assertThat(policy.decide(conditions(Connection.NONE, 100, -1), true)).isSameAs(Decision.HOLD);
+    assertThat(policy.decide(conditions(Connection.ROAMING, 100, -1), false))
+        .isSameAs(Decision.HOLD);
+    assertThat(policy.decide(conditions(Connection.ROAMING, 100, -1), true).upload).isTrue();
+  }
+
+  @Test public void defersOnSlowNetworkAndLowBatteryUnlessForced() {
+    Decision decision = policy.decide(conditions(Connection.SLOW_CELLULAR, 100, -1), false);
+    assertThat(decision.upload).isTrue();
+    assertThat(decision.delayMillis).isEqualTo(AdaptiveFlushPolicy.SLOW_CELLULAR_DELAY_MILLIS);
+    assertThat(decision.maxRequestSize).isEqualTo(AdaptiveFlushPolicy.SLOW_CELLULAR_REQUEST_SIZE);
+
+    decision = policy.decide(conditions(Connection.CELLULAR, 10, -1), false);
+    assertThat(decision.delayMillis).isEqualTo(AdaptiveFlushPolicy.LOW_BATTERY_DELAY_MILLIS);
+    assertThat(policy.decide(conditions(Connection.CELLULAR, 10, -1), true).delayMillis)
+        .isEqualTo(0);
+    assertThat(policy.decide(new FlushPolicy.Conditions(Connection.CELLULAR, 10, true, -1), false)
+        .delayMillis).isEqualTo(0);
+  }
+
+  @Test public void sizesRequestsByThroughput() {
+    assertThat(policy.decide(conditions(Connection.CELLULAR, 100, 8000), false).maxRequestSize)
+        .isEqualTo(80000);
+    assertThat(policy.decide(conditions(Connection.CELLULAR, 100, 100), false).maxRequestSize)
+        .isEqualTo(AdaptiveFlushPolicy.MIN_REQUEST_SIZE);
+  }
+}
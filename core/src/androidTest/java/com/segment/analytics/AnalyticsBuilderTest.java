@@ -26,6 +26,7 @@ package com.segment.analytics;
 
 import android.content.Context;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -134,6 +135,74 @@ public class AnalyticsBuilderTest {
     }
   }
 
+  @Test public void invalidRequestSizeThrowsException() throws Exception {
+    try {
+      new Analytics.Builder(context, stubbedKey).maxRequestSize(0);
+      fail("maxRequestSize = 0 should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("maxRequestSize must be greater than zero.");
+    }
+
+    Analytics.Builder builder = new Analytics.Builder(context, stubbedKey).maxRequestSize(1024);
+    try {
+      builder.maxRequestSize(2048);
+      fail("setting maxRequestSize again should throw exception.");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("maxRequestSize is already set.");
+    }
+  }
+
+  @Test public void invalidQueueBytesThrowsException() throws Exception {
+    try {
+      new Analytics.Builder(context, stubbedKey).maxQueueBytes(0,
+          Analytics.QueueOverflow.DROP_OLDEST);
+      fail("maxQueueBytes = 0 should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("maxQueueBytes must be greater than zero.");
+    }
+
+    try {
+      new Analytics.Builder(context, stubbedKey).maxQueueBytes(1024, null);
+      fail("null queueOverflow should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("queueOverflow must not be null.");
+    }
+
+    Analytics.Builder builder = new Analytics.Builder(context, stubbedKey).maxQueueBytes(1024,
+        Analytics.QueueOverflow.DROP_OLDEST);
+    try {
+      builder.maxQueueBytes(2048, Analytics.QueueOverflow.DROP_NEWEST);
+      fail("setting maxQueueBytes again should throw exception.");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("maxQueueBytes is already set.");
+    }
+  }
+
+  @Test public void invalidDurabilityThrowsException() throws Exception {
+    try {
+      new Analytics.Builder(context, stubbedKey).durability(null);
+      fail("null durability should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("durability must not be null.");
+    }
+
+    try {
+      Durability.groupCommit(0, 10);
+      fail("maxDelayMillis = 0 should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("maxDelayMillis must be greater than zero.");
+    }
+
+    Analytics.Builder builder =
+        new Analytics.Builder(context, stubbedKey).durability(Durability.async());
+    try {
+      builder.durability(Durability.sync());
+      fail("setting durability again should throw exception.");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("durability is already set.");
+    }
+  }
+
   @Test public void invalidOptionsThrowsException() throws Exception {
     try {
       new Analytics.Builder(context, stubbedKey).defaultOptions(null);
@@ -188,4 +257,142 @@ public class AnalyticsBuilderTest {
       assertThat(expected).hasMessage("tag is already set.");
     }
   }
+
+  @Test public void invalidEnqueueBufferThrowsException() throws Exception {
+    try {
+      new Analytics.Builder(context, stubbedKey).enqueueBuffer(0,
+          Analytics.BufferOverflow.BLOCK);
+      fail("bufferCapacity = 0 should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("bufferCapacity must be greater than zero.");
+    }
+
+    try {
+      new Analytics.Builder(context, stubbedKey).enqueueBuffer(16, null);
+      fail("null bufferOverflow should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("bufferOverflow must not be null.");
+    }
+
+    Analytics.Builder builder = new Analytics.Builder(context, stubbedKey).enqueueBuffer(16,
+        Analytics.BufferOverflow.DROP_NEWEST);
+    try {
+      builder.enqueueBuffer(32, Analytics.BufferOverflow.SPILL);
+      fail("setting enqueueBuffer twice should throw exception.");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("enqueueBuffer is already set.");
+    }
+  }
+
+  @Test public void invalidClientThrowsException() throws Exception {
+    try {
+      new Analytics.Builder(context, stubbedKey).client(null);
+      fail("null client should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("client must not be null.");
+    }
+
+    Analytics.Builder builder =
+        new Analytics.Builder(context, stubbedKey).client(new UrlConnectionClient());
+    try {
+      builder.client(new UrlConnectionClient());
+      fail("setting client twice should throw exception.");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("client is already set.");
+    }
+  }
+
+  @Test public void invalidFlushIntervalThrowsException() throws Exception {
+    try {
+      new Analytics.Builder(context, stubbedKey).flushInterval(0, TimeUnit.SECONDS);
+      fail("flushInterval = 0 should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("flushInterval must be greater than zero.");
+    }
+
+    try {
+      new Analytics.Builder(context, stubbedKey).flushInterval(30, null);
+      fail("null timeUnit should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("timeUnit must not be null.");
+    }
+
+    Analytics.Builder builder =
+        new Analytics.Builder(context, stubbedKey).flushInterval(30, TimeUnit.SECONDS);
+    try {
+      builder.flushInterval(1, TimeUnit.MINUTES);
+      fail("setting flushInterval twice should throw exception.");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("flushInterval is already set.");
+    }
+  }
+  @Test public void invalidFlushPolicyThrowsException() throws Exception {
+    try {
+      new Analytics.Builder(context, stubbedKey).flushPolicy(null);
+      fail("null flushPolicy should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("flushPolicy must not be null.");
+    }
+
+    Analytics.Builder builder =
+        new Analytics.Builder(context, stubbedKey).flushPolicy(new AdaptiveFlushPolicy());
+    try {
+      builder.flushPolicy(new AdaptiveFlushPolicy());
+      fail("setting flushPolicy twice should throw exception.");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("flushPolicy is already set.");
+    }
+  }
+
+
+  @Test public void invalidMaxDeadLettersThrowsException() throws Exception {
+    try {
+      new Analytics.Builder(context, stubbedKey).maxDeadLetters(0);
+      fail("maxDeadLetters = 0 should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("maxDeadLetters must be greater than zero.");
+    }
+
+    Analytics.Builder builder = new Analytics.Builder(context, stubbedKey).maxDeadLetters(10);
+    try {
+      builder.maxDeadLetters(20);
+      fail("setting maxDeadLetters twice should throw exception.");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("maxDeadLetters is already set.");
+    }
+  }
+
+  @Test public void invalidCompressionLevelThrowsException() throws Exception {
+    try {
+      new Analytics.Builder(context, stubbedKey).compressionLevel(10);
+      fail("compressionLevel = 10 should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("compressionLevel must be between 0 and 9.");
+    }
+
+    Analytics.Builder builder = new Analytics.Builder(context, stubbedKey).compressionLevel(6);
+    try {
+      builder.compressionLevel(1);
+      fail("setting compressionLevel twice should throw exception.");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("compressionLevel is already set.");
+    }
+  }
+
+  @Test public void invalidMessageIdGeneratorThrowsException() throws Exception {
+    try {
+      new Analytics.Builder(context, stubbedKey).messageIdGenerator(null);
+      fail("null messageIdGenerator should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("messageIdGenerator must not be null.");
+    }
+
+    try {
+      new Analytics.Builder(context, stubbedKey).messageIdGenerator(new TimeOrderedIdGenerator())
+          .messageIdGenerator(new TimeOrderedIdGenerator());
+      fail("setting messageIdGenerator twice should throw exception.");
+    } catch (IllegalStateException expected) {
+      assertThat(expected).hasMessage("messageIdGenerator is already set.");
+    }
+  }
 }
@@ -1,15 +1,25 @@
 package com.segment.analytics;
 
+import android.app.Activity;
 import android.app.Application;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import static com.segment.analytics.TestUtils.mockApplication;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.Mock;
@@ -18,6 +28,7 @@ import static org.mockito.MockitoAnnotations.initMocks;
 @RunWith(RobolectricTestRunner.class) @Config(emulateSdk = 18, manifest = Config.NONE)
 public class AnalyticsTest {
   Application application;
+  @Mock ConnectivityMonitor connectivityMonitor;
   @Mock Dispatcher dispatcher;
   @Mock IntegrationManager integrationManager;
   @Mock Stats stats;
@@ -32,12 +43,101 @@ public class AnalyticsTest {
     application = mockApplication();
     Traits traits = new Traits();
     when(traitsCache.get()).thenReturn(traits);
-    analytics = new Analytics(application, dispatcher, integrationManager, stats, traitsCache,
-        analyticsContext, defaultOptions, true);
+    analytics = createAnalytics(Analytics.Builder.DEFAULT_BUFFER_CAPACITY,
+        Analytics.Builder.DEFAULT_BUFFER_OVERFLOW);
   }
 
-  @Test public void logoutClearsTraitsAndUpdatesContext() {
+  Analytics createAnalytics(int bufferCapacity, Analytics.BufferOverflow bufferOverflow) {
+    return new Analytics(application, connectivityMonitor, dispatcher, integrationManager, stats,
+        traitsCache, analyticsContext, defaultOptions, new TimeOrderedIdGenerator(), bufferCapacity,
+        bufferOverflow, true);
+  }
+
+  @Test public void burstOfCallsIsHandedOffWithoutMessagePerCall() throws Exception {
+    // Keep the analytics thread busy, so that the calls pile up in the buffer.
+    final CountDownLatch running = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    analytics.handler.post(new Runnable() {
+      @Override public void run() {
+        running.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    });
+    running.await();
+
+    analytics.track("foo");
+    analytics.screen(null, "bar");
     analytics.logout();
+    analytics.track("qaz");
+    // A single message wakes the analytics thread up for the whole burst.
+    assertThat(analytics.handler.hasMessages(Analytics.REQUEST_DRAIN)).isTrue();
+    assertThat(analytics.handler.hasMessages(Analytics.REQUEST_ENQUEUE)).isFalse();
+    release.countDown();
+
+    ArgumentCaptor<List> payloads = ArgumentCaptor.forClass(List.class);
+    verify(dispatcher, timeout(1000)).dispatchEnqueue(payloads.capture());
+    assertThat(payloads.getValue()).hasSize(3);
+    verify(traitsCache).delete(application);
+  }
+
+  @Test public void callIsDroppedWhenBufferIsFull() {
+    analytics = createAnalytics(2, Analytics.BufferOverflow.DROP_NEWEST);
+    Analytics.PendingPayload pendingPayload = new Analytics.PendingPayload(
+        BasePayload.Type.track, null, "qaz", null, null, new Properties(), new Options());
+    assertThat(analytics.enqueueBuffer.offer(pendingPayload)).isTrue();
+    assertThat(analytics.enqueueBuffer.offer(pendingPayload)).isTrue();
+    analytics.dispatchEnqueue(pendingPayload);
+    verify(stats).dispatchDrop(1);
+
+    analytics.performDrain();
+    ArgumentCaptor<List> payloads = ArgumentCaptor.forClass(List.class);
+    verify(dispatcher).dispatchEnqueue(payloads.capture());
+    assertThat(payloads.getValue()).hasSize(2);
+    assertThat(analytics.enqueueBuffer.poll()).isNull();
+  }
+
+  @Test public void flushesWhenLastActivityStops() {
+    ArgumentCaptor<Application.ActivityLifecycleCallbacks> callbacks =
+        ArgumentCaptor.forClass(Application.ActivityLifecycleCallbacks.class);
+    verify(application).registerActivityLifecycleCallbacks(callbacks.capture());
+    Activity first = mock(Activity.class);
+    Activity second = mock(Activity.class);
+
+    callbacks.getValue().onActivityStarted(first);
+    callbacks.getValue().onActivityStarted(second);
+    callbacks.getValue().onActivityStopped(first);
+    verify(dispatcher, never()).dispatchFlush(false);
+    callbacks.getValue().onActivityStopped(second);
+    verify(dispatcher).dispatchFlush(false);
+  }
+
+  @Test public void doesNotFlushWhenActivityIsRecreated() {
+    ArgumentCaptor<Application.ActivityLifecycleCallbacks> callbacks =
+        ArgumentCaptor.forClass(Application.ActivityLifecycleCallbacks.class);
+    verify(application).registerActivityLifecycleCallbacks(callbacks.capture());
+    Activity activity = mock(Activity.class);
+    when(activity.isChangingConfigurations()).thenReturn(true);
+
+    callbacks.getValue().onActivityStarted(activity);
+    callbacks.getValue().onActivityStopped(activity);
+    verify(dispatcher, never()).dispatchFlush(false);
+  }
+
+  @Test public void networkChangeUpdatesContext() {
+    ArgumentCaptor<ConnectivityMonitor.Listener> listener =
+        ArgumentCaptor.forClass(ConnectivityMonitor.Listener.class);
+    verify(connectivityMonitor).addListener(listener.capture());
+
+    listener.getValue().onConnectivityChanged(FlushPolicy.Connection.WIFI, true);
+    verify(analyticsContext, timeout(1000)).putNetwork(application);
+  }
+
+  @Test public void logoutClearsTraitsAndUpdatesContext() {
+    analytics.performLogout();
     verify(traitsCache).delete(application);
     verify(analyticsContext).putTraits(traitsCache.get());
   }
@@ -55,25 +155,55 @@ public class AnalyticsTest {
     }
   }
 
+  @Test public void pendingTrackIsBuiltIntoPayload() {
+    traitsCache.get().putUserId("bar");
+    Properties properties = new Properties().putValue("revenue", 10);
+    Analytics.PendingPayload pendingPayload = new Analytics.PendingPayload(
+        BasePayload.Type.track, null, "qaz", null, null, properties, new Options());
+    analytics.performEnqueue(pendingPayload);
+
+    ArgumentCaptor<BasePayload> payload = ArgumentCaptor.forClass(BasePayload.class);
+    verify(integrationManager).submit(payload.capture());
+    verify(dispatcher).dispatchEnqueue(Collections.singletonList(payload.getValue()));
+    assertThat(payload.getValue()).isInstanceOf(TrackPayload.class);
+    assertThat(payload.getValue().getString("event")).isEqualTo("qaz");
+    assertThat(payload.getValue().getString("userId")).isEqualTo("bar");
+    assertThat(payload.getValue().get("properties")).isSameAs(properties);
+    assertThat(payload.getValue().getString("timestamp")).isEqualTo(
+        Utils.toISO8601Date(pendingPayload.timestamp));
+  }
+
+  @Test public void pendingIdentifyUpdatesTraits() {
+    Traits traits = new Traits().putEmail("foo@bar.com");
+    analytics.performEnqueue(new Analytics.PendingPayload(BasePayload.Type.identify, "bar", null,
+        null, traits, null, new Options()));
+
+    verify(traitsCache).save();
+    assertThat(traitsCache.get().userId()).isEqualTo("bar");
+    assertThat(traitsCache.get().email()).isEqualTo("foo@bar.com");
+    verify(integrationManager).submit(any(IdentifyPayload.class));
+    verify(dispatcher).dispatchEnqueue(anyListOf(BasePayload.class));
+  }
+
   @Test public void submitInvokesDispatches() {
     BasePayload payload = mock(BasePayload.class);
     analytics.submit(payload);
-    verify(dispatcher).dispatchEnqueue(payload);
+    verify(dispatcher).dispatchEnqueue(Collections.singletonList(payload));
     verify(integrationManager).submit(payload);
   }
 
   @Test public void flushInvokesFlushes() throws Exception {
     analytics.flush();
     verify(integrationManager).flush();
-    verify(dispatcher).dispatchFlush();
+    verify(dispatcher).dispatchFlush(true);
   }
 
   @Test public void shutdown() {
     assertThat(analytics.shutdown).isFalse();
     analytics.shutdown();
-    verify(integrationManager).shutdown();
-    verify(stats).shutdown();
-    verify(dispatcher).shutdown();
+    verify(integrationManager, timeout(1000)).shutdown();
+    verify(stats, timeout(1000)).shutdown();
+    verify(dispatcher, timeout(1000)).shutdown();
     assertThat(analytics.shutdown).isTrue();
   }
 
@@ -81,12 +211,38 @@ public class AnalyticsTest {
     assertThat(analytics.shutdown).isFalse();
     analytics.shutdown();
     analytics.shutdown();
-    verify(integrationManager).shutdown();
-    verify(stats).shutdown();
-    verify(dispatcher).shutdown();
+    verify(integrationManager, timeout(1000)).shutdown();
+    verify(stats, timeout(1000)).shutdown();
+    verify(dispatcher, timeout(1000)).shutdown();
     assertThat(analytics.shutdown).isTrue();
   }
 
+  @Test public void shutdownHandsOffPendingCalls() {
+    Analytics.PendingPayload pendingPayload = new Analytics.PendingPayload(
+        BasePayload.Type.track, null, "qaz", null, null, new Properties(), new Options());
+    assertThat(analytics.enqueueBuffer.offer(pendingPayload)).isTrue();
+    analytics.shutdown();
+
+    ArgumentCaptor<List> payloads = ArgumentCaptor.forClass(List.class);
+    verify(dispatcher, timeout(1000)).shutdown();
+    verify(dispatcher).dispatchEnqueue(payloads.capture());
+    assertThat(payloads.getValue()).hasSize(1);
+  }
+
+  @Test public void blockedCallGivesUpAfterShutdown() {
+    analytics = createAnalytics(2, Analytics.BufferOverflow.BLOCK);
+    Analytics.PendingPayload pendingPayload = new Analytics.PendingPayload(
+        BasePayload.Type.track, null, "qaz", null, null, new Properties(), new Options());
+    assertThat(analytics.enqueueBuffer.offer(pendingPayload)).isTrue();
+    assertThat(analytics.enqueueBuffer.offer(pendingPayload)).isTrue();
+    // Nothing drains the buffer once the analytics thread has been quit.
+    analytics.shutdown = true;
+
+    analytics.dispatchEnqueue(pendingPayload);
+    analytics.logout();
+    verify(stats, times(2)).dispatchDrop(1);
+  }
+
   /*
   @Test public void shutdownDisallowedOnSingletonInstance() throws Exception {
     try {
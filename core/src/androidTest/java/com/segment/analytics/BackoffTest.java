@@ -0,0 +1,78 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class) @Config(emulateSdk = 18, manifest = Config.NONE)
+public class BackoffTest {
+  @Test public void intervalDoublesUpToMaximum() {
+    StringCache stringCache = mock(StringCache.class);
+    Backoff backoff = new Backoff(stringCache, new Random(0));
+    long delay = backoff.fail(1000, -1);
+    assertThat(delay).isLessThanOrEqualTo(Backoff.INITIAL_INTERVAL_MILLIS);
+    verify(stringCache).set("1:" + (1000 + delay));
+
+    long interval = Backoff.INITIAL_INTERVAL_MILLIS;
+    for (int i = 1; i < 20; i++) {
+      interval = Math.min(interval * 2, Backoff.MAX_INTERVAL_MILLIS);
+      delay = backoff.fail(1000, -1);
+      assertThat(delay).isGreaterThanOrEqualTo(0).isLessThanOrEqualTo(interval);
+      assertThat(backoff.remaining(1000)).isEqualTo(delay);
+    }
+    assertThat(backoff.attempts()).isEqualTo(20);
+
+    // The server can ask for a longer wait.
+    assertThat(backoff.fail(1000, Backoff.MAX_INTERVAL_MILLIS)).isEqualTo(
+        Backoff.MAX_INTERVAL_MILLIS);
+
+    backoff.reset();
+    assertThat(backoff.attempts()).isEqualTo(0);
+    assertThat(backoff.remaining(1000)).isEqualTo(0);
+    verify(stringCache).delete();
+  }
+
+  @Test public void stateIsRestored() {
+    StringCache stringCache = mock(StringCache.class);
+    when(stringCache.get()).thenReturn("3:5000");
+    Backoff backoff = new Backoff(stringCache, new Random(0));
+    assertThat(backoff.attempts()).isEqualTo(3);
+    assertThat(backoff.remaining(2000)).isEqualTo(3000);
+
+    when(stringCache.get()).thenReturn("garbage");
+    backoff = new Backoff(stringCache, new Random(0));
+    assertThat(backoff.attempts()).isEqualTo(0);
+    assertThat(backoff.remaining(2000)).isEqualTo(0);
+  }
+}
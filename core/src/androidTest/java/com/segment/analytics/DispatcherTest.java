@@ -1,21 +1,45 @@
 package com.segment.analytics;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import static android.Manifest.permission.ACCESS_NETWORK_STATE;
 import static android.content.pm.PackageManager.PERMISSION_DENIED;
 import static com.segment.analytics.TestUtils.mockApplication;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.Mock;
@@ -26,20 +50,58 @@ public class DispatcherTest {
   @Mock SegmentHTTPApi segmentHTTPApi;
   @Mock Stats stats;
   Context context;
+  ConnectivityMonitor connectivityMonitor;
   ObjectQueue<BasePayload> queue;
+  Backoff backoff;
+  File deadLettersFile;
+  long flushInterval = 60000;
+  FlushPolicy flushPolicy = new AdaptiveFlushPolicy();
   Dispatcher dispatcher;
+  ByteArrayOutputStream body;
 
-  @Before public void setUp() {
+  @Before public void setUp() throws IOException {
     initMocks(this);
+    body = new ByteArrayOutputStream();
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) throws Throwable {
+        ((SegmentHTTPApi.StreamWriter) invocation.getArguments()[0]).writeTo(body);
+        return null;
+      }
+    }).when(segmentHTTPApi).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
     context = mockApplication();
     when(context.checkCallingOrSelfPermission(ACCESS_NETWORK_STATE)).thenReturn(PERMISSION_DENIED);
+    connectivityMonitor = new ConnectivityMonitor(context);
     queue = new InMemoryObjectQueue<BasePayload>();
+    backoff = new Backoff(mock(StringCache.class), new Random(0));
     dispatcher = createDispatcher(20);
   }
 
   Dispatcher createDispatcher(int maxQueueSize) {
-    return new Dispatcher(context, maxQueueSize, segmentHTTPApi, queue,
-        Collections.<String, Boolean>emptyMap(), stats, true);
+    return createDispatcher(maxQueueSize, Analytics.Builder.DEFAULT_MAX_REQUEST_SIZE);
+  }
+
+  Dispatcher createDispatcher(int maxQueueSize, int maxRequestSize) {
+    return createDispatcher(maxQueueSize, maxRequestSize,
+        Analytics.Builder.DEFAULT_MAX_QUEUE_BYTES, Analytics.Builder.DEFAULT_QUEUE_OVERFLOW);
+  }
+
+  Dispatcher createDispatcher(int maxQueueSize, int maxRequestSize, int maxQueueBytes,
+      Analytics.QueueOverflow queueOverflow) {
+    return new Dispatcher(context, connectivityMonitor, maxQueueSize, flushInterval, flushPolicy,
+        maxRequestSize, maxQueueBytes, queueOverflow, Durability.sync(), segmentHTTPApi, queue,
+        null, backoff, deadLettersFile, 10, Collections.<String, Boolean>emptyMap(), stats, true);
+  }
+
+  @Test public void enqueuesBurstAndMeasuresLatency() {
+    dispatcher = createDispatcher(20);
+    BasePayload first = mock(BasePayload.class);
+    BasePayload second = mock(BasePayload.class);
+    first.enqueuedAt = System.nanoTime();
+    second.enqueuedAt = System.nanoTime();
+    dispatcher.performEnqueue(Arrays.asList(first, second, mock(BasePayload.class)));
+    assertThat(queue.size()).isEqualTo(3);
+    // Only the payloads that were timed are measured.
+    verify(stats).dispatchEnqueue(eq(2), anyLong(), anyLong());
   }
 
   @Test public void addsToQueueCorrectly() {
@@ -60,7 +122,7 @@ public class DispatcherTest {
 
     dispatcher.performFlush();
     try {
-      verify(segmentHTTPApi).upload(Matchers.<Dispatcher.BatchPayload>any());
+      verify(segmentHTTPApi).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
     } catch (IOException e) {
       fail("should not throw exception");
     }
@@ -75,12 +137,424 @@ public class DispatcherTest {
     dispatcher.performEnqueue(mock(BasePayload.class));
     dispatcher.performEnqueue(mock(BasePayload.class));
 
+    // The flush happens on the uploader thread.
     try {
-      verify(segmentHTTPApi).upload(Matchers.<Dispatcher.BatchPayload>any());
+      verify(segmentHTTPApi, timeout(1000)).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
     } catch (IOException e) {
       fail("should not throw exception");
     }
-    verify(stats).dispatchFlush(3);
+    verify(stats, timeout(1000)).dispatchFlush(3);
+    long deadline = System.currentTimeMillis() + 1000;
+    while (queue.size() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.yield();
+    }
     assertThat(queue.size()).isEqualTo(0);
   }
+
+  @Test public void enqueuesWhileUploading() throws Exception {
+    final CountDownLatch uploading = new CountDownLatch(1);
+    final CountDownLatch finishUpload = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) throws Throwable {
+        ((SegmentHTTPApi.StreamWriter) invocation.getArguments()[0]).writeTo(body);
+        uploading.countDown();
+        finishUpload.await();
+        return null;
+      }
+    }).when(segmentHTTPApi).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+    dispatcher.performEnqueue(mock(BasePayload.class));
+    dispatcher.performEnqueue(mock(BasePayload.class));
+
+    Thread uploader = new Thread() {
+      @Override public void run() {
+        dispatcher.performFlush();
+      }
+    };
+    uploader.start();
+    assertThat(uploading.await(5, SECONDS)).isTrue();
+    // The request is in flight, which must not keep events from being queued.
+    dispatcher.performEnqueue(mock(BasePayload.class));
+    assertThat(queue.size()).isEqualTo(3);
+
+    finishUpload.countDown();
+    uploader.join(5000);
+    // The event queued during the first request goes out in the next one.
+    verify(stats).dispatchFlush(2);
+    verify(stats).dispatchFlush(1);
+    assertThat(queue.size()).isEqualTo(0);
+  }
+
+  @Test public void rejectedEventIsIsolatedAndDeadLettered() throws IOException {
+    File file = File.createTempFile("dispatcher-test", null);
+    file.delete();
+    deadLettersFile = file;
+    dispatcher = createDispatcher(20);
+    enqueuePoisonedEvents();
+
+    QueueFile deadLetters = null;
+    try {
+      dispatcher.performFlush();
+      // Batches of 8 rejected, 4 uploaded, 4 and 2 rejected, 1 uploaded, 1 rejected, 2 uploaded.
+      verify(segmentHTTPApi, times(7)).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+      verify(stats).dispatchDeadLetter(1);
+      assertThat(queue.size()).isEqualTo(0);
+      assertThat(backoff.attempts()).isEqualTo(0);
+      deadLetters = new QueueFile(file);
+      assertThat(new String(deadLetters.peek(), "UTF-8")).contains("\"event\":\"poison\"");
+      assertThat(deadLetters.size()).isEqualTo(1);
+    } finally {
+      if (deadLetters != null) deadLetters.close();
+      file.delete();
+    }
+  }
+
+  @Test public void rejectedEventIsDiscardedIfDeadLettersCantBeOpened() throws IOException {
+    // A directory can't be opened as a queue file.
+    File directory = File.createTempFile("dispatcher-test", null);
+    directory.delete();
+    directory.mkdirs();
+    deadLettersFile = directory;
+    dispatcher = createDispatcher(20);
+    enqueuePoisonedEvents();
+
+    try {
+      dispatcher.performFlush();
+      verify(segmentHTTPApi, times(7)).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+      verify(stats).dispatchDeadLetter(1);
+      assertThat(queue.size()).isEqualTo(0);
+    } finally {
+      directory.delete();
+    }
+  }
+
+  /** Queues 8 events, of which the server rejects the sixth and any batch that includes it. */
+  private void enqueuePoisonedEvents() throws IOException {
+    AnalyticsContext analyticsContext =
+        new AnalyticsContext(new LinkedHashMap<String, Object>());
+    for (int i = 0; i < 8; i++) {
+      dispatcher.performEnqueue(new TrackPayload(String.valueOf(i), System.currentTimeMillis(),
+          "foo", analyticsContext, "bar", i == 5 ? "poison" : "qaz", new Properties(),
+          new Options()));
+    }
+    // The server rejects any batch with the poisoned event in it.
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) throws Throwable {
+        body.reset();
+        ((SegmentHTTPApi.StreamWriter) invocation.getArguments()[0]).writeTo(body);
+        if (body.toString().contains("poison")) {
+          throw new SegmentHTTPApi.HTTPException("bad request", 400, -1);
+        }
+        return null;
+      }
+    }).when(segmentHTTPApi).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+  }
+
+  @Test public void rejectedThenHalfBatchesAcceptedRestoresBatchSize() throws IOException {
+    dispatcher = createDispatcher(20);
+    for (int i = 0; i < 8; i++) {
+      dispatcher.performEnqueue(mock(BasePayload.class));
+    }
+    // The server rejects the first batch only, so there is no bad event to isolate.
+    doThrow(new SegmentHTTPApi.HTTPException("bad request", 400, -1)).doNothing()
+        .when(segmentHTTPApi).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+
+    dispatcher.performFlush();
+    // Batches of 8 rejected, 4 and 4 uploaded.
+    verify(segmentHTTPApi, times(3)).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+    verify(stats, times(2)).dispatchFlush(4);
+    assertThat(queue.size()).isEqualTo(0);
+
+    for (int i = 0; i < 8; i++) {
+      dispatcher.performEnqueue(mock(BasePayload.class));
+    }
+    dispatcher.performFlush();
+    verify(segmentHTTPApi, times(4)).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+    verify(stats).dispatchFlush(8);
+  }
+
+  @Test public void keepsQueueInMemoryWhenItCantBeStored() throws IOException {
+    File parent = File.createTempFile("dispatcher-test", null);
+    parent.delete();
+    parent.mkdirs();
+    // A file where the segments directory should be can't be opened or deleted as a segment.
+    File segments = new File(parent, "payload-task-segments-test");
+    segments.createNewFile();
+    when(context.getFilesDir()).thenReturn(parent);
+    when(context.getSharedPreferences(anyString(), anyInt()))
+        .thenReturn(mock(SharedPreferences.class));
+    try {
+      dispatcher = Dispatcher.create(context, connectivityMonitor, 20, flushInterval, flushPolicy,
+          Analytics.Builder.DEFAULT_MAX_REQUEST_SIZE, Analytics.Builder.DEFAULT_MAX_QUEUE_BYTES,
+          Analytics.Builder.DEFAULT_QUEUE_OVERFLOW, Durability.sync(), false, 4096, 0,
+          segmentHTTPApi, Collections.<String, Boolean>emptyMap(), "test", stats, true);
+      dispatcher.performEnqueue(mock(BasePayload.class));
+
+      assertThat(dispatcher.queue.size()).isEqualTo(1);
+      assertThat(dispatcher.queue.toString()).startsWith("MemoryObjectQueue");
+    } finally {
+      dispatcher.shutdown();
+      segments.delete();
+      new File(parent, "payload-contexts-test").delete();
+      parent.delete();
+    }
+  }
+
+  @Test public void unreadableEventIsDroppedAfterEventsBeforeIt() throws IOException {
+    // The entry of the event named "unreadable" fails to be read.
+    queue = new InMemoryObjectQueue<BasePayload>() {
+      @Override public void forEach(final QueueFile.ElementVisitor visitor) throws IOException {
+        super.forEach(new QueueFile.ElementVisitor() {
+          @Override public boolean read(InputStream in, int length) throws IOException {
+            byte[] bytes = new byte[length];
+            new DataInputStream(in).readFully(bytes);
+            if (!new String(bytes, "UTF-8").contains("\"unreadable\"")) {
+              return visitor.read(new ByteArrayInputStream(bytes), length);
+            }
+            return visitor.read(new InputStream() {
+              @Override public int read() throws IOException {
+                throw new IOException("corrupt entry");
+              }
+            }, length);
+          }
+        });
+      }
+    };
+    dispatcher = createDispatcher(20);
+    AnalyticsContext analyticsContext =
+        new AnalyticsContext(new LinkedHashMap<String, Object>());
+    for (int i = 0; i < 4; i++) {
+      dispatcher.performEnqueue(new TrackPayload(String.valueOf(i), System.currentTimeMillis(),
+          "foo", analyticsContext, "bar", i == 2 ? "unreadable" : "qaz", new Properties(),
+          new Options()));
+    }
+
+    dispatcher.performFlush();
+    // The two events before it are uploaded, then it's dropped, then the last one is uploaded.
+    verify(segmentHTTPApi, times(2)).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+    verify(stats).dispatchFlush(2);
+    verify(stats).dispatchFlush(1);
+    verify(stats).dispatchQueueRecovery(0, 1);
+    assertThat(queue.size()).isEqualTo(0);
+    assertThat(backoff.attempts()).isEqualTo(0);
+  }
+
+  @Test public void opensQueueOnDispatcherThread() throws InterruptedException {
+    final String[] openedOn = new String[1];
+    final CountDownLatch opened = new CountDownLatch(1);
+    queue = new LazyObjectQueue<BasePayload>(new LazyObjectQueue.Opener<BasePayload>() {
+      @Override public ObjectQueue<BasePayload> open() {
+        openedOn[0] = Thread.currentThread().getName();
+        opened.countDown();
+        return new InMemoryObjectQueue<BasePayload>();
+      }
+    });
+    dispatcher = createDispatcher(20);
+
+    assertThat(opened.await(1, SECONDS)).isTrue();
+    assertThat(openedOn[0]).isEqualTo(Utils.THREAD_PREFIX + "Dispatcher");
+  }
+
+  @Test public void flushesOnceWhenIntervalPasses() throws IOException {
+    flushInterval = 100;
+    dispatcher = createDispatcher(20);
+    dispatcher.performEnqueue(mock(BasePayload.class));
+    dispatcher.performEnqueue(mock(BasePayload.class));
+    dispatcher.performEnqueue(mock(BasePayload.class));
+
+    // A single timer covers all three events.
+    verify(stats, timeout(1000)).dispatchFlush(3);
+    verify(segmentHTTPApi).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+  }
+
+  @Test public void flushPolicyHoldsAndLimitsRequests() throws IOException {
+    final FlushPolicy.Decision[] decision = { FlushPolicy.Decision.HOLD };
+    flushPolicy = new FlushPolicy() {
+      @Override public Decision decide(Conditions conditions, boolean forced) {
+        return decision[0];
+      }
+    };
+    dispatcher = createDispatcher(20);
+    for (int i = 0; i < 3; i++) {
+      dispatcher.performEnqueue(mock(BasePayload.class));
+    }
+
+    dispatcher.performFlush();
+    verify(segmentHTTPApi, never()).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+    verify(stats).dispatchFlushDecision(Stats.DECISION_HOLD);
+    assertThat(queue.size()).isEqualTo(3);
+
+    // Limits requests to two events, as in flushesInBatchesThatFitRequestSize.
+    decision[0] = FlushPolicy.Decision.upload(156);
+    dispatcher.performFlush();
+    verify(segmentHTTPApi, times(2)).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+    verify(stats).dispatchFlush(2);
+    verify(stats).dispatchFlush(1);
+    assertThat(queue.size()).isEqualTo(0);
+  }
+
+  @Test public void onlyExplicitFlushesAreForced() throws IOException {
+    final List<Boolean> forcedFlushes = new CopyOnWriteArrayList<Boolean>();
+    flushPolicy = new FlushPolicy() {
+      @Override public Decision decide(Conditions conditions, boolean forced) {
+        forcedFlushes.add(forced);
+        return Decision.HOLD;
+      }
+    };
+    dispatcher = createDispatcher(20);
+    dispatcher.performEnqueue(mock(BasePayload.class));
+
+    dispatcher.dispatchFlush(false);
+    verify(stats, timeout(1000)).dispatchFlushDecision(Stats.DECISION_HOLD);
+    dispatcher.dispatchFlush(true);
+    verify(stats, timeout(1000).times(2)).dispatchFlushDecision(Stats.DECISION_HOLD);
+    assertThat(forcedFlushes).containsExactly(false, true);
+  }
+
+  @Test public void flushesWhenReconnected() throws IOException {
+    connectivityMonitor.setConnection(FlushPolicy.Connection.NONE);
+    dispatcher.performEnqueue(mock(BasePayload.class));
+    dispatcher.performFlush();
+    verify(stats).dispatchFlushDecision(Stats.DECISION_HOLD);
+
+    connectivityMonitor.setConnection(FlushPolicy.Connection.WIFI);
+    verify(stats, timeout(1000)).dispatchFlush(1);
+    verify(segmentHTTPApi).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+  }
+
+  @Test public void doesNotFlushWhenSwitchingConnections() throws IOException {
+    connectivityMonitor.setConnection(FlushPolicy.Connection.WIFI);
+    dispatcher.performEnqueue(mock(BasePayload.class));
+
+    connectivityMonitor.setConnection(FlushPolicy.Connection.CELLULAR);
+    // Any flush of a non-empty queue would have decided whether to upload.
+    verify(stats, timeout(200).times(0)).dispatchFlushDecision(anyInt());
+  }
+
+  @Test public void flushWritesQueueEntriesAsIs() {
+    dispatcher = createDispatcher(20);
+    AnalyticsContext analyticsContext =
+        new AnalyticsContext(new LinkedHashMap<String, Object>());
+    long timestamp = System.currentTimeMillis();
+    BasePayload first = new TrackPayload("1", timestamp, "foo", analyticsContext, "bar", "qaz",
+        new Properties(), new Options());
+    BasePayload second = new ScreenPayload("2", timestamp, "foo", analyticsContext, "bar", "qaz",
+        "qux", new Properties(), new Options());
+    dispatcher.performEnqueue(first);
+    dispatcher.performEnqueue(second);
+
+    dispatcher.performFlush();
+    assertThat(body.toString()).startsWith("{\"batch\":[" + first + "," + second + "]")
+        .contains("\"integrations\":{}")
+        .contains("\"sentAt\":")
+        .endsWith("\"}");
+  }
+
+  @Test public void flushesInBatchesThatFitRequestSize() throws IOException {
+    // The envelope takes 66 bytes and each mock serializes to 33-43 bytes ("Mock for
+    // BasePayload, hashCode: ..."), so exactly two of them fit into a request.
+    dispatcher = createDispatcher(20, 156);
+    for (int i = 0; i < 5; i++) {
+      dispatcher.performEnqueue(mock(BasePayload.class));
+    }
+
+    dispatcher.performFlush();
+    verify(segmentHTTPApi, times(3)).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+    verify(stats, times(2)).dispatchFlush(2);
+    verify(stats).dispatchFlush(1);
+    assertThat(queue.size()).isEqualTo(0);
+  }
+
+  @Test public void failedBatchStaysInQueue() throws IOException {
+    dispatcher = createDispatcher(20, 156);
+    for (int i = 0; i < 5; i++) {
+      dispatcher.performEnqueue(mock(BasePayload.class));
+    }
+    doThrow(new IOException()).when(segmentHTTPApi)
+        .upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+
+    dispatcher.performFlush();
+    verify(segmentHTTPApi).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+    assertThat(queue.size()).isEqualTo(5);
+    assertThat(backoff.attempts()).isEqualTo(1);
+  }
+
+  @Test public void serverErrorIsRetriedAfterBackoff() throws IOException {
+    dispatcher.performEnqueue(mock(BasePayload.class));
+    doThrow(new SegmentHTTPApi.HTTPException("unavailable", 503, 60000)).when(segmentHTTPApi)
+        .upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+
+    dispatcher.performFlush();
+    assertThat(backoff.attempts()).isEqualTo(1);
+    assertThat(backoff.remaining(System.currentTimeMillis())).isGreaterThan(59000);
+
+    // Flushing again doesn't upload until the server's Retry-After has passed.
+    dispatcher.performFlush();
+    verify(segmentHTTPApi).upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+    assertThat(queue.size()).isEqualTo(1);
+  }
+
+  @Test public void rejectedBatchIsNotRetried() throws IOException {
+    dispatcher.performEnqueue(mock(BasePayload.class));
+    doThrow(new SegmentHTTPApi.HTTPException("bad request", 400, -1)).when(segmentHTTPApi)
+        .upload(Matchers.<SegmentHTTPApi.StreamWriter>any());
+
+    dispatcher.performFlush();
+    assertThat(backoff.attempts()).isEqualTo(0);
+  }
+
+  @Test public void dropsOldestWhenQueueIsFull() throws IOException {
+    dispatcher = createDispatcher(20, Analytics.Builder.DEFAULT_MAX_REQUEST_SIZE, 1,
+        Analytics.QueueOverflow.DROP_OLDEST);
+    BasePayload first = mock(BasePayload.class);
+    BasePayload second = mock(BasePayload.class);
+    dispatcher.performEnqueue(first);
+    dispatcher.performEnqueue(second);
+
+    verify(stats).dispatchDrop(1);
+    assertThat(queue.size()).isEqualTo(1);
+    assertThat(queue.peek()).isSameAs(second);
+  }
+
+  @Test public void dropsNewestWhenQueueIsFull() throws IOException {
+    dispatcher = createDispatcher(20, Analytics.Builder.DEFAULT_MAX_REQUEST_SIZE, 1,
+        Analytics.QueueOverflow.DROP_NEWEST);
+    BasePayload first = mock(BasePayload.class);
+    BasePayload second = mock(BasePayload.class);
+    dispatcher.performEnqueue(first);
+    dispatcher.performEnqueue(second);
+
+    verify(stats).dispatchDrop(1);
+    assertThat(queue.size()).isEqualTo(1);
+    assertThat(queue.peek()).isSameAs(first);
+  }
+
+  @Test public void deletesContextsNoLongerReferenced() throws IOException {
+    File directory = PayloadConverterTest.tempDirectory();
+    File file = File.createTempFile("dispatcher-test", null);
+    file.delete();
+    ContextStore store = new ContextStore(directory);
+    FileObjectQueue<BasePayload> fileQueue =
+        new FileObjectQueue<BasePayload>(file, new PayloadConverter(store));
+    dispatcher = new Dispatcher(context, connectivityMonitor, 20, flushInterval, flushPolicy,
+        Analytics.Builder.DEFAULT_MAX_REQUEST_SIZE, Analytics.Builder.DEFAULT_MAX_QUEUE_BYTES,
+        Analytics.Builder.DEFAULT_QUEUE_OVERFLOW, Durability.sync(), segmentHTTPApi, fileQueue,
+        store, backoff, deadLettersFile, 10, Collections.<String, Boolean>emptyMap(), stats, true);
+    try {
+      fileQueue.add(PayloadConverterTest.payloadWithContext("1.0"));
+      fileQueue.add(PayloadConverterTest.payloadWithContext("2.0"));
+      fileQueue.add(PayloadConverterTest.payloadWithContext("3.0"));
+      assertThat(directory.list()).hasSize(3);
+
+      // Events are still queued, but none of them refers to the first context anymore.
+      fileQueue.remove();
+      dispatcher.performRetainContexts();
+      assertThat(directory.list()).hasSize(2);
+      assertThat(fileQueue.peek().getJsonMap("context").getJsonMap("app").getString("version"))
+          .isEqualTo("2.0");
+    } finally {
+      fileQueue.close();
+      file.delete();
+      PayloadConverterTest.delete(directory);
+    }
+  }
 }
@@ -1,7 +1,11 @@
 // Copyright 2012 Square, Inc.
 package com.segment.analytics;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 
 /**
@@ -28,15 +32,49 @@ public class InMemoryObjectQueue<T> implements ObjectQueue<T> {
     return tasks.peek();
   }
 
+  @Override public List<T> peek(int n) {
+    List<T> entries = new ArrayList<T>(Math.min(n, tasks.size()));
+    for (T task : tasks) {
+      if (entries.size() == n) break;
+      entries.add(task);
+    }
+    return entries;
+  }
+
   @Override public int size() {
     return tasks.size();
   }
 
+  @Override public int usedBytes() {
+    int usedBytes = 0;
+    for (T task : tasks) {
+      usedBytes += String.valueOf(task).getBytes().length;
+    }
+    return usedBytes;
+  }
+
   @Override public void remove() {
     tasks.remove();
     if (listener != null) listener.onRemove(this);
   }
 
+  @Override public void remove(int n) {
+    for (int i = 0; i < n; i++) {
+      remove();
+    }
+  }
+
+  @Override public void sync() {
+  }
+
+  /** Entries are serialized with {@link Object#toString()}, which is json for payloads. */
+  @Override public void forEach(QueueFile.ElementVisitor visitor) throws IOException {
+    for (T task : tasks) {
+      byte[] bytes = String.valueOf(task).getBytes();
+      if (!visitor.read(new ByteArrayInputStream(bytes), bytes.length)) return;
+    }
+  }
+
   @Override public void setListener(Listener<T> listener) {
     if (listener != null) {
       for (T task : tasks) {
@@ -0,0 +1,96 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.segment.analytics;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+@RunWith(RobolectricTestRunner.class) @Config(emulateSdk = 18, manifest = Config.NONE)
+public class Iso8601Test {
+  TimeZone defaultTimeZone;
+
+  @Before public void setUp() {
+    defaultTimeZone = TimeZone.getDefault();
+    TimeZone.setDefault(TimeZone.getTimeZone("America/Los_Angeles"));
+  }
+
+  @After public void tearDown() {
+    TimeZone.setDefault(defaultTimeZone);
+  }
+
+  @Test public void formatsLikeSimpleDateFormat() {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    // Around the start and end of daylight saving time, leap days and before the epoch.
+    long[] timestamps = {
+        0L, 1394359199999L, 1394359200000L, 1414918799999L, 1414918800000L, 951782400000L,
+        -1L, -86400001L, 1416441600123L, 4102444799999L
+    };
+    for (long millis : timestamps) {
+      assertThat(Iso8601.format(millis)).isEqualTo(format.format(new Date(millis)));
+    }
+  }
+
+  @Test public void parsesWhatItFormats() throws ParseException {
+    for (long millis = -100000000000L; millis < 4000000000000L; millis += 999999937L) {
+      assertThat(Iso8601.parse(Iso8601.format(millis))).isEqualTo(millis);
+    }
+  }
+
+  @Test public void parsesOtherOffsets() throws ParseException {
+    assertThat(Iso8601.parse("2014-11-20T00:00:00Z")).isEqualTo(1416441600000L);
+    assertThat(Iso8601.parse("2014-11-20T00:00:00.5Z")).isEqualTo(1416441600500L);
+    assertThat(Iso8601.parse("2014-11-20T00:00:00.123456Z")).isEqualTo(1416441600123L);
+    assertThat(Iso8601.parse("2014-11-20T05:30:00+05:30")).isEqualTo(1416441600000L);
+    assertThat(Iso8601.parse("2014-11-19T16:00:00-0800")).isEqualTo(1416441600000L);
+    assertThat(Iso8601.parse("2014-11-19T16:00:00-08")).isEqualTo(1416441600000L);
+  }
+
+  @Test public void rejectsInvalidTimestamps() {
+    String[] invalid = {
+        "", "2014-11-20", "2014-11-20T00:00:00", "2014-13-20T00:00:00Z", "2014-11-20 00:00:00Z",
+        "2014-11-20T00:00:00.Z", "2014-11-20T00:00:00+8", "2014-11-20T00:00:00Zulu"
+    };
+    for (String timestamp : invalid) {
+      try {
+        Iso8601.parse(timestamp);
+        fail("Expected " + timestamp + " to be rejected.");
+      } catch (ParseException expected) {
+      }
+    }
+    assertThat(Utils.fromISO8601Date("not a date")).isNull();
+  }
+}
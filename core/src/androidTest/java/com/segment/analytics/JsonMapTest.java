@@ -114,7 +114,7 @@ public class JsonMapTest {
         .contains(MapEntry.entry("apiKey", "8DY3D6S7CCWH54RBJ9ZM"))
         .contains(MapEntry.entry("captureUncaughtExceptions", false))
         .contains(MapEntry.entry("useHttps", true))
-        .contains(MapEntry.entry("sessionContinueSeconds", 10.0));
+        .contains(MapEntry.entry("sessionContinueSeconds", 10L));
   }
 
   private static enum MyEnum {
@@ -0,0 +1,107 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.segment.analytics;
+
+import android.util.JsonWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+@RunWith(RobolectricTestRunner.class) @Config(emulateSdk = 18, manifest = Config.NONE)
+public class JsonStreamWriterTest {
+  static final String TEXT = "plain \"quoted\" back\\slash tab\t nul\u0000 line  é ☃ 😀";
+
+  static String streamed(String value) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    JsonStreamWriter writer = new JsonStreamWriter(bytes);
+    writer.value(value);
+    writer.flush();
+    return bytes.toString("UTF-8");
+  }
+
+  @Test public void escapesStringsLikeJsonWriter() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    JsonWriter writer = new JsonWriter(new OutputStreamWriter(bytes, "UTF-8"));
+    writer.beginArray().value(TEXT).endArray().close();
+    String expected = bytes.toString("UTF-8");
+
+    assertThat("[" + streamed(TEXT) + "]").isEqualTo(expected);
+  }
+
+  @Test public void encodedStringsAreEscapedTheSameWay() throws IOException {
+    byte[] utf8 = TEXT.getBytes("UTF-8");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    JsonStreamWriter writer = new JsonStreamWriter(bytes);
+    writer.value(utf8, 0, utf8.length);
+    writer.flush();
+
+    assertThat(bytes.toString("UTF-8")).isEqualTo(streamed(TEXT));
+  }
+
+  @Test public void writesNestedValues() throws IOException {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    map.put("min", Long.MIN_VALUE);
+    map.put("max", Integer.MAX_VALUE);
+    map.put("zero", 0);
+    map.put("negative", -42L);
+    map.put("double", 0.1);
+    map.put("float", 2.5f);
+    map.put("list", Arrays.<Object>asList(true, null, "a", new LinkedHashMap<String, Object>()));
+    map.put("nothing", null);
+
+    assertThat(JsonUtils.mapToJson(map)).isEqualTo("{\"min\":-9223372036854775808,"
+        + "\"max\":2147483647,\"zero\":0,\"negative\":-42,\"double\":0.1,\"float\":2.5,"
+        + "\"list\":[true,null,\"a\",{}],\"nothing\":null}");
+  }
+
+  @Test public void writesValuesLongerThanBuffer() throws IOException {
+    char[] chars = new char[5000];
+    Arrays.fill(chars, 'é');
+    String value = new String(chars);
+
+    assertThat(streamed(value)).isEqualTo("\"" + value + "\"");
+  }
+
+  @Test public void rejectsNonFiniteNumbers() throws IOException {
+    JsonStreamWriter writer = new JsonStreamWriter(new ByteArrayOutputStream());
+    try {
+      writer.value(Double.POSITIVE_INFINITY);
+      fail("Infinity is not valid json.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("Numeric values must be finite, but was Infinity");
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.segment.analytics;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import org.assertj.core.data.MapEntry;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.segment.analytics.TestUtils.SAMPLE_JSON;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+@RunWith(RobolectricTestRunner.class) @Config(emulateSdk = 18, manifest = Config.NONE)
+public class LazyJsonMapTest {
+  @Test public void keepsIntegersAsLongs() throws IOException {
+    LazyJsonMap map = new LazyJsonMap("{\"timestamp\":1416441600123456789,\"count\":-3,"
+        + "\"ratio\":0.25,\"large\":1e3,\"huge\":123456789012345678901234}");
+
+    assertThat(map.get("timestamp")).isEqualTo(1416441600123456789L);
+    assertThat(map.get("count")).isEqualTo(-3L);
+    assertThat(map.get("ratio")).isEqualTo(0.25);
+    assertThat(map.get("large")).isEqualTo(1000.0);
+    assertThat(map.get("huge")).isEqualTo(1.2345678901234568e23);
+  }
+
+  @Test public void readsNestedValues() throws IOException {
+    LazyJsonMap map = new LazyJsonMap(SAMPLE_JSON);
+    assertThat(map).hasSize(1);
+
+    Map<?, ?> glossary = (Map<?, ?>) map.get("glossary");
+    assertThat(glossary).isInstanceOf(LazyJsonMap.class).hasSize(2);
+    Map<?, ?> glossDiv = (Map<?, ?>) glossary.get("GlossDiv");
+    Map<?, ?> glossList = (Map<?, ?>) glossDiv.get("GlossList");
+    Map<?, ?> glossEntry = (Map<?, ?>) glossList.get("GlossEntry");
+    Map<?, ?> glossDef = (Map<?, ?>) glossEntry.get("GlossDef");
+    assertThat(glossDef.get("GlossSeeAlso")).isEqualTo(Arrays.asList("GML", "XML"));
+    assertThat(map).isEqualTo(JsonUtils.jsonToMap(SAMPLE_JSON));
+  }
+
+  @Test public void unescapesStrings() throws IOException {
+    LazyJsonMap map = new LazyJsonMap(
+        "{ \"a\\\"b\" : \"tab\\t quote\\\" slash\\/ snowman\\u2603\" , \"empty\":\"\"}");
+
+    assertThat(map).contains(MapEntry.entry("a\"b", "tab\t quote\" slash/ snowman\u2603"),
+        MapEntry.entry("empty", ""));
+  }
+
+  @Test public void lastDuplicateKeyWins() throws IOException {
+    LazyJsonMap map = new LazyJsonMap("{\"a\":1,\"b\":2,\"a\":3}");
+
+    assertThat(map).hasSize(2);
+    assertThat(map.get("a")).isEqualTo(3L);
+    assertThat(map.keySet()).containsExactly("b", "a");
+  }
+
+  @Test public void changesInflateMap() throws IOException {
+    LazyJsonMap map = new LazyJsonMap("{\"a\":1,\"b\":[true,false,null,{}]}");
+    map.put("c", "new");
+    map.remove("a");
+
+    assertThat(map.keySet()).containsExactly("b", "c");
+    assertThat(JsonUtils.mapToJson(map)).isEqualTo("{\"b\":[true,false,null,{}],\"c\":\"new\"}");
+  }
+
+  @Test public void typedGetterDoesNotInflateMap() throws IOException {
+    LazyJsonMap map = new LazyJsonMap("{\"count\":3,\"name\":\"foo\",\"properties\":{}}");
+    JsonMap jsonMap = new JsonMap(map);
+    // The long is cached as an int, which only replaces its own value.
+    assertThat(jsonMap.getInt("count", 0)).isEqualTo(3);
+    assertThat(map.get("count")).isEqualTo(3);
+    assertThat(jsonMap.getJsonMap("properties", Properties.class)).isNotNull();
+    assertThat(map.isInflated()).isFalse();
+
+    map.put("other", true);
+    assertThat(map.isInflated()).isTrue();
+    assertThat(JsonUtils.mapToJson(map))
+        .isEqualTo("{\"count\":3,\"name\":\"foo\",\"properties\":{},\"other\":true}");
+  }
+
+  @Test public void rejectsMalformedJson() {
+    String[] malformed = {
+        "", "[]", "{", "{\"a\"}", "{\"a\":}", "{\"a\":1,}", "{\"a\":tru}", "{\"a\":-}",
+        "{\"a\":1.}", "{\"a\":\"\\x\"}", "{\"a\":\"unterminated}", "{\"a\":[1,]}", "{} {}"
+    };
+    for (String json : malformed) {
+      try {
+        new LazyJsonMap(json);
+        fail("Expected " + json + " to be rejected.");
+      } catch (IOException expected) {
+      }
+    }
+  }
+}
@@ -0,0 +1,238 @@
+package com.segment.analytics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) @Config(emulateSdk = 18, manifest = Config.NONE)
+public class PayloadConverterTest {
+  final PayloadConverter converter = new PayloadConverter();
+
+  static BasePayload payload() {
+    Map<String, Object> properties = new LinkedHashMap<String, Object>();
+    properties.put("revenue", 19.99);
+    properties.put("quantity", 3);
+    properties.put("gift", false);
+    properties.put("coupon", null);
+    properties.put("note", "café ☃ \"quoted\"");
+    properties.put("tags", Arrays.<Object>asList("a", 1L, 2.5f));
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    map.put("messageId", "4b8b7b3c-15d7-4a4f-b7c2-1c6bb3d7c0ee");
+    map.put("type", "track");
+    map.put("channel", "mobile");
+    map.put("event", "Purchased Item");
+    map.put("properties", properties);
+    map.put("integrations", Collections.singletonMap("All", true));
+    return new BasePayload(map);
+  }
+
+  static BasePayload payloadWithContext(String version) {
+    Map<String, Object> app = new LinkedHashMap<String, Object>();
+    app.put("name", "Example");
+    app.put("version", version);
+    Map<String, Object> context = new LinkedHashMap<String, Object>();
+    context.put("app", app);
+    context.put("locale", "en-US");
+    context.put("timezone", "America/Los_Angeles");
+    BasePayload payload = payload();
+    payload.put("context", context);
+    return payload;
+  }
+
+  static File tempDirectory() throws IOException {
+    File directory = File.createTempFile("payload-converter-test", null);
+    directory.delete();
+    return directory;
+  }
+
+  static void delete(File directory) {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  byte[] toBytes(BasePayload payload) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    converter.toStream(payload, bytes);
+    return bytes.toByteArray();
+  }
+
+  @Test public void compactEntryTranscodesToSameJson() throws IOException {
+    BasePayload payload = payload();
+    byte[] entry = toBytes(payload);
+    assertThat(entry[0]).isEqualTo(PayloadConverter.FORMAT_BINARY);
+    assertThat(entry.length).isLessThan(payload.toString().getBytes("UTF-8").length);
+
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    JsonStreamWriter writer = new JsonStreamWriter(json);
+    PayloadConverter.toJson(entry, entry.length, writer);
+    writer.flush();
+    assertThat(json.toString("UTF-8")).isEqualTo(payload.toString());
+  }
+
+  @Test public void readsCompactAndJsonEntries() throws IOException {
+    BasePayload payload = payload();
+    BasePayload compact = converter.from(toBytes(payload));
+    assertThat(compact.toString()).isEqualTo(payload.toString());
+
+    BasePayload json = converter.from(payload.toString().getBytes("UTF-8"));
+    assertThat(json.getString("event")).isEqualTo("Purchased Item");
+  }
+
+  @Test public void rejectsNonFiniteNumbers() throws IOException {
+    BasePayload payload = payload();
+    payload.put("value", Double.NaN);
+    try {
+      toBytes(payload);
+    } catch (IOException expected) {
+      assertThat(expected).hasMessage("Numeric values must be finite, but was NaN");
+      return;
+    }
+    throw new AssertionError("NaN should not be encoded.");
+  }
+
+  @Test public void rejectsNegativeLengths() throws IOException {
+    // A map with one entry, whose key has a length with the sign bit set.
+    byte[] encoded = new byte[] {
+        8, 1, 0, -1, -1, -1, -1, -1, -1, -1, -1, -1, 1
+    };
+    JsonStreamWriter writer = new JsonStreamWriter(new ByteArrayOutputStream());
+    try {
+      BinaryJson.toJson(encoded, 0, encoded.length, writer);
+    } catch (IOException expected) {
+      assertThat(expected.getMessage()).startsWith("Malformed length");
+      return;
+    }
+    throw new AssertionError("Negative length should not be decoded.");
+  }
+
+  @Test public void batchContainsJsonOfCompactEntries() throws IOException {
+    File file = File.createTempFile("payload-converter-test", null);
+    file.delete();
+    FileObjectQueue<BasePayload> queue = new FileObjectQueue<BasePayload>(file, converter);
+    try {
+      BasePayload payload = payload();
+      queue.add(payload);
+      queue.add(payload);
+
+      Dispatcher.BatchPayloadWriter writer = new Dispatcher.BatchPayloadWriter(queue,
+          Collections.<String, Boolean>emptyMap(), 1024 * 1024, null);
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      writer.writeTo(body);
+
+      assertThat(writer.count).isEqualTo(2);
+      assertThat(body.toString("UTF-8")).startsWith(
+          "{\"batch\":[" + payload.toString() + "," + payload.toString() + "],");
+    } finally {
+      queue.close();
+      file.delete();
+    }
+  }
+
+  @Test public void contextIsRestoredFromStore() throws IOException {
+    File directory = tempDirectory();
+    try {
+      PayloadConverter converter = new PayloadConverter(new ContextStore(directory));
+      BasePayload payload = payloadWithContext("1.0");
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      converter.toStream(payload, bytes);
+      byte[] entry = bytes.toByteArray();
+      assertThat(entry[0]).isEqualTo(PayloadConverter.FORMAT_BINARY_CONTEXT_REF);
+      assertThat(entry.length).isLessThan(toBytes(payload).length);
+
+      // A new store reads the snapshot back from disk.
+      converter = new PayloadConverter(new ContextStore(directory));
+      assertThat(converter.from(entry).toString()).isEqualTo(payload.toString());
+    } finally {
+      delete(directory);
+    }
+  }
+
+  @Test public void batchSharesContextOfItsEntries() throws IOException {
+    File directory = tempDirectory();
+    File file = File.createTempFile("payload-converter-test", null);
+    file.delete();
+    ContextStore store = new ContextStore(directory);
+    FileObjectQueue<BasePayload> queue =
+        new FileObjectQueue<BasePayload>(file, new PayloadConverter(store));
+    try {
+      queue.add(payloadWithContext("1.0"));
+      queue.add(payloadWithContext("1.0"));
+      queue.add(payloadWithContext("2.0"));
+      assertThat(directory.list()).hasSize(2);
+
+      Dispatcher.BatchPayloadWriter writer = new Dispatcher.BatchPayloadWriter(queue,
+          Collections.<String, Boolean>emptyMap(), 1024 * 1024, store);
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      writer.writeTo(body);
+      String json = body.toString("UTF-8");
+      assertThat(writer.count).isEqualTo(2);
+      assertThat(json).startsWith("{\"batch\":[" + payload() + "," + payload() + "],");
+      assertThat(json).contains(",\"context\":{\"app\":{\"name\":\"Example\","
+          + "\"version\":\"1.0\"},");
+
+      queue.remove(2);
+      body.reset();
+      writer.writeTo(body);
+      assertThat(writer.count).isEqualTo(1);
+      assertThat(body.toString("UTF-8")).contains("\"version\":\"2.0\"");
+
+      queue.remove(1);
+      store.retainLatest();
+      assertThat(directory.list()).hasSize(1);
+    } finally {
+      queue.close();
+      file.delete();
+      delete(directory);
+    }
+  }
+
+  @Test public void encodedContextIsCachedUntilChanged() throws IOException {
+    AnalyticsContext context = new AnalyticsContext(new LinkedHashMap<String, Object>());
+    context.put("locale", "en-US");
+    byte[] encoded = context.encoded();
+    assertThat(context.encoded()).isSameAs(encoded);
+
+    context.putLocation(37.7, -122.4, 0);
+    byte[] changed = context.encoded();
+    assertThat(changed).isNotSameAs(encoded);
+    assertThat(BinaryJson.readMap(changed, 0, changed.length).toString()).isEqualTo(
+        "{locale=en-US, location={latitude=37.7, longitude=-122.4, speed=0.0}}");
+  }
+
+  @Test public void payloadKeepsContextItWasCreatedWith() throws IOException {
+    File directory = tempDirectory();
+    try {
+      PayloadConverter converter = new PayloadConverter(new ContextStore(directory));
+      AnalyticsContext context = new AnalyticsContext(new LinkedHashMap<String, Object>());
+      context.put("locale", "en-US");
+      BasePayload payload = new TrackPayload("1", System.currentTimeMillis(), "foo", context,
+          "bar", "qaz", new Properties(), new Options());
+      // Changed after the payload was created, but before it is written by the dispatcher.
+      context.put("locale", "fr-FR");
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      converter.toStream(payload, bytes);
+      BasePayload read = converter.from(bytes.toByteArray());
+      assertThat(read.getJsonMap("context").getString("locale")).isEqualTo("en-US");
+
+      bytes.reset();
+      this.converter.toStream(payload, bytes);
+      read = this.converter.from(bytes.toByteArray());
+      assertThat(read.getJsonMap("context").getString("locale")).isEqualTo("en-US");
+    } finally {
+      delete(directory);
+    }
+  }
+}
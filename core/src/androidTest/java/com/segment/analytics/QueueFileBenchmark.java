@@ -0,0 +1,71 @@
+package com.segment.analytics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compares a {@link QueueFile} read and written through a {@link java.io.RandomAccessFile}
+ * against one that is memory mapped. This isn't a test, run it on a device or the JVM with {@link
+ * #main}. Writes aren't synced, so that the numbers measure the cost of moving bytes rather than
+ * the speed of the storage.
+ */
+public class QueueFileBenchmark {
+  static final int[] SIZES = { 10, 100, 1000, 10000, 100000 };
+  static final int ELEMENT_LENGTH = 256;
+  static final int ITERATIONS = 5;
+
+  public static void main(String... args) throws IOException {
+    byte[] element = new byte[ELEMENT_LENGTH];
+    System.out.println(String.format("%-8s %-8s %12s %12s %12s", "backend", "size", "add (ms)",
+        "forEach (ms)", "remove (ms)"));
+    for (int size : SIZES) {
+      for (boolean mapped : new boolean[] { false, true }) {
+        long add = 0, forEach = 0, remove = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+          File file = File.createTempFile("queue-file-benchmark", null);
+          file.delete();
+          QueueFile queueFile = new QueueFile(file, false, Durability.async(), mapped);
+          try {
+            long start = System.nanoTime();
+            for (int j = 0; j < size; j++) {
+              queueFile.add(element);
+            }
+            add += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            queueFile.forEachUntil(new QueueFile.ElementVisitor() {
+              final byte[] buffer = new byte[ELEMENT_LENGTH];
+
+              @Override public boolean read(InputStream in, int length) throws IOException {
+                int remaining = length;
+                while (remaining > 0) {
+                  remaining -= in.read(buffer);
+                }
+                return true;
+              }
+            });
+            forEach += System.nanoTime() - start;
+
+            // Remove in batches, the way the dispatcher does after each upload.
+            start = System.nanoTime();
+            while (!queueFile.isEmpty()) {
+              queueFile.remove(Math.min(100, queueFile.size()));
+            }
+            remove += System.nanoTime() - start;
+          } finally {
+            queueFile.close();
+            file.delete();
+          }
+        }
+        String backend = mapped ? "mapped" : "file";
+        System.out.println(String.format("%-8s %-8d %12.2f %12.2f %12.2f", backend, size,
+            millis(add), millis(forEach), millis(remove)));
+      }
+    }
+  }
+
+  private static double millis(long totalNanos) {
+    return totalNanos / (ITERATIONS * 1000000d);
+  }
+}
@@ -0,0 +1,215 @@
+package com.segment.analytics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+@RunWith(RobolectricTestRunner.class) @Config(emulateSdk = 18, manifest = Config.NONE)
+public class QueueFileTest {
+  File file;
+  QueueFile queueFile;
+
+  /** Returns an element of the given length, filled with its own length. */
+  static byte[] element(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) length;
+    }
+    return data;
+  }
+
+  @Before public void setUp() throws IOException {
+    file = File.createTempFile("queue-file-test", null);
+    file.delete();
+    queueFile = new QueueFile(file);
+  }
+
+  @After public void tearDown() throws IOException {
+    queueFile.close();
+    file.delete();
+  }
+
+  @Test public void removesManyElements() throws IOException {
+    for (int i = 1; i <= 10; i++) {
+      queueFile.add(element(i));
+    }
+
+    queueFile.remove(3);
+    assertThat(queueFile.size()).isEqualTo(7);
+    assertThat(queueFile.peek()).isEqualTo(element(4));
+
+    queueFile.close();
+    queueFile = new QueueFile(file);
+    assertThat(queueFile.size()).isEqualTo(7);
+    assertThat(queueFile.peek()).isEqualTo(element(4));
+  }
+
+  @Test public void removingAllElementsClearsQueue() throws IOException {
+    for (int i = 1; i <= 10; i++) {
+      queueFile.add(element(i));
+    }
+
+    queueFile.remove(10);
+    assertThat(queueFile.isEmpty()).isTrue();
+    assertThat(queueFile.usedBytes()).isEqualTo(QueueFile.HEADER_LENGTH);
+  }
+
+  @Test public void removingTooManyElementsThrows() throws IOException {
+    queueFile.add(element(1));
+    try {
+      queueFile.remove(2);
+      fail("removing more elements than present should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("Cannot remove more elements (2) than present in queue (1).");
+    }
+    assertThat(queueFile.size()).isEqualTo(1);
+  }
+
+  @Test public void removesManyElementsAcrossWrap() throws IOException {
+    // Fill most of the initial file, free the front and wrap around the end of the file.
+    for (int i = 0; i < 30; i++) {
+      queueFile.add(element(100));
+    }
+    queueFile.remove(20);
+    for (int i = 0; i < 20; i++) {
+      queueFile.add(element(101));
+    }
+    assertThat(queueFile.fileLength).isEqualTo(4096);
+
+    queueFile.remove(15);
+    List<byte[]> elements = queueFile.peek(100);
+    assertThat(elements).hasSize(15);
+    assertThat(elements.get(0)).isEqualTo(element(101));
+    assertThat(elements.get(14)).isEqualTo(element(101));
+  }
+
+  @Test public void groupCommitKeepsElementsAcrossReopen() throws IOException {
+    queueFile.close();
+    queueFile = new QueueFile(file, true, Durability.groupCommit(60000, 4), false);
+    for (int i = 1; i <= 10; i++) {
+      queueFile.add(element(i));
+    }
+    queueFile.remove(2);
+
+    queueFile.close();
+    queueFile = new QueueFile(file, true, Durability.groupCommit(60000, 4), false);
+    assertThat(queueFile.size()).isEqualTo(8);
+    assertThat(queueFile.peek()).isEqualTo(element(3));
+  }
+
+  @Test public void mappedQueueExpandsAcrossWrap() throws IOException {
+    queueFile.close();
+    queueFile = new QueueFile(file, true, Durability.sync(), true);
+    for (int i = 0; i < 30; i++) {
+      queueFile.add(element(100));
+    }
+    queueFile.remove(20);
+    // Wraps around the end of the file, and then forces it to grow and unwrap.
+    for (int i = 0; i < 40; i++) {
+      queueFile.add(element(101));
+    }
+    assertThat(queueFile.fileLength).isEqualTo(8192);
+
+    List<byte[]> elements = queueFile.peek(100);
+    assertThat(elements).hasSize(50);
+    assertThat(elements.get(9)).isEqualTo(element(100));
+    assertThat(elements.get(10)).isEqualTo(element(101));
+    assertThat(elements.get(49)).isEqualTo(element(101));
+  }
+
+  @Test public void mappedQueueReadsFileWrittenWithoutMapping() throws IOException {
+    for (int i = 1; i <= 10; i++) {
+      queueFile.add(element(i));
+    }
+    queueFile.remove(2);
+
+    queueFile.close();
+    queueFile = new QueueFile(file, true, Durability.sync(), true);
+    assertThat(queueFile.size()).isEqualTo(8);
+    assertThat(queueFile.peek()).isEqualTo(element(3));
+    queueFile.add(element(11));
+
+    queueFile.close();
+    queueFile = new QueueFile(file);
+    assertThat(queueFile.size()).isEqualTo(9);
+    assertThat(queueFile.peek(9).get(8)).isEqualTo(element(11));
+  }
+
+  @Test public void discardsCorruptElementAndEverythingAfterIt() throws IOException {
+    for (int i = 1; i <= 5; i++) {
+      queueFile.add(element(10));
+    }
+    queueFile.close();
+
+    // Flip a byte in the data of the third element.
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(QueueFile.HEADER_LENGTH + 2 * (QueueFile.Element.HEADER_LENGTH + 10) + 5);
+    raf.write(42);
+    raf.close();
+
+    queueFile = new QueueFile(file);
+    assertThat(queueFile.discardedElements).isEqualTo(3);
+    assertThat(queueFile.size()).isEqualTo(2);
+    queueFile.add(element(11));
+    assertThat(queueFile.peek(10).get(2)).isEqualTo(element(11));
+  }
+
+  @Test public void corruptHeaderEmptiesQueue() throws IOException {
+    queueFile.add(element(10));
+    queueFile.close();
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(4); // File length.
+    raf.writeInt(Integer.MAX_VALUE);
+    raf.close();
+
+    queueFile = new QueueFile(file);
+    assertThat(queueFile.isEmpty()).isTrue();
+    queueFile.add(element(12));
+    assertThat(queueFile.peek()).isEqualTo(element(12));
+  }
+
+  @Test public void migratesFileWithoutChecksums() throws IOException {
+    queueFile.close();
+    // Two elements in the format from before elements had checksums.
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(4096);
+    raf.writeInt(4096);
+    raf.writeInt(2);
+    raf.writeInt(16);
+    raf.writeInt(16 + 4 + 3);
+    raf.writeInt(3);
+    raf.write(element(3));
+    raf.writeInt(5);
+    raf.write(element(5));
+    raf.close();
+
+    queueFile = new QueueFile(file);
+    assertThat(queueFile.size()).isEqualTo(2);
+    assertThat(queueFile.peek(2)).containsExactly(element(3), element(5));
+  }
+
+  @Test public void peeksManyElements() throws IOException {
+    for (int i = 1; i <= 5; i++) {
+      queueFile.add(element(i));
+    }
+
+    List<byte[]> elements = queueFile.peek(3);
+    assertThat(elements).hasSize(3);
+    for (int i = 0; i < 3; i++) {
+      assertThat(elements.get(i)).isEqualTo(element(i + 1));
+    }
+    assertThat(queueFile.peek(10)).hasSize(5);
+    assertThat(queueFile.size()).isEqualTo(5);
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+@RunWith(RobolectricTestRunner.class) @Config(emulateSdk = 18, manifest = Config.NONE)
+public class RingBufferTest {
+  @Test public void offersUntilFull() {
+    RingBuffer<Integer> buffer = new RingBuffer<Integer>(3);
+    assertThat(buffer.capacity()).isEqualTo(4);
+    for (int i = 0; i < 4; i++) {
+      assertThat(buffer.offer(i)).isTrue();
+    }
+    assertThat(buffer.offer(4)).isFalse();
+
+    assertThat(buffer.poll()).isEqualTo(0);
+    assertThat(buffer.offer(4)).isTrue();
+    for (int i = 1; i <= 4; i++) {
+      assertThat(buffer.poll()).isEqualTo(i);
+    }
+    assertThat(buffer.poll()).isNull();
+  }
+
+  @Test public void invalidCapacityThrowsException() {
+    try {
+      new RingBuffer<Integer>(0);
+      fail("zero capacity should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("capacity must be between 1 and 2^30: 0");
+    }
+  }
+
+  @Test public void keepsOrderOfEachProducer() throws InterruptedException {
+    final int producers = 4;
+    final int elements = 20000;
+    final RingBuffer<int[]> buffer = new RingBuffer<int[]>(64);
+    final CountDownLatch start = new CountDownLatch(1);
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      new Thread() {
+        @Override public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < elements; i++) {
+            while (!buffer.offer(new int[] { producer, i })) {
+              Thread.yield();
+            }
+          }
+        }
+      }.start();
+    }
+    start.countDown();
+
+    int[] next = new int[producers];
+    long deadline = System.currentTimeMillis() + 10000;
+    for (int received = 0; received < producers * elements; ) {
+      int[] element = buffer.poll();
+      if (element == null) {
+        assertThat(System.currentTimeMillis()).isLessThan(deadline);
+        Thread.yield();
+        continue;
+      }
+      assertThat(element[1]).isEqualTo(next[element[0]]);
+      next[element[0]]++;
+      received++;
+    }
+    assertThat(buffer.poll()).isNull();
+  }
+}
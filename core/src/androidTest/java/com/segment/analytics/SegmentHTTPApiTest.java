@@ -0,0 +1,112 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static java.net.HttpURLConnection.HTTP_OK;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class) @Config(emulateSdk = 18, manifest = Config.NONE)
+public class SegmentHTTPApiTest {
+  @Test public void uploadLeavesConnectionOpenForReuse() throws IOException {
+    Client client = mock(Client.class);
+    HttpURLConnection connection = mock(HttpURLConnection.class);
+    when(client.open(any(URL.class))).thenReturn(connection);
+    when(connection.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+    when(connection.getResponseCode()).thenReturn(HTTP_OK);
+    when(connection.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+    Stats stats = mock(Stats.class);
+    SegmentHTTPApi api = new SegmentHTTPApi(client, "foo", 0, stats);
+
+    SegmentHTTPApi.StreamWriter writer = new SegmentHTTPApi.StreamWriter() {
+      @Override public void writeTo(OutputStream out) throws IOException {
+        out.write("{}".getBytes());
+      }
+    };
+    api.upload(writer);
+    api.upload(writer);
+
+    verify(client, times(2)).open(new URL(SegmentHTTPApi.API_URL + "v1/import"));
+    verify(connection, times(2)).setRequestProperty("Authorization", "Basic Zm9vOg==");
+    verify(connection, never()).setRequestProperty("Content-Encoding", "gzip");
+    verify(connection, times(2)).getInputStream();
+    verify(connection, never()).disconnect();
+    verify(stats, times(2)).dispatchUpload(2, 2);
+  }
+
+  @Test public void parsesRetryAfterSecondsAndDates() {
+    long now = 784111777000L; // Sun, 06 Nov 1994 08:49:37 GMT
+    assertThat(SegmentHTTPApi.parseRetryAfter("120", now)).isEqualTo(120000);
+    assertThat(SegmentHTTPApi.parseRetryAfter("Sun, 06 Nov 1994 08:50:37 GMT", now))
+        .isEqualTo(60000);
+    assertThat(SegmentHTTPApi.parseRetryAfter("soon", now)).isEqualTo(-1);
+    assertThat(SegmentHTTPApi.parseRetryAfter(null, now)).isEqualTo(-1);
+  }
+
+  @Test public void compressedBodyIsCountedAndInflatesToOriginal() throws IOException {
+    StringBuilder json = new StringBuilder("{\"batch\":[");
+    for (int i = 0; i < 100; i++) {
+      if (i > 0) json.append(',');
+      json.append("{\"type\":\"track\",\"event\":\"Purchased Item\",\"properties\":{}}");
+    }
+    byte[] body = json.append("]}").toString().getBytes("UTF-8");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    SegmentHTTPApi.CountingOutputStream compressed =
+        new SegmentHTTPApi.CountingOutputStream(bytes);
+    SegmentHTTPApi.CountingOutputStream raw = new SegmentHTTPApi.CountingOutputStream(
+        new SegmentHTTPApi.GzipOutputStream(compressed, 9));
+    raw.write(body);
+    raw.close();
+
+    assertThat(raw.count).isEqualTo(body.length);
+    assertThat(compressed.count).isEqualTo(bytes.size()).isLessThan(body.length / 5);
+
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    for (int n; (n = in.read(buffer)) != -1; ) {
+      inflated.write(buffer, 0, n);
+    }
+    assertThat(inflated.toByteArray()).isEqualTo(body);
+  }
+}
@@ -0,0 +1,144 @@
+package com.segment.analytics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) @Config(emulateSdk = 18, manifest = Config.NONE)
+public class SegmentedObjectQueueTest {
+  static final FileObjectQueue.Converter<String> CONVERTER =
+      new FileObjectQueue.Converter<String>() {
+        @Override public String from(byte[] bytes) {
+          return new String(bytes);
+        }
+
+        @Override public void toStream(String o, OutputStream bytes) throws IOException {
+          bytes.write(o.getBytes());
+        }
+      };
+
+  File directory;
+  SegmentedObjectQueue<String> queue;
+
+  @Before public void setUp() throws IOException {
+    directory = File.createTempFile("segmented-queue-test", null);
+    directory.delete();
+    queue = open();
+  }
+
+  @After public void tearDown() throws IOException {
+    queue.close();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  /** Segments fit three 10 byte entries. */
+  SegmentedObjectQueue<String> open() throws IOException {
+    return new SegmentedObjectQueue<String>(directory, 62, CONVERTER, Durability.sync());
+  }
+
+  static String entry(int i) {
+    return String.format("entry-%04d", i);
+  }
+
+  @Test public void deletesSegmentsOnceRemoved() throws IOException {
+    for (int i = 0; i < 10; i++) {
+      queue.add(entry(i));
+    }
+    assertThat(directory.list()).hasSize(4);
+    assertThat(queue.size()).isEqualTo(10);
+    assertThat(queue.usedBytes()).isEqualTo(180);
+
+    queue.remove(7);
+    assertThat(directory.list()).hasSize(2);
+    assertThat(queue.peek()).isEqualTo(entry(7));
+
+    queue.close();
+    queue = open();
+    assertThat(queue.size()).isEqualTo(3);
+    assertThat(queue.peek(10)).containsExactly(entry(7), entry(8), entry(9));
+  }
+
+  @Test public void truncatesPartlyWrittenEntry() throws IOException {
+    queue.add(entry(0));
+    queue.add(entry(1));
+    queue.close();
+
+    // Chop off the end of the last entry, as if the process died while writing it.
+    RandomAccessFile raf = new RandomAccessFile(new File(directory, "0"), "rw");
+    raf.setLength(raf.length() - 3);
+    raf.close();
+
+    queue = open();
+    assertThat(queue.size()).isEqualTo(1);
+    queue.add(entry(2));
+    assertThat(queue.peek(10)).containsExactly(entry(0), entry(2));
+  }
+
+  @Test public void truncatesSegmentAtDamagedEntry() throws IOException {
+    for (int i = 0; i < 5; i++) {
+      queue.add(entry(i));
+    }
+    queue.close();
+
+    // Flip a byte in the data of the second entry of the first segment.
+    RandomAccessFile raf = new RandomAccessFile(new File(directory, "0"), "rw");
+    raf.seek(SegmentedObjectQueue.HEADER_LENGTH + 18 + SegmentedObjectQueue.ENTRY_HEADER_LENGTH);
+    raf.write('x');
+    raf.close();
+
+    queue = open();
+    assertThat(queue.corruptEntries()).isEqualTo(1);
+    assertThat(queue.size()).isEqualTo(3);
+    assertThat(queue.peek(10)).containsExactly(entry(0), entry(3), entry(4));
+  }
+
+  @Test public void addsWhileReading() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      queue.add(entry(i));
+    }
+
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    queue.forEach(new QueueFile.ElementVisitor() {
+      @Override public boolean read(InputStream in, int length) throws IOException {
+        // Reading holds the read lock, which must not keep another thread from adding.
+        Thread writer = new Thread() {
+          @Override public void run() {
+            try {
+              queue.add(entry(5));
+            } catch (Throwable t) {
+              failure.set(t);
+            }
+          }
+        };
+        writer.start();
+        try {
+          writer.join(5000);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        assertThat(writer.isAlive()).isFalse();
+        return false;
+      }
+    });
+
+    assertThat(failure.get()).isNull();
+    assertThat(queue.size()).isEqualTo(6);
+    queue.remove(6);
+    assertThat(queue.size()).isEqualTo(0);
+    assertThat(queue.peek()).isNull();
+  }
+}
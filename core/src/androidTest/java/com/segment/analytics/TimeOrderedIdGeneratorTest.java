@@ -0,0 +1,69 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class) @Config(emulateSdk = 18, manifest = Config.NONE)
+public class TimeOrderedIdGeneratorTest {
+  @Test public void idsAreVersion7Uuids() {
+    long before = System.currentTimeMillis();
+    String id = new TimeOrderedIdGenerator().generateMessageId();
+    UUID uuid = UUID.fromString(id);
+    assertThat(uuid.toString()).isEqualTo(id);
+    assertThat(uuid.version()).isEqualTo(7);
+    assertThat(uuid.variant()).isEqualTo(2);
+    assertThat(uuid.getMostSignificantBits() >>> 16).isGreaterThanOrEqualTo(before)
+        .isLessThanOrEqualTo(System.currentTimeMillis());
+  }
+
+  @Test public void idsAreUniqueAndOrdered() {
+    // More ids than the counter can tell apart within a single millisecond.
+    TimeOrderedIdGenerator generator = new TimeOrderedIdGenerator(42);
+    Set<String> ids = new HashSet<String>();
+    String previous = "";
+    for (int i = 0; i < 20000; i++) {
+      String id = generator.generateMessageId();
+      assertThat(id.compareTo(previous)).isGreaterThan(0);
+      ids.add(id);
+      previous = id;
+    }
+    assertThat(ids).hasSize(20000);
+  }
+
+  @Test public void generatorsWithDifferentSeedsDiffer() {
+    String first = new TimeOrderedIdGenerator(1).generateMessageId();
+    String second = new TimeOrderedIdGenerator(2).generateMessageId();
+    assertThat(first.substring(19)).isNotEqualTo(second.substring(19));
+  }
+}
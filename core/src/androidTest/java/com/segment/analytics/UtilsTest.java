@@ -29,7 +29,7 @@ import org.robolectric.annotation.Config;
 
 import static android.Manifest.permission.ACCESS_NETWORK_STATE;
 import static android.content.pm.PackageManager.PERMISSION_DENIED;
-import static com.segment.analytics.Utils.isConnected;
+import static com.segment.analytics.Utils.getConnection;
 import static com.segment.analytics.Utils.isNullOrEmpty;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.when;
@@ -68,8 +68,8 @@ public class UtilsTest {
     assertThat(isNullOrEmpty(collection)).isTrue();
   }
 
-  @Test public void returnsConnectedIfMissingPermission() throws Exception {
+  @Test public void returnsUnknownConnectionIfMissingPermission() throws Exception {
     when(context.checkCallingOrSelfPermission(ACCESS_NETWORK_STATE)).thenReturn(PERMISSION_DENIED);
-    assertThat(isConnected(context)).isTrue();
+    assertThat(getConnection(context)).isEqualTo(FlushPolicy.Connection.UNKNOWN);
   }
 }
\ No newline at end of file
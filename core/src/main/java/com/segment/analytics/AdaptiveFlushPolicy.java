@@ -0,0 +1,74 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+/**
+ * The default {@link FlushPolicy}. Uploads right away on WiFi and fast cellular networks, defers
+ * uploads on slow networks and when the battery is low so that more events go out per wakeup of
+ * the radio, and holds them while roaming unless they are forced. Requests are kept small enough
+ * to finish quickly at the measured throughput, so that a slow connection isn't held open for
+ * long or made to resend a large request when it drops.
+ */
+public class AdaptiveFlushPolicy implements FlushPolicy {
+  static final int LOW_BATTERY_LEVEL = 15;
+  static final long LOW_BATTERY_DELAY_MILLIS = 5 * 60 * 1000; // 5 minutes
+  static final long SLOW_CELLULAR_DELAY_MILLIS = 60 * 1000; // 1 minute
+  static final int SLOW_CELLULAR_REQUEST_SIZE = 32 * 1024; // 32 KB
+  /** Requests are sized to take about this long at the measured throughput. */
+  static final long TARGET_REQUEST_SECONDS = 10;
+  static final int MIN_REQUEST_SIZE = 16 * 1024; // 16 KB
+
+  @Override public Decision decide(Conditions conditions, boolean forced) {
+    switch (conditions.connection) {
+      case NONE:
+        return Decision.HOLD;
+      case ROAMING:
+        return forced ? Decision.upload(requestSize(conditions)) : Decision.HOLD;
+      case WIFI:
+        return Decision.upload();
+      case SLOW_CELLULAR:
+        int requestSize = Math.min(SLOW_CELLULAR_REQUEST_SIZE, requestSize(conditions));
+        return forced ? Decision.upload(requestSize)
+            : Decision.defer(SLOW_CELLULAR_DELAY_MILLIS, requestSize);
+      default:
+        if (!forced && isBatteryLow(conditions)) {
+          return Decision.defer(LOW_BATTERY_DELAY_MILLIS, requestSize(conditions));
+        }
+        return Decision.upload(requestSize(conditions));
+    }
+  }
+
+  private static boolean isBatteryLow(Conditions conditions) {
+    return !conditions.charging && conditions.batteryLevel >= 0
+        && conditions.batteryLevel <= LOW_BATTERY_LEVEL;
+  }
+
+  /** Returns a request size that takes about {@link #TARGET_REQUEST_SECONDS} to upload. */
+  private static int requestSize(Conditions conditions) {
+    if (conditions.throughput <= 0) return Integer.MAX_VALUE;
+    long size = conditions.throughput * TARGET_REQUEST_SECONDS;
+    return (int) Math.max(MIN_REQUEST_SIZE, Math.min(size, Integer.MAX_VALUE));
+  }
+}
@@ -31,9 +31,9 @@ class AliasPayload extends BasePayload {
    */
   private static final String PREVIOUS_ID_KEY = "previousId";
 
-  AliasPayload(String anonymousId, AnalyticsContext context, String userId, String previousId,
-      Options options) {
-    super(Type.alias, anonymousId, context, userId, options);
+  AliasPayload(String messageId, long timestamp, String anonymousId, AnalyticsContext context,
+      String userId, String previousId, Options options) {
+    super(Type.alias, messageId, timestamp, anonymousId, context, userId, options);
     put(PREVIOUS_ID_KEY, previousId);
   }
 
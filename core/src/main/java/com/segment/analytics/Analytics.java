@@ -33,10 +33,18 @@ import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 import static com.segment.analytics.IntegrationManager.ActivityLifecyclePayload;
 import static com.segment.analytics.IntegrationManager.ActivityLifecyclePayload.Type.CREATED;
 import static com.segment.analytics.IntegrationManager.ActivityLifecyclePayload.Type.DESTROYED;
@@ -47,13 +55,17 @@ import static com.segment.analytics.IntegrationManager.ActivityLifecyclePayload.
 import static com.segment.analytics.IntegrationManager.ActivityLifecyclePayload.Type.STOPPED;
 import static com.segment.analytics.Utils.OWNER_MAIN;
 import static com.segment.analytics.Utils.VERB_CREATE;
+import static com.segment.analytics.Utils.VERB_DROP;
 import static com.segment.analytics.Utils.checkMain;
+import static com.segment.analytics.Utils.createDefaultClient;
 import static com.segment.analytics.Utils.debug;
 import static com.segment.analytics.Utils.getResourceBooleanOrThrow;
 import static com.segment.analytics.Utils.getResourceIntegerOrThrow;
 import static com.segment.analytics.Utils.getResourceString;
 import static com.segment.analytics.Utils.hasPermission;
 import static com.segment.analytics.Utils.isNullOrEmpty;
+import static com.segment.analytics.Utils.panic;
+import static com.segment.analytics.Utils.quitThread;
 
 /**
  * The idea is simple: one pipeline for all your data.
@@ -70,8 +82,58 @@ public class Analytics {
   static final String QUEUE_SIZE_RESOURCE_IDENTIFIER = "analytics_queue_size";
   static final String LOGGING_RESOURCE_IDENTIFIER = "analytics_logging";
 
+  static final int REQUEST_ENQUEUE = 0;
+  static final int REQUEST_DRAIN = 1;
+  static final int REQUEST_NETWORK_CHANGED = 2;
+  static final int REQUEST_SHUTDOWN = 3;
+
+  private static final String ANALYTICS_THREAD_NAME = Utils.THREAD_PREFIX + "Analytics";
+  private static final long BLOCK_PARK_NANOS = 100 * 1000; // 100 microseconds
+  private static final long BLOCK_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+  /** Passed through {@link #enqueueBuffer} in place of a call, so it is ordered with them. */
+  static final PendingPayload LOGOUT = new PendingPayload(null, null, null, null, null, null, null);
+
   static Analytics singleton = null;
 
+  /** Controls which events are dropped once the disk queue is full. */
+  public enum QueueOverflow {
+    /** Drop the oldest events in the queue to make room for new ones. */
+    DROP_OLDEST,
+    /** Drop new events until there is room in the queue again. */
+    DROP_NEWEST
+  }
+
+  /**
+   * Controls what happens to an event when the buffer that holds calls until the analytics thread
+   * turns them into events is full.
+   */
+  public enum BufferOverflow {
+    /**
+     * Wait until the analytics thread has made room in the buffer. If it hasn't within a second,
+     * the event is spilled instead.
+     */
+    BLOCK,
+    /** Drop the event. */
+    DROP_NEWEST,
+    /**
+     * Pass the event to the analytics thread through its unbounded message queue instead. Spilled
+     * events can be processed ahead of events that are still in the buffer.
+     */
+    SPILL
+  }
+
+  /**
+   * Generates the message id of each event. Ids must be unique, they are used to de-duplicate
+   * events that are sent more than once.
+   */
+  public interface MessageIdGenerator {
+    /**
+     * Called on the analytics thread, once for each event in the order the calls were made. Slow
+     * generators hold up the events behind them.
+     */
+    String generateMessageId();
+  }
+
   /**
    * The global default {@link Analytics} instance.
    * <p/>
@@ -131,13 +193,34 @@ public class Analytics {
   @SuppressWarnings("UnusedDeclaration") // Public API.
   public static class Builder {
     static final int DEFAULT_QUEUE_SIZE = 20;
+    static final long DEFAULT_FLUSH_INTERVAL = 30 * 1000; // 30 seconds
+    static final int DEFAULT_MAX_REQUEST_SIZE = 500 * 1024; // 500 KB
+    static final int DEFAULT_MAX_QUEUE_BYTES = 10 * 1024 * 1024; // 10 MB
+    static final QueueOverflow DEFAULT_QUEUE_OVERFLOW = QueueOverflow.DROP_OLDEST;
+    static final int DEFAULT_BUFFER_CAPACITY = 1024;
+    static final BufferOverflow DEFAULT_BUFFER_OVERFLOW = BufferOverflow.SPILL;
+    static final int DEFAULT_COMPRESSION_LEVEL = 0; // Uncompressed.
     static final boolean DEFAULT_LOGGING = false;
 
     private final Application application;
     private String writeKey;
     private String tag;
     private int maxQueueSize = -1;
+    private long flushInterval = -1;
+    private FlushPolicy flushPolicy;
+    private int maxRequestSize = -1;
+    private int maxQueueBytes = -1;
+    private QueueOverflow queueOverflow;
+    private int bufferCapacity = -1;
+    private BufferOverflow bufferOverflow;
+    private Durability durability;
+    private boolean memoryMapped;
+    private int queueSegmentLength = -1;
+    private int maxDeadLetters = -1;
+    private int compressionLevel = -1;
     private Options defaultOptions;
+    private MessageIdGenerator messageIdGenerator;
+    private Client client;
     private boolean loggingEnabled = DEFAULT_LOGGING;
 
     /** Start building a new {@link Analytics} instance. */
@@ -169,6 +252,180 @@ public class Analytics {
       return this;
     }
 
+    /**
+     * Set how long events may wait in the queue before they are uploaded, if the queue doesn't
+     * fill up first. The timer only runs while there are events waiting, and is shared by all of
+     * them, so it adds at most one wakeup per interval. Events are also uploaded when the app goes
+     * into the background. Defaults to 30 seconds.
+     */
+    public Builder flushInterval(long flushInterval, TimeUnit timeUnit) {
+      if (flushInterval <= 0) {
+        throw new IllegalArgumentException("flushInterval must be greater than zero.");
+      }
+      if (timeUnit == null) {
+        throw new IllegalArgumentException("timeUnit must not be null.");
+      }
+      if (this.flushInterval != -1) {
+        throw new IllegalStateException("flushInterval is already set.");
+      }
+      this.flushInterval = timeUnit.toMillis(flushInterval);
+      return this;
+    }
+
+    /**
+     * Set the policy that decides when queued events are uploaded, and in how large requests,
+     * from the network, battery and measured throughput. By default this is an {@link
+     * AdaptiveFlushPolicy}.
+     */
+    public Builder flushPolicy(FlushPolicy flushPolicy) {
+      if (flushPolicy == null) {
+        throw new IllegalArgumentException("flushPolicy must not be null.");
+      }
+      if (this.flushPolicy != null) {
+        throw new IllegalStateException("flushPolicy is already set.");
+      }
+      this.flushPolicy = flushPolicy;
+      return this;
+    }
+
+    /**
+     * Set the maximum size, in bytes, of a single upload request. When more events are queued than
+     * fit into one request, they will be uploaded over several requests. An event that is larger
+     * than this limit on its own will still be uploaded in a request by itself.
+     */
+    public Builder maxRequestSize(int maxRequestSize) {
+      if (maxRequestSize <= 0) {
+        throw new IllegalArgumentException("maxRequestSize must be greater than zero.");
+      }
+      if (this.maxRequestSize != -1) {
+        throw new IllegalStateException("maxRequestSize is already set.");
+      }
+      this.maxRequestSize = maxRequestSize;
+      return this;
+    }
+
+    /**
+     * Set the maximum number of bytes that queued events may take up on disk, and which events to
+     * drop once it has been reached. Dropped events are counted in {@link StatsSnapshot}.
+     */
+    public Builder maxQueueBytes(int maxQueueBytes, QueueOverflow queueOverflow) {
+      if (maxQueueBytes <= 0) {
+        throw new IllegalArgumentException("maxQueueBytes must be greater than zero.");
+      }
+      if (queueOverflow == null) {
+        throw new IllegalArgumentException("queueOverflow must not be null.");
+      }
+      if (this.maxQueueBytes != -1) {
+        throw new IllegalStateException("maxQueueBytes is already set.");
+      }
+      this.maxQueueBytes = maxQueueBytes;
+      this.queueOverflow = queueOverflow;
+      return this;
+    }
+
+    /**
+     * Set how many calls may wait in memory for the analytics thread to turn them into events, and
+     * what happens to calls once that many are waiting. The analytics thread takes all the waiting
+     * calls each time it wakes up, and hands them to the dispatcher at once. By default 1024 calls
+     * can wait, and further calls spill over.
+     */
+    public Builder enqueueBuffer(int bufferCapacity, BufferOverflow bufferOverflow) {
+      if (bufferCapacity <= 0) {
+        throw new IllegalArgumentException("bufferCapacity must be greater than zero.");
+      }
+      if (bufferOverflow == null) {
+        throw new IllegalArgumentException("bufferOverflow must not be null.");
+      }
+      if (this.bufferCapacity != -1) {
+        throw new IllegalStateException("enqueueBuffer is already set.");
+      }
+      this.bufferCapacity = bufferCapacity;
+      this.bufferOverflow = bufferOverflow;
+      return this;
+    }
+
+    /**
+     * Set when queued events are synced to disk. By default every event is synced as it is
+     * queued; {@link Durability#groupCommit(long, int)} syncs several events at once, which is
+     * much faster on slow storage.
+     */
+    public Builder durability(Durability durability) {
+      if (durability == null) {
+        throw new IllegalArgumentException("durability must not be null.");
+      }
+      if (this.durability != null) {
+        throw new IllegalStateException("durability is already set.");
+      }
+      this.durability = durability;
+      return this;
+    }
+
+    /**
+     * Set whether the disk queue should be memory mapped. A mapped queue is read with memory
+     * copies instead of file reads, which makes flushing large queues cheaper. It is written in
+     * the same format, so this can be changed between releases without losing queued events.
+     */
+    public Builder memoryMapped(boolean memoryMapped) {
+      this.memoryMapped = memoryMapped;
+      return this;
+    }
+
+    /**
+     * Store queued events in a directory of segment files of up to {@code queueSegmentLength}
+     * bytes each, instead of a single file. Segments are deleted as soon as their events have
+     * been uploaded, which gives disk space back while a large queue drains, and new events can
+     * be queued while an upload is reading older ones. Events already queued in the single file
+     * are moved into segments; switching back to a single file leaves segmented events behind.
+     * {@link #memoryMapped(boolean)} only applies to the single file.
+     */
+    public Builder queueSegmentLength(int queueSegmentLength) {
+      if (queueSegmentLength <= 0) {
+        throw new IllegalArgumentException("queueSegmentLength must be greater than zero.");
+      }
+      if (this.queueSegmentLength != -1) {
+        throw new IllegalStateException("queueSegmentLength is already set.");
+      }
+      this.queueSegmentLength = queueSegmentLength;
+      return this;
+    }
+
+    /**
+     * Keep up to {@code maxDeadLetters} events that the server rejected in a file, so that they
+     * can be looked into later. When the server rejects a batch, it is split in halves until the
+     * events it rejects are found, which are then taken out of the queue so that they don't hold
+     * up the others. They are always counted in {@link StatsSnapshot#deadLetterCount}; by default
+     * they aren't kept.
+     */
+    public Builder maxDeadLetters(int maxDeadLetters) {
+      if (maxDeadLetters <= 0) {
+        throw new IllegalArgumentException("maxDeadLetters must be greater than zero.");
+      }
+      if (this.maxDeadLetters != -1) {
+        throw new IllegalStateException("maxDeadLetters is already set.");
+      }
+      this.maxDeadLetters = maxDeadLetters;
+      return this;
+    }
+
+    /**
+     * Compress uploads with gzip at the given {@code compressionLevel}, from 1 (fastest) to 9
+     * (smallest). Batches are repetitive json and typically shrink 5 to 10 times, which saves a
+     * lot of bandwidth on metered networks for a little cpu. Each batch is rendered into memory,
+     * at most {@link #maxRequestSize(int)} bytes, and compressed as it is written to the
+     * connection, so no compressed copy of it is kept. 0 leaves uploads uncompressed, which is the
+     * default.
+     */
+    public Builder compressionLevel(int compressionLevel) {
+      if (compressionLevel < 0 || compressionLevel > 9) {
+        throw new IllegalArgumentException("compressionLevel must be between 0 and 9.");
+      }
+      if (this.compressionLevel != -1) {
+        throw new IllegalStateException("compressionLevel is already set.");
+      }
+      this.compressionLevel = compressionLevel;
+      return this;
+    }
+
     /**
      * Set some default options for all calls. This options should not contain a timestamp. You
      * won't be able to change the integrations specified in this options object.
@@ -191,6 +448,36 @@ public class Analytics {
       return this;
     }
 
+    /**
+     * Set the generator for message ids. By default ids are time ordered UUIDs that are cheaper to
+     * generate than {@link java.util.UUID#randomUUID()}.
+     */
+    public Builder messageIdGenerator(MessageIdGenerator messageIdGenerator) {
+      if (messageIdGenerator == null) {
+        throw new IllegalArgumentException("messageIdGenerator must not be null.");
+      }
+      if (this.messageIdGenerator != null) {
+        throw new IllegalStateException("messageIdGenerator is already set.");
+      }
+      this.messageIdGenerator = messageIdGenerator;
+      return this;
+    }
+
+    /**
+     * Set the client that connects to Segment's servers. By default this is an {@link OkClient}
+     * if OkHttp is on the class path, and an {@link UrlConnectionClient} otherwise.
+     */
+    public Builder client(Client client) {
+      if (client == null) {
+        throw new IllegalArgumentException("client must not be null.");
+      }
+      if (this.client != null) {
+        throw new IllegalStateException("client is already set.");
+      }
+      this.client = client;
+      return this;
+    }
+
     /**
      * Set a tag for this instance. The tag is used to generate keys for caching. By default the
      * writeKey is used, but you may want to specify an alternative one, if you want the instances
@@ -220,22 +507,55 @@ public class Analytics {
       if (maxQueueSize == -1) {
         maxQueueSize = DEFAULT_QUEUE_SIZE;
       }
+      if (flushInterval == -1) {
+        flushInterval = DEFAULT_FLUSH_INTERVAL;
+      }
+      if (flushPolicy == null) {
+        flushPolicy = new AdaptiveFlushPolicy();
+      }
+      if (maxRequestSize == -1) {
+        maxRequestSize = DEFAULT_MAX_REQUEST_SIZE;
+      }
+      if (maxQueueBytes == -1) {
+        maxQueueBytes = DEFAULT_MAX_QUEUE_BYTES;
+        queueOverflow = DEFAULT_QUEUE_OVERFLOW;
+      }
+      if (bufferCapacity == -1) {
+        bufferCapacity = DEFAULT_BUFFER_CAPACITY;
+        bufferOverflow = DEFAULT_BUFFER_OVERFLOW;
+      }
+      if (durability == null) {
+        durability = Durability.sync();
+      }
+      if (compressionLevel == -1) {
+        compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+      }
       if (defaultOptions == null) {
         defaultOptions = new Options();
       }
+      if (messageIdGenerator == null) {
+        messageIdGenerator = new TimeOrderedIdGenerator();
+      }
+      if (client == null) {
+        client = createDefaultClient();
+      }
       if (isNullOrEmpty(tag)) tag = writeKey;
 
       Stats stats = new Stats();
-      SegmentHTTPApi segmentHTTPApi = new SegmentHTTPApi(writeKey);
-      IntegrationManager integrationManager =
-          IntegrationManager.create(application, segmentHTTPApi, stats, loggingEnabled);
-      Dispatcher dispatcher = Dispatcher.create(application, maxQueueSize, segmentHTTPApi,
+      SegmentHTTPApi segmentHTTPApi = new SegmentHTTPApi(client, writeKey, compressionLevel, stats);
+      ConnectivityMonitor connectivityMonitor = new ConnectivityMonitor(application);
+      IntegrationManager integrationManager = IntegrationManager.create(application,
+          connectivityMonitor, segmentHTTPApi, stats, loggingEnabled);
+      Dispatcher dispatcher = Dispatcher.create(application, connectivityMonitor, maxQueueSize,
+          flushInterval, flushPolicy, maxRequestSize, maxQueueBytes, queueOverflow, durability,
+          memoryMapped, queueSegmentLength, maxDeadLetters, segmentHTTPApi,
           integrationManager.serverIntegrations, tag, stats, loggingEnabled);
       TraitsCache traitsCache = new TraitsCache(application, tag);
       AnalyticsContext analyticsContext = new AnalyticsContext(application, traitsCache.get());
 
-      return new Analytics(application, dispatcher, integrationManager, stats, traitsCache,
-          analyticsContext, defaultOptions, loggingEnabled);
+      return new Analytics(application, connectivityMonitor, dispatcher, integrationManager,
+          stats, traitsCache, analyticsContext, defaultOptions, messageIdGenerator, bufferCapacity,
+          bufferOverflow, loggingEnabled);
     }
   }
 
@@ -249,33 +569,65 @@ public class Analytics {
   };
 
   final Application application;
+  final ConnectivityMonitor connectivityMonitor;
   final Dispatcher dispatcher;
   final IntegrationManager integrationManager;
   final Stats stats;
   final TraitsCache traitsCache;
   final AnalyticsContext analyticsContext;
   final Options defaultOptions;
+  final MessageIdGenerator messageIdGenerator;
+  /**
+   * Hands calls from the caller's thread to the analytics thread without allocating a message or
+   * taking a lock for each one.
+   */
+  final RingBuffer<PendingPayload> enqueueBuffer;
+  final BufferOverflow bufferOverflow;
+  final AtomicBoolean drainScheduled = new AtomicBoolean();
   final boolean loggingEnabled;
-  boolean shutdown;
+  final HandlerThread analyticsThread;
+  final Handler handler;
+  volatile boolean shutdown;
 
-  Analytics(Application application, Dispatcher dispatcher, IntegrationManager integrationManager,
-      Stats stats, TraitsCache traitsCache, AnalyticsContext analyticsContext,
-      Options defaultOptions, boolean loggingEnabled) {
+  Analytics(Application application, ConnectivityMonitor connectivityMonitor,
+      Dispatcher dispatcher, IntegrationManager integrationManager, Stats stats,
+      TraitsCache traitsCache, AnalyticsContext analyticsContext, Options defaultOptions,
+      MessageIdGenerator messageIdGenerator, int bufferCapacity, BufferOverflow bufferOverflow,
+      boolean loggingEnabled) {
     this.application = application;
+    this.connectivityMonitor = connectivityMonitor;
     this.dispatcher = dispatcher;
     this.integrationManager = integrationManager;
     this.stats = stats;
     this.traitsCache = traitsCache;
     this.analyticsContext = analyticsContext;
     this.defaultOptions = defaultOptions;
+    this.messageIdGenerator = messageIdGenerator;
+    this.enqueueBuffer = new RingBuffer<PendingPayload>(bufferCapacity);
+    this.bufferOverflow = bufferOverflow;
     this.loggingEnabled = loggingEnabled;
+    analyticsThread = new HandlerThread(ANALYTICS_THREAD_NAME, THREAD_PRIORITY_BACKGROUND);
+    analyticsThread.start();
+    handler = new AnalyticsHandler(analyticsThread.getLooper(), this);
+
+    connectivityMonitor.addListener(new ConnectivityMonitor.Listener() {
+      @Override public void onConnectivityChanged(FlushPolicy.Connection connection,
+          boolean reconnected) {
+        // The context is only changed on the analytics thread, where payloads are built from it.
+        handler.sendMessage(handler.obtainMessage(REQUEST_NETWORK_CHANGED));
+      }
+    });
 
     application.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+      /** Number of activities that are started, so that we know when the app is backgrounded. */
+      int startedActivities;
+
       @Override public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
         submit(new ActivityLifecyclePayload(CREATED, activity, savedInstanceState));
       }
 
       @Override public void onActivityStarted(Activity activity) {
+        startedActivities++;
         submit(new ActivityLifecyclePayload(STARTED, activity, null));
       }
 
@@ -289,6 +641,16 @@ public class Analytics {
 
       @Override public void onActivityStopped(Activity activity) {
         submit(new ActivityLifecyclePayload(STOPPED, activity, null));
+        // Activities started before we were created were never counted.
+        startedActivities = Math.max(0, startedActivities - 1);
+        // An activity that is recreated for a configuration change, such as a rotation, is
+        // started again right away. Lifecycle callbacks need API 14, so isChangingConfigurations()
+        // (API 11) is always there.
+        if (startedActivities == 0 && !activity.isChangingConfigurations()) {
+          // The app was backgrounded, which is the last chance to upload for a while. It's still
+          // up to the flush policy, since the user didn't ask for it.
+          dispatcher.dispatchFlush(false);
+        }
       }
 
       @Override public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
@@ -331,26 +693,19 @@ public class Analytics {
    * @param userId Unique identifier which you recognize a user by in your own database. If this is
    * null or empty, any previous id we have (could be the anonymous id) will be
    * used.
-   * @param traits Traits about the user
+   * @param traits Traits about the user. They're read on a background thread, so don't change
+   * them after this call.
    * @param options To configure the call
    * @throws IllegalArgumentException if userId is null or an empty string
    * @see <a href="https://segment.io/docs/tracking-api/identify/">Identify Documentation</a>
    */
   public void identify(String userId, Traits traits, Options options) {
-    if (!isNullOrEmpty(userId)) {
-      traitsCache.get().putUserId(userId);
-    }
     if (options == null) {
       options = defaultOptions;
     }
-    if (!isNullOrEmpty(traits)) {
-      traitsCache.get().merge(traits);
-      traitsCache.save();
-    }
 
-    BasePayload payload = new IdentifyPayload(traitsCache.get().anonymousId(), analyticsContext,
-        traitsCache.get().userId(), traitsCache.get(), options);
-    submit(payload);
+    dispatchEnqueue(new PendingPayload(BasePayload.Type.identify, userId, null, null, traits,
+        null, options));
   }
 
   /**
@@ -378,23 +733,12 @@ public class Analytics {
     if (isNullOrEmpty(groupId)) {
       throw new IllegalArgumentException("groupId must be null or empty.");
     }
-
-    if (isNullOrEmpty(userId)) {
-      userId = traitsCache.get().userId();
-    }
-    if (!isNullOrEmpty(traits)) {
-      traitsCache.get().merge(traits);
-      traitsCache.save();
-    }
     if (options == null) {
       options = defaultOptions;
     }
 
-    BasePayload payload =
-        new GroupPayload(traitsCache.get().anonymousId(), analyticsContext, userId, groupId,
-            traitsCache.get(), options);
-
-    submit(payload);
+    dispatchEnqueue(new PendingPayload(BasePayload.Type.group, userId, groupId, null, traits,
+        null, options));
   }
 
   /**
@@ -418,7 +762,8 @@ public class Analytics {
    * example a 'Purchased a Shirt' event might have properties like revenue or size.
    *
    * @param event Name of the event. Must not be null or empty.
-   * @param properties {@link Properties} to add extra information to this call
+   * @param properties {@link Properties} to add extra information to this call. They're read on
+   * a background thread, so don't change them after this call.
    * @param options To configure the call
    * @throws IllegalArgumentException if event name is null or an empty string
    * @see <a href="https://segment.io/docs/tracking-api/track/">Track Documentation</a>
@@ -434,9 +779,8 @@ public class Analytics {
       options = defaultOptions;
     }
 
-    BasePayload payload = new TrackPayload(traitsCache.get().anonymousId(), analyticsContext,
-        traitsCache.get().userId(), event, properties, options);
-    submit(payload);
+    dispatchEnqueue(new PendingPayload(BasePayload.Type.track, null, event, null, null,
+        properties, options));
   }
 
   /**
@@ -462,7 +806,8 @@ public class Analytics {
    *
    * @param category A category to describe the screen
    * @param name A name for the screen
-   * @param properties {@link Properties} to add extra information to this call
+   * @param properties {@link Properties} to add extra information to this call. They're read on
+   * a background thread, so don't change them after this call.
    * @param options To configure the call
    * @see <a href="http://segment.io/docs/tracking-api/page-and-screen/">Screen Documentation</a>
    */
@@ -478,9 +823,8 @@ public class Analytics {
       options = defaultOptions;
     }
 
-    BasePayload payload = new ScreenPayload(traitsCache.get().anonymousId(), analyticsContext,
-        traitsCache.get().userId(), category, name, properties, options);
-    submit(payload);
+    dispatchEnqueue(new PendingPayload(BasePayload.Type.screen, null, name, category, null,
+        properties, options));
   }
 
   /**
@@ -507,16 +851,12 @@ public class Analytics {
     if (isNullOrEmpty(newId)) {
       throw new IllegalArgumentException("newId must not be null or empty.");
     }
-    if (isNullOrEmpty(previousId)) {
-      previousId = traitsCache.get().userId();
-    }
     if (options == null) {
       options = defaultOptions;
     }
 
-    BasePayload payload = new AliasPayload(traitsCache.get().anonymousId(), analyticsContext,
-        traitsCache.get().userId(), previousId, options);
-    submit(payload);
+    dispatchEnqueue(new PendingPayload(BasePayload.Type.alias, null, previousId, null, null, null,
+        options));
   }
 
   /**
@@ -524,11 +864,17 @@ public class Analytics {
    * have an explicit flush method.
    */
   public void flush() {
-    dispatcher.dispatchFlush();
+    dispatcher.dispatchFlush(true);
     integrationManager.flush();
   }
 
-  /** Get the {@link AnalyticsContext} used by this instance. */
+  /**
+   * Get the {@link AnalyticsContext} used by this instance.
+   * <p/>
+   * Events are built from their calls on the analytics thread, and take the context as it is at
+   * that point. Changes made to it right after a call may show up in the event of that call as
+   * well, so set any values that should be sent with an event before making the call.
+   */
   public AnalyticsContext getAnalyticsContext() {
     return analyticsContext;
   }
@@ -540,11 +886,14 @@ public class Analytics {
 
   /** Clear any information about the current user. */
   public void logout() {
-    traitsCache.delete(application);
-    analyticsContext.putTraits(traitsCache.get());
+    // Never dropped, so that it stays in order with the calls around it.
+    offerBlocking(LOGOUT);
   }
 
-  /** Stops this instance from accepting further requests. */
+  /**
+   * Stops this instance from accepting further requests. Calls made before this one are still
+   * turned into events and handed to the dispatcher; calls made after it are dropped.
+   */
   public void shutdown() {
     if (this == singleton) {
       throw new UnsupportedOperationException("Default singleton instance cannot be shutdown.");
@@ -552,10 +901,18 @@ public class Analytics {
     if (shutdown) {
       return;
     }
+    shutdown = true;
+    connectivityMonitor.shutdown();
+    // The analytics thread drains the buffer before it shuts down the rest.
+    handler.sendMessage(handler.obtainMessage(REQUEST_SHUTDOWN));
+  }
+
+  void performShutdown() {
+    performDrain();
     integrationManager.shutdown();
     stats.shutdown();
     dispatcher.shutdown();
-    shutdown = true;
+    quitThread(analyticsThread);
   }
 
   public interface OnIntegrationReadyListener {
@@ -571,11 +928,176 @@ public class Analytics {
     integrationManager.registerIntegrationInitializedListener(onIntegrationReadyListener);
   }
 
+  /**
+   * Hands a call to the analytics thread through {@link #enqueueBuffer}. Only the first call of a
+   * burst sends a message to wake the analytics thread up, which then processes the whole burst.
+   */
+  void dispatchEnqueue(PendingPayload pendingPayload) {
+    if (bufferOverflow == BufferOverflow.BLOCK) {
+      offerBlocking(pendingPayload);
+      return;
+    }
+    if (shutdown) {
+      drop(pendingPayload, "shutdown");
+      return;
+    }
+    if (!enqueueBuffer.offer(pendingPayload)) {
+      if (bufferOverflow == BufferOverflow.SPILL) {
+        handler.sendMessage(handler.obtainMessage(REQUEST_ENQUEUE, pendingPayload));
+      } else {
+        drop(pendingPayload, String.format("bufferCapacity: %s", enqueueBuffer.capacity()));
+      }
+      return;
+    }
+    scheduleDrain();
+  }
+
+  /**
+   * Waits for room in {@link #enqueueBuffer}. Gives up once this instance is shut down, since
+   * nothing drains the buffer then, and spills the call if the analytics thread hasn't made room
+   * in time, so that a stuck thread can't hang the caller.
+   */
+  private void offerBlocking(PendingPayload pendingPayload) {
+    long start = System.nanoTime();
+    while (!enqueueBuffer.offer(pendingPayload)) {
+      if (shutdown) {
+        drop(pendingPayload, "shutdown");
+        return;
+      }
+      if (System.nanoTime() - start > BLOCK_TIMEOUT_NANOS) {
+        handler.sendMessage(handler.obtainMessage(REQUEST_ENQUEUE, pendingPayload));
+        return;
+      }
+      scheduleDrain();
+      LockSupport.parkNanos(BLOCK_PARK_NANOS);
+    }
+    scheduleDrain();
+  }
+
+  private void drop(PendingPayload pendingPayload, String reason) {
+    if (loggingEnabled) {
+      debug(OWNER_MAIN, VERB_DROP,
+          pendingPayload == LOGOUT ? "logout" : pendingPayload.type.toString(), reason);
+    }
+    stats.dispatchDrop(1);
+  }
+
+  private void scheduleDrain() {
+    // getAndSet orders the offer before it, so a drain that clears the flag after this will see
+    // the call, and a drain that cleared it before lets this schedule another one.
+    if (!drainScheduled.getAndSet(true)) {
+      handler.sendMessage(handler.obtainMessage(REQUEST_DRAIN));
+    }
+  }
+
+  /**
+   * Processes the calls waiting in {@link #enqueueBuffer}, and hands the events built from them to
+   * the dispatcher in a single message.
+   */
+  void performDrain() {
+    drainScheduled.set(false);
+    List<BasePayload> payloads = null;
+    PendingPayload pendingPayload;
+    while ((pendingPayload = enqueueBuffer.poll()) != null) {
+      if (pendingPayload == LOGOUT) {
+        performLogout();
+        continue;
+      }
+      BasePayload payload = createPayload(pendingPayload);
+      if (loggingEnabled) {
+        debug(OWNER_MAIN, VERB_CREATE, payload.id(), "type: " + payload.type());
+      }
+      integrationManager.submit(payload);
+      if (payloads == null) payloads = new ArrayList<BasePayload>();
+      payloads.add(payload);
+    }
+    if (payloads != null) dispatcher.dispatchEnqueue(payloads);
+  }
+
+  /** Builds and submits the payload for a call that spilled over {@link #enqueueBuffer}. */
+  void performEnqueue(PendingPayload pendingPayload) {
+    if (pendingPayload == LOGOUT) {
+      performLogout();
+    } else {
+      submit(createPayload(pendingPayload));
+    }
+  }
+
+  /**
+   * Updates the user's traits and builds the payload for a call, in the order the calls were
+   * made.
+   */
+  BasePayload createPayload(PendingPayload pendingPayload) {
+    Traits traits = traitsCache.get();
+    String messageId = messageIdGenerator.generateMessageId();
+    long timestamp = pendingPayload.timestamp;
+    Options options = pendingPayload.options;
+    BasePayload payload;
+    switch (pendingPayload.type) {
+      case identify:
+        if (!isNullOrEmpty(pendingPayload.userId)) {
+          traits.putUserId(pendingPayload.userId);
+          analyticsContext.putTraits(traits);
+        }
+        mergeTraits(traits, pendingPayload.traits);
+        payload = new IdentifyPayload(messageId, timestamp, traits.anonymousId(),
+            analyticsContext, traits.userId(), traits, options);
+        break;
+      case group:
+        String userId = pendingPayload.userId;
+        if (isNullOrEmpty(userId)) {
+          userId = traits.userId();
+        }
+        mergeTraits(traits, pendingPayload.traits);
+        payload = new GroupPayload(messageId, timestamp, traits.anonymousId(), analyticsContext,
+            userId, pendingPayload.name, traits, options);
+        break;
+      case track:
+        payload = new TrackPayload(messageId, timestamp, traits.anonymousId(), analyticsContext,
+            traits.userId(), pendingPayload.name, pendingPayload.properties, options);
+        break;
+      case screen:
+        payload = new ScreenPayload(messageId, timestamp, traits.anonymousId(), analyticsContext,
+            traits.userId(), pendingPayload.category, pendingPayload.name,
+            pendingPayload.properties, options);
+        break;
+      case alias:
+        String previousId = pendingPayload.name;
+        if (isNullOrEmpty(previousId)) {
+          previousId = traits.userId();
+        }
+        payload = new AliasPayload(messageId, timestamp, traits.anonymousId(), analyticsContext,
+            traits.userId(), previousId, options);
+        break;
+      default:
+        throw new AssertionError("Unknown payload type: " + pendingPayload.type);
+    }
+    payload.enqueuedAt = pendingPayload.enqueuedAt;
+    return payload;
+  }
+
+  private void mergeTraits(Traits traits, Traits newTraits) {
+    if (!isNullOrEmpty(newTraits)) {
+      traits.merge(newTraits);
+      traitsCache.save();
+      analyticsContext.putTraits(traits);
+    }
+  }
+
+  void performLogout() {
+    traitsCache.delete(application);
+    analyticsContext.putTraits(traitsCache.get());
+  }
+
+  void performNetworkChanged() {
+    analyticsContext.putNetwork(application);
+  }
+
   void submit(BasePayload payload) {
     if (loggingEnabled) {
       debug(OWNER_MAIN, VERB_CREATE, payload.id(), "type: " + payload.type());
     }
-    dispatcher.dispatchEnqueue(payload);
+    dispatcher.dispatchEnqueue(Collections.singletonList(payload));
     integrationManager.submit(payload);
   }
 
@@ -586,4 +1108,67 @@ public class Analytics {
     }
     integrationManager.submit(payload);
   }
+
+  /**
+   * The arguments of a call, captured on the caller's thread. Building the payload from them is
+   * left to the analytics thread, so that calls from the main thread return quickly. The traits
+   * and properties are not copied, so they shouldn't be changed once they've been passed in. The
+   * context isn't captured either: it's also changed on the analytics thread by earlier calls,
+   * such as identify, whose changes later events must include.
+   */
+  static class PendingPayload {
+    final BasePayload.Type type;
+    final long timestamp;
+    /** The user id for identify and group. */
+    final String userId;
+    /** The event for track, name for screen, group id for group and previous id for alias. */
+    final String name;
+    final String category;
+    final Traits traits;
+    final Properties properties;
+    final Options options;
+    /** When the call was made, as a {@link System#nanoTime()}. */
+    final long enqueuedAt;
+
+    PendingPayload(BasePayload.Type type, String userId, String name, String category,
+        Traits traits, Properties properties, Options options) {
+      this.type = type;
+      this.timestamp = System.currentTimeMillis();
+      this.enqueuedAt = System.nanoTime();
+      this.userId = userId;
+      this.name = name;
+      this.category = category;
+      this.traits = traits;
+      this.properties = properties;
+      this.options = options;
+    }
+  }
+
+  private static class AnalyticsHandler extends Handler {
+    private final Analytics analytics;
+
+    AnalyticsHandler(Looper looper, Analytics analytics) {
+      super(looper);
+      this.analytics = analytics;
+    }
+
+    @Override public void handleMessage(Message msg) {
+      switch (msg.what) {
+        case REQUEST_ENQUEUE:
+          analytics.performEnqueue((PendingPayload) msg.obj);
+          break;
+        case REQUEST_DRAIN:
+          analytics.performDrain();
+          break;
+        case REQUEST_NETWORK_CHANGED:
+          analytics.performNetworkChanged();
+          break;
+        case REQUEST_SHUTDOWN:
+          analytics.performShutdown();
+          break;
+        default:
+          panic("Unknown analytics message." + msg.what);
+      }
+    }
+  }
 }
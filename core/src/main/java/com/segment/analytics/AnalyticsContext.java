@@ -34,6 +34,7 @@ import android.telephony.TelephonyManager;
 import android.util.DisplayMetrics;
 import android.view.Display;
 import android.view.WindowManager;
+import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -119,6 +120,11 @@ public class AnalyticsContext extends JsonMap {
   // String idfa;
   // String adTrackingEnabled;
 
+  /** Incremented by every change, so that the encoded context is only rebuilt when needed. */
+  private int version;
+  private int encodedVersion;
+  private byte[] encoded;
+
   AnalyticsContext(Context context, Traits traits) {
     // todo: kick off task to get AdvertisingId
     putApp(context);
@@ -138,6 +144,40 @@ public class AnalyticsContext extends JsonMap {
     super(delegate);
   }
 
+  @Override public synchronized Object put(String key, Object value) {
+    version++;
+    return super.put(key, value);
+  }
+
+  @Override public synchronized void putAll(Map<? extends String, ?> map) {
+    version++;
+    super.putAll(map);
+  }
+
+  @Override public synchronized Object remove(Object key) {
+    version++;
+    return super.remove(key);
+  }
+
+  @Override public synchronized void clear() {
+    version++;
+    super.clear();
+  }
+
+  /**
+   * Returns this context in the {@link BinaryJson} encoding. The encoding is cached until the
+   * context is changed, so payloads share it instead of each walking the context again, and it
+   * is taken while the context can't be changed, so a payload never sees half of a change.
+   * Changes made to nested maps in place aren't noticed; put the map again after changing it.
+   */
+  synchronized byte[] encoded() throws IOException {
+    if (encoded == null || encodedVersion != version) {
+      encoded = BinaryJson.encode(this);
+      encodedVersion = version;
+    }
+    return encoded;
+  }
+
   private static String getDensityString(DisplayMetrics displayMetrics) {
     switch (displayMetrics.densityDpi) {
       case DisplayMetrics.DENSITY_LOW:
@@ -286,7 +326,8 @@ public class AnalyticsContext extends JsonMap {
   }
 
   @Override
-  public AnalyticsContext putValue(String key, Object value) {
+  public synchronized AnalyticsContext putValue(String key, Object value) {
+    version++;
     super.putValue(key, value);
     return this;
   }
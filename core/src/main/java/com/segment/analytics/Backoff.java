@@ -0,0 +1,105 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+import android.content.SharedPreferences;
+import java.util.Random;
+
+import static com.segment.analytics.Utils.isNullOrEmpty;
+
+/**
+ * Exponential backoff with full jitter between failed uploads. Each failure doubles the interval
+ * up to {@link #MAX_INTERVAL_MILLIS}, and the delay is picked at random from zero up to that
+ * interval, so that devices that failed together don't retry together. The state is persisted, so
+ * that relaunching the app doesn't start over at the shortest interval.
+ */
+class Backoff {
+  static final long INITIAL_INTERVAL_MILLIS = 5 * 1000; // 5 seconds
+  static final long MAX_INTERVAL_MILLIS = 15 * 60 * 1000; // 15 minutes
+  private static final String BACKOFF_CACHE_PREFIX = "backoff-";
+
+  private final StringCache stringCache;
+  private final Random random;
+  /** Number of uploads that have failed in a row. */
+  private int attempts;
+  /** Wall clock time before which uploads shouldn't be attempted, since it survives reboots. */
+  private long nextAttemptAt;
+
+  static Backoff create(SharedPreferences preferences, String tag) {
+    return new Backoff(new StringCache(preferences, BACKOFF_CACHE_PREFIX + tag), new Random());
+  }
+
+  Backoff(StringCache stringCache, Random random) {
+    this.stringCache = stringCache;
+    this.random = random;
+    String state = stringCache.get();
+    if (!isNullOrEmpty(state)) {
+      int separator = state.indexOf(':');
+      try {
+        attempts = Integer.parseInt(state.substring(0, separator));
+        nextAttemptAt = Long.parseLong(state.substring(separator + 1));
+      } catch (RuntimeException e) {
+        attempts = 0;
+        nextAttemptAt = 0;
+      }
+    }
+  }
+
+  int attempts() {
+    return attempts;
+  }
+
+  /**
+   * Returns how long to wait before the next attempt, in milliseconds. This is never longer than
+   * {@link #MAX_INTERVAL_MILLIS}, even if the clock was turned back.
+   */
+  long remaining(long now) {
+    return Math.max(0, Math.min(nextAttemptAt - now, MAX_INTERVAL_MILLIS));
+  }
+
+  /**
+   * Records a failed attempt and returns how long to wait before the next one, in milliseconds.
+   * The server can ask for a longer wait with {@code retryAfterMillis}, -1 if it didn't, which is
+   * honored up to {@link #MAX_INTERVAL_MILLIS}.
+   */
+  long fail(long now, long retryAfterMillis) {
+    long interval = INITIAL_INTERVAL_MILLIS << Math.min(attempts, 20);
+    interval = Math.min(interval, MAX_INTERVAL_MILLIS);
+    long delay = (long) (random.nextDouble() * interval);
+    delay = Math.min(Math.max(delay, retryAfterMillis), MAX_INTERVAL_MILLIS);
+    attempts++;
+    nextAttemptAt = now + delay;
+    stringCache.set(attempts + ":" + nextAttemptAt);
+    return delay;
+  }
+
+  /** Records a successful attempt, which starts the next failure at the shortest interval. */
+  void reset() {
+    if (attempts == 0 && nextAttemptAt == 0) return;
+    attempts = 0;
+    nextAttemptAt = 0;
+    stringCache.delete();
+  }
+}
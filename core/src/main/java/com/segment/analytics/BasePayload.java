@@ -24,8 +24,8 @@
 
 package com.segment.analytics;
 
-import java.util.Date;
-import java.util.UUID;
+import java.io.IOException;
+import java.util.Map;
 
 import static com.segment.analytics.Utils.toISO8601Date;
 
@@ -92,21 +92,49 @@ class BasePayload extends JsonMap implements IntegrationManager.IntegrationOpera
    */
   private static final String USER_ID_KEY = "userId";
 
-  BasePayload(Type type, String anonymousId, AnalyticsContext context, String userId,
-      Options options) {
-    put(MESSAGE_ID, UUID.randomUUID().toString());
+  /**
+   * The context as it was when the payload was created, in the {@link BinaryJson} encoding, or
+   * null if it couldn't be encoded or the payload was deserialized.
+   */
+  private final byte[] encodedContext;
+  /**
+   * When the payload was handed to the dispatcher, as a {@link System#nanoTime()}, or 0 if it
+   * wasn't. Only used to measure how long payloads take to reach the disk queue.
+   */
+  long enqueuedAt;
+
+  BasePayload(Type type, String messageId, long timestamp, String anonymousId,
+      AnalyticsContext context, String userId, Options options) {
+    byte[] encodedContext = null;
+    try {
+      encodedContext = context.encoded();
+    } catch (IOException ignored) {
+      // The context is encoded again when the payload is written, which reports the error.
+    }
+    this.encodedContext = encodedContext;
+    put(MESSAGE_ID, messageId);
     put(TYPE_KEY, type);
     put(CHANNEL_KEY, Channel.mobile);
     put(ANONYMOUS_ID_KEY, anonymousId);
     put(CONTEXT_KEY, context);
     put(USER_ID_KEY, userId);
-    put(TIMESTAMP_KEY, options.timestamp() == null ? toISO8601Date(new Date())
+    put(TIMESTAMP_KEY, options.timestamp() == null ? toISO8601Date(timestamp)
         : toISO8601Date(options.timestamp()));
     put(INTEGRATIONS_KEY, options.integrations());
   }
 
   BasePayload(String json) {
     super(json);
+    encodedContext = null;
+  }
+
+  BasePayload(Map<String, Object> map) {
+    super(map);
+    encodedContext = null;
+  }
+
+  byte[] encodedContext() {
+    return encodedContext;
   }
 
   JsonMap integrations() {
@@ -0,0 +1,449 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding for json values. Every value starts with a one byte tag; strings,
+ * maps and lists are prefixed with their length, and integers and lengths are varints. Map keys
+ * and strings that appear in {@link #DICTIONARY} are written as an index into it, so the keys
+ * that every payload repeats take up a byte each.
+ *
+ * <p>Values are converted the same way {@link JsonUtils} converts them: maps and lists are
+ * written as such, numbers and booleans as themselves, and anything else as its string value.
+ */
+class BinaryJson {
+  private static final int TAG_NULL = 0;
+  private static final int TAG_TRUE = 1;
+  private static final int TAG_FALSE = 2;
+  /** A zig-zag encoded varint. */
+  private static final int TAG_LONG = 3;
+  /** The 8 bytes of a double. */
+  private static final int TAG_DOUBLE = 4;
+  /** Any other number, as its decimal string. */
+  private static final int TAG_NUMBER = 5;
+  /** A varint length followed by UTF-8 bytes. */
+  private static final int TAG_STRING = 6;
+  /** A varint index into the dictionary. */
+  private static final int TAG_STRING_REF = 7;
+  /** A varint entry count, followed by a key and value for each entry. */
+  private static final int TAG_MAP = 8;
+  /** A varint element count, followed by the elements. */
+  private static final int TAG_LIST = 9;
+
+  /**
+   * Strings that are written as an index. Map keys are written as the index plus one, or zero
+   * followed by the key. Records refer to this table by position, so strings may only ever be
+   * appended to it.
+   */
+  private static final String[] DICTIONARY = {
+      // Payloads
+      "anonymousId", "channel", "context", "integrations", "messageId", "timestamp", "type",
+      "userId", "event", "properties", "name", "category", "groupId", "previousId", "traits",
+      // Context
+      "app", "version", "packageName", "versionCode", "versionName", "build", "campaign",
+      "source", "medium", "term", "content", "device", "manufacturer", "model", "brand", "token",
+      "library", "location", "latitude", "longitude", "speed", "network", "bluetooth", "carrier",
+      "cellular", "wifi", "os", "sdk", "referrer", "link", "url", "screen", "density", "height",
+      "width", "densityDpi", "densityBucket", "scaledDensity", "locale", "timezone", "userAgent",
+      // Traits and properties
+      "id", "address", "city", "country", "postalCode", "state", "street", "avatar", "createdAt",
+      "description", "email", "fax", "phone", "website", "age", "birthday", "firstName",
+      "gender", "lastName", "title", "username", "employees", "industry", "revenue", "value",
+      "currency", "path", "referer", "orderId", "total", "subtotal", "shipping", "tax",
+      "discount", "coupon", "products", "sku", "price",
+      // Values
+      "mobile", "alias", "group", "identify", "track", "All", "analytics-android",
+  };
+  private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<String, Integer>();
+
+  static {
+    for (int i = 0; i < DICTIONARY.length; i++) {
+      DICTIONARY_INDEX.put(DICTIONARY[i], i);
+    }
+  }
+
+  private BinaryJson() {
+    throw new AssertionError("No instances");
+  }
+
+  /** Writes the encoded map to the stream. */
+  static void write(Map<?, ?> map, OutputStream out) throws IOException {
+    Encoder encoder = new Encoder();
+    encoder.writeValue(map);
+    out.write(encoder.buffer, 0, encoder.position);
+  }
+
+  /** Returns the encoded map. */
+  static byte[] encode(Map<?, ?> map) throws IOException {
+    Encoder encoder = new Encoder();
+    encoder.writeValue(map);
+    byte[] encoded = new byte[encoder.position];
+    System.arraycopy(encoder.buffer, 0, encoded, 0, encoder.position);
+    return encoded;
+  }
+
+  /**
+   * Writes the encoded map to the stream, with the value of {@code key} replaced by a value that
+   * is encoded already, such as one returned by {@link #encode}. If {@code encodedValue} is null,
+   * the key is left out instead.
+   */
+  static void write(Map<?, ?> map, String key, byte[] encodedValue, OutputStream out)
+      throws IOException {
+    Encoder encoder = new Encoder();
+    encoder.writeMap(map, key, encodedValue);
+    out.write(encoder.buffer, 0, encoder.position);
+  }
+
+  /** Decodes a map from {@code length} bytes starting at {@code offset}. */
+  @SuppressWarnings("unchecked")
+  static Map<String, Object> readMap(byte[] bytes, int offset, int length) throws IOException {
+    Decoder decoder = new Decoder(bytes, offset, length);
+    Object value = decoder.readValue();
+    if (!(value instanceof Map)) throw new IOException("Encoded value is not a map.");
+    return (Map<String, Object>) value;
+  }
+
+  /**
+   * Writes the json for the value encoded in {@code length} bytes starting at {@code offset}.
+   * Strings are copied to the writer in their encoded form, without being decoded.
+   */
+  static void toJson(byte[] bytes, int offset, int length, JsonStreamWriter writer)
+      throws IOException {
+    new Decoder(bytes, offset, length).transcode(writer);
+  }
+
+  private static class Encoder {
+    byte[] buffer = new byte[256];
+    int position;
+
+    private void ensureCapacity(int count) {
+      if (position + count > buffer.length) {
+        byte[] newBuffer = new byte[Math.max(buffer.length << 1, position + count)];
+        System.arraycopy(buffer, 0, newBuffer, 0, position);
+        buffer = newBuffer;
+      }
+    }
+
+    private void writeByte(int b) {
+      ensureCapacity(1);
+      buffer[position++] = (byte) b;
+    }
+
+    private void writeVarint(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7FL) != 0) {
+        buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[position++] = (byte) value;
+    }
+
+    private void writeBytes(byte[] bytes) {
+      writeVarint(bytes.length);
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, buffer, position, bytes.length);
+      position += bytes.length;
+    }
+
+    private void writeString(String value) throws UnsupportedEncodingException {
+      Integer index = DICTIONARY_INDEX.get(value);
+      if (index != null) {
+        writeByte(TAG_STRING_REF);
+        writeVarint(index);
+      } else {
+        writeByte(TAG_STRING);
+        writeBytes(value.getBytes("UTF-8"));
+      }
+    }
+
+    private void writeKey(String key) throws UnsupportedEncodingException {
+      Integer index = DICTIONARY_INDEX.get(key);
+      if (index != null) {
+        writeVarint(index + 1);
+      } else {
+        writeVarint(0);
+        writeBytes(key.getBytes("UTF-8"));
+      }
+    }
+
+    void writeMap(Map<?, ?> map, String key, byte[] encodedValue) throws IOException {
+      boolean omitted = key != null && encodedValue == null && map.containsKey(key);
+      writeByte(TAG_MAP);
+      writeVarint(omitted ? map.size() - 1 : map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        String name = String.valueOf(entry.getKey());
+        if (key != null && key.equals(name)) {
+          if (encodedValue == null) continue;
+          writeKey(name);
+          ensureCapacity(encodedValue.length);
+          System.arraycopy(encodedValue, 0, buffer, position, encodedValue.length);
+          position += encodedValue.length;
+        } else {
+          writeKey(name);
+          writeValue(entry.getValue());
+        }
+      }
+    }
+
+    void writeValue(Object value) throws IOException {
+      if (value == null) {
+        writeByte(TAG_NULL);
+      } else if (value instanceof Boolean) {
+        writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+      } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+          || value instanceof Byte) {
+        long l = ((Number) value).longValue();
+        writeByte(TAG_LONG);
+        writeVarint((l << 1) ^ (l >> 63));
+      } else if (value instanceof Double) {
+        double d = (Double) value;
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+          throw new IOException("Numeric values must be finite, but was " + d);
+        }
+        long bits = Double.doubleToLongBits(d);
+        writeByte(TAG_DOUBLE);
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+          buffer[position++] = (byte) (bits >>> shift);
+        }
+      } else if (value instanceof Number) {
+        String text = value.toString();
+        try {
+          new BigDecimal(text);
+        } catch (NumberFormatException e) {
+          throw new IOException("Numeric values must be finite, but was " + text);
+        }
+        writeByte(TAG_NUMBER);
+        writeBytes(text.getBytes("UTF-8"));
+      } else if (value instanceof Map) {
+        writeMap((Map<?, ?>) value, null, null);
+      } else if (value instanceof List) {
+        List<?> list = (List<?>) value;
+        writeByte(TAG_LIST);
+        writeVarint(list.size());
+        for (Object element : list) {
+          writeValue(element);
+        }
+      } else {
+        writeString(String.valueOf(value));
+      }
+    }
+  }
+
+  private static class Decoder {
+    private final byte[] bytes;
+    private final int limit;
+    private int position;
+
+    Decoder(byte[] bytes, int offset, int length) {
+      this.bytes = bytes;
+      this.position = offset;
+      this.limit = offset + length;
+    }
+
+    private void require(int count) throws IOException {
+      if (count < 0 || count > limit - position) {
+        throw new IOException("Encoded value is truncated at " + position);
+      }
+    }
+
+    private int readByte() throws IOException {
+      require(1);
+      return bytes[position++] & 0xff;
+    }
+
+    private long readVarint() throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) return value;
+      }
+      throw new IOException("Malformed varint at " + position);
+    }
+
+    /**
+     * Reads a string length or an element count. Every element takes at least a byte, so neither
+     * can be negative or go past the end of the input.
+     */
+    private int readLength() throws IOException {
+      long length = readVarint();
+      if (length < 0) throw new IOException("Malformed length " + length + " at " + position);
+      if (length > limit - position) {
+        throw new IOException("Encoded value is truncated at " + position);
+      }
+      return (int) length;
+    }
+
+    private String readUtf8() throws IOException {
+      int length = readLength();
+      String value = new String(bytes, position, length, "UTF-8");
+      position += length;
+      return value;
+    }
+
+    private String dictionary(long index) throws IOException {
+      if (index < 0 || index >= DICTIONARY.length) {
+        throw new IOException("Unknown dictionary index " + index);
+      }
+      return DICTIONARY[(int) index];
+    }
+
+    private String readKey() throws IOException {
+      long index = readVarint();
+      return index == 0 ? readUtf8() : dictionary(index - 1);
+    }
+
+    private long readLong() throws IOException {
+      long value = readVarint();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    private double readDouble() throws IOException {
+      require(8);
+      long bits = 0;
+      for (int i = 0; i < 8; i++) {
+        bits = (bits << 8) | (bytes[position++] & 0xff);
+      }
+      return Double.longBitsToDouble(bits);
+    }
+
+    private BigDecimal readNumber() throws IOException {
+      try {
+        return new BigDecimal(readUtf8());
+      } catch (NumberFormatException e) {
+        throw new IOException("Malformed number at " + position);
+      }
+    }
+
+    Object readValue() throws IOException {
+      int tag = readByte();
+      switch (tag) {
+        case TAG_NULL:
+          return null;
+        case TAG_TRUE:
+          return true;
+        case TAG_FALSE:
+          return false;
+        case TAG_LONG:
+          return readLong();
+        case TAG_DOUBLE:
+          return readDouble();
+        case TAG_NUMBER:
+          return readNumber();
+        case TAG_STRING:
+          return readUtf8();
+        case TAG_STRING_REF:
+          return dictionary(readVarint());
+        case TAG_MAP:
+          int size = readLength();
+          Map<String, Object> map = new LinkedHashMap<String, Object>();
+          for (int i = 0; i < size; i++) {
+            String key = readKey();
+            map.put(key, readValue());
+          }
+          return map;
+        case TAG_LIST:
+          int count = readLength();
+          List<Object> list = new ArrayList<Object>(count);
+          for (int i = 0; i < count; i++) {
+            list.add(readValue());
+          }
+          return list;
+        default:
+          throw new IOException("Unknown tag " + tag + " at " + (position - 1));
+      }
+    }
+
+    /** Writes the next value to the json writer, without building objects for maps and lists. */
+    void transcode(JsonStreamWriter writer) throws IOException {
+      int tag = readByte();
+      switch (tag) {
+        case TAG_NULL:
+          writer.nullValue();
+          break;
+        case TAG_TRUE:
+          writer.value(true);
+          break;
+        case TAG_FALSE:
+          writer.value(false);
+          break;
+        case TAG_LONG:
+          writer.value(readLong());
+          break;
+        case TAG_DOUBLE:
+          writer.value(readDouble());
+          break;
+        case TAG_NUMBER:
+          writer.value(readNumber());
+          break;
+        case TAG_STRING:
+          int length = readLength();
+          writer.value(bytes, position, length);
+          position += length;
+          break;
+        case TAG_STRING_REF:
+          writer.value(dictionary(readVarint()));
+          break;
+        case TAG_MAP:
+          int size = readLength();
+          writer.beginObject();
+          for (int i = 0; i < size; i++) {
+            long index = readVarint();
+            if (index == 0) {
+              int keyLength = readLength();
+              writer.name(bytes, position, keyLength);
+              position += keyLength;
+            } else {
+              writer.name(dictionary(index - 1));
+            }
+            transcode(writer);
+          }
+          writer.endObject();
+          break;
+        case TAG_LIST:
+          int count = readLength();
+          writer.beginArray();
+          for (int i = 0; i < count; i++) {
+            transcode(writer);
+          }
+          writer.endArray();
+          break;
+        default:
+          throw new IOException("Unknown tag " + tag + " at " + (position - 1));
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.segment.analytics;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static android.Manifest.permission.ACCESS_NETWORK_STATE;
+import static android.net.ConnectivityManager.CONNECTIVITY_ACTION;
+import static com.segment.analytics.Utils.getConnection;
+import static com.segment.analytics.Utils.hasPermission;
+
+/**
+ * Keeps track of the network connection through a single {@link
+ * android.net.ConnectivityManager#CONNECTIVITY_ACTION} receiver, so that callers can read the
+ * connection without asking the system service each time, and are told when it changes instead of
+ * polling for it. Without the {@code ACCESS_NETWORK_STATE} permission the connection is always
+ * {@link FlushPolicy.Connection#UNKNOWN}, and no receiver is registered.
+ */
+class ConnectivityMonitor {
+  interface Listener {
+    /**
+     * Called on the main thread when the connection changed. {@code reconnected} is true if the
+     * device was offline before.
+     */
+    void onConnectivityChanged(FlushPolicy.Connection connection, boolean reconnected);
+  }
+
+  final Context context;
+  final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+  private final BroadcastReceiver receiver;
+  private volatile FlushPolicy.Connection connection;
+
+  ConnectivityMonitor(Context context) {
+    this.context = context;
+    connection = getConnection(context);
+    if (hasPermission(context, ACCESS_NETWORK_STATE)) {
+      receiver = new BroadcastReceiver() {
+        @Override public void onReceive(Context context, Intent intent) {
+          setConnection(getConnection(ConnectivityMonitor.this.context));
+        }
+      };
+      context.registerReceiver(receiver, new IntentFilter(CONNECTIVITY_ACTION));
+    } else {
+      receiver = null;
+    }
+  }
+
+  /** Returns the connection as of the last broadcast. */
+  FlushPolicy.Connection connection() {
+    return connection;
+  }
+
+  /**
+   * Returns true if the device is connected to a network, or if we don't have the permission to
+   * know.
+   */
+  boolean isConnected() {
+    return connection != FlushPolicy.Connection.NONE;
+  }
+
+  void setConnection(FlushPolicy.Connection connection) {
+    FlushPolicy.Connection previous = this.connection;
+    if (connection == previous) return;
+    this.connection = connection;
+    boolean reconnected = previous == FlushPolicy.Connection.NONE;
+    for (Listener listener : listeners) {
+      listener.onConnectivityChanged(connection, reconnected);
+    }
+  }
+
+  void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  void shutdown() {
+    listeners.clear();
+    if (receiver != null) {
+      context.unregisterReceiver(receiver);
+    }
+  }
+}
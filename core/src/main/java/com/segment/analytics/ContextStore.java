@@ -0,0 +1,182 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores snapshots of the {@link AnalyticsContext} next to the queue, so that queued payloads can
+ * refer to the context they were created with instead of each carrying a copy of it. Snapshots
+ * are stored in their {@link BinaryJson} encoding, one file each, and named by a hash of their
+ * contents: a context that changes gets a new snapshot, and an unchanged one is stored only once.
+ */
+class ContextStore {
+  /** Length of a snapshot id, in ASCII characters. */
+  static final int ID_LENGTH = 16;
+  private static final int MAX_CACHED = 8;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final File directory;
+  /** Ids of the snapshots on disk. */
+  private final Set<String> ids = new HashSet<String>();
+  /** Recently used snapshots, by id. */
+  private final Map<String, byte[]> cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+    @Override protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+      return size() > MAX_CACHED;
+    }
+  };
+  private final MessageDigest digest;
+  /** Id of the snapshot that was stored last. */
+  private String latestId;
+  /** The encoded context that was stored last by {@link #put(byte[])}. */
+  private byte[] latestEncoded;
+
+  ContextStore(File directory) throws IOException {
+    this.directory = directory;
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory " + directory);
+    }
+    String[] names = directory.list();
+    if (names == null) throw new IOException("Unable to list directory " + directory);
+    for (String name : names) {
+      if (name.length() == ID_LENGTH) {
+        ids.add(name);
+      } else {
+        // A snapshot that was never completely written.
+        new File(directory, name).delete();
+      }
+    }
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-1 is not available.", e);
+    }
+  }
+
+  /**
+   * Stores an encoded context that will not change anymore, such as the one cached by {@link
+   * AnalyticsContext#encoded()}. Storing the same array again returns its id without hashing it.
+   */
+  synchronized String put(byte[] encoded) throws IOException {
+    if (encoded == latestEncoded && ids.contains(latestId)) return latestId;
+    String id = put(encoded, encoded.length);
+    latestEncoded = encoded;
+    return id;
+  }
+
+  /** Stores the encoded context unless an identical one is stored already, and returns its id. */
+  synchronized String put(byte[] encoded, int length) throws IOException {
+    digest.reset();
+    digest.update(encoded, 0, length);
+    byte[] hash = digest.digest();
+    char[] chars = new char[ID_LENGTH];
+    for (int i = 0; i < ID_LENGTH / 2; i++) {
+      chars[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+      chars[2 * i + 1] = HEX[hash[i] & 0xf];
+    }
+    String id = new String(chars);
+    latestId = id;
+    latestEncoded = null;
+    if (ids.contains(id)) return id;
+
+    // Write to a temp file and rename, so a snapshot is either complete or missing.
+    File tempFile = new File(directory, id + ".tmp");
+    FileOutputStream out = new FileOutputStream(tempFile);
+    try {
+      out.write(encoded, 0, length);
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!tempFile.renameTo(new File(directory, id))) {
+      throw new IOException("Unable to store context " + id);
+    }
+    ids.add(id);
+    byte[] copy = new byte[length];
+    System.arraycopy(encoded, 0, copy, 0, length);
+    cache.put(id, copy);
+    return id;
+  }
+
+  /** Returns the encoded context with the given id, or null if there is none. */
+  synchronized byte[] get(String id) throws IOException {
+    byte[] encoded = cache.get(id);
+    if (encoded != null || !ids.contains(id)) return encoded;
+
+    File file = new File(directory, id);
+    encoded = new byte[(int) file.length()];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      int offset = 0;
+      while (offset < encoded.length) {
+        int read = in.read(encoded, offset, encoded.length - offset);
+        if (read == -1) throw new IOException("Context " + id + " is truncated.");
+        offset += read;
+      }
+    } finally {
+      in.close();
+    }
+    cache.put(id, encoded);
+    return encoded;
+  }
+
+  /** Returns the number of snapshots on disk. */
+  synchronized int size() {
+    return ids.size();
+  }
+
+  /**
+   * Deletes every snapshot other than the one stored last. Only call this when no queued payload
+   * refers to an older snapshot, i.e. when the queue is empty.
+   */
+  synchronized void retainLatest() {
+    retain(Collections.<String>emptySet());
+  }
+
+  /**
+   * Deletes every snapshot other than the one stored last and the given ones. Only call this with
+   * the ids of all the snapshots queued payloads refer to, and without storing snapshots or
+   * queueing payloads in between.
+   */
+  synchronized void retain(Set<String> referenced) {
+    for (String id : new HashSet<String>(ids)) {
+      if (id.equals(latestId) || referenced.contains(id)) continue;
+      if (new File(directory, id).delete()) {
+        ids.remove(id);
+        cache.remove(id);
+      }
+    }
+  }
+}
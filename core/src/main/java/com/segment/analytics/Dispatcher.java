@@ -25,86 +25,470 @@
 package com.segment.analytics;
 
 import android.content.Context;
+import android.content.Intent;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Date;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 import static com.segment.analytics.Utils.OWNER_DISPATCHER;
+import static com.segment.analytics.Utils.VERB_CREATE;
+import static com.segment.analytics.Utils.VERB_DROP;
 import static com.segment.analytics.Utils.VERB_ENQUEUE;
 import static com.segment.analytics.Utils.VERB_FLUSH;
+import static com.segment.analytics.Utils.VERB_SYNC;
 import static com.segment.analytics.Utils.debug;
 import static com.segment.analytics.Utils.error;
-import static com.segment.analytics.Utils.isConnected;
+import static com.segment.analytics.Utils.getBatteryLevel;
+import static com.segment.analytics.Utils.getBatteryStatus;
+import static com.segment.analytics.Utils.getSharedPreferences;
+import static com.segment.analytics.Utils.isCharging;
 import static com.segment.analytics.Utils.panic;
 import static com.segment.analytics.Utils.quitThread;
-import static com.segment.analytics.Utils.toISO8601Date;
 
-class Dispatcher {
+class Dispatcher implements ConnectivityMonitor.Listener {
   static final int REQUEST_ENQUEUE = 0;
   static final int REQUEST_FLUSH = 1;
+  static final int REQUEST_SYNC = 2;
+  static final int REQUEST_RETAIN_CONTEXTS = 3;
+  static final int REQUEST_OPEN = 4;
 
   private static final String DISPATCHER_THREAD_NAME = Utils.THREAD_PREFIX + "Dispatcher";
+  private static final String UPLOADER_THREAD_NAME = Utils.THREAD_PREFIX + "Uploader";
   private static final String TASK_QUEUE_FILE_NAME = "payload-task-queue-";
+  private static final String TASK_QUEUE_SEGMENTS_NAME = "payload-task-segments-";
+  private static final String CONTEXT_STORE_NAME = "payload-contexts-";
+  private static final String DEAD_LETTERS_FILE_NAME = "payload-dead-letters-";
+  private static final int MIN_THROUGHPUT_SAMPLE_BYTES = 4 * 1024;
 
   final Context context;
+  final ConnectivityMonitor connectivityMonitor;
   final ObjectQueue<BasePayload> queue;
+  final ContextStore contextStore;
+  /** Spaces out retries of failed uploads. Only used by the uploader thread. */
+  final Backoff backoff;
+  /**
+   * File that keeps the json of events the server rejected, or null if they're discarded. Cleared
+   * if the file can't be opened. Only used by the uploader thread.
+   */
+  private File deadLettersFile;
+  /** Opened when the first event is dead lettered. Only used by the uploader thread. */
+  private QueueFile deadLetters;
+  final int maxDeadLetters;
   final SegmentHTTPApi segmentHTTPApi;
   final int maxQueueSize;
+  /** How long events may wait in the queue before a flush, in milliseconds. */
+  final long flushInterval;
+  final FlushPolicy flushPolicy;
+  final int maxRequestSize;
+  final int maxQueueBytes;
+  final Analytics.QueueOverflow queueOverflow;
+  final Durability durability;
   final Stats stats;
   final Handler handler;
   final HandlerThread dispatcherThread;
+  /** Uploads run on their own thread, so that a slow request doesn't hold up queueing. */
+  final Handler uploadHandler;
+  final HandlerThread uploaderThread;
+  /**
+   * Guards removing entries from the head of the queue, which both threads do. The uploader reads
+   * a batch and removes it once it has been sent; the dispatcher drops the eldest entries when
+   * the queue is full.
+   */
+  private final Object headLock = new Object();
+  /**
+   * Guards scheduling flushes, which both threads do, so that there is only ever one flush
+   * pending on {@link #uploadHandler}.
+   */
+  private final Object flushLock = new Object();
+  /** Uptime at which the pending flush is due. Guarded by {@link #flushLock}. */
+  private long flushAt;
+  /** Whether the pending flush was asked for explicitly. Guarded by {@link #flushLock}. */
+  private boolean forceFlush;
+  /** Uptime until which the policy deferred uploads, or 0. Only used by the uploader thread. */
+  private long deferredUntil;
+  /** Average throughput of recent uploads in bytes per second, or -1. Uploader thread only. */
+  private long throughput = -1;
+  /** Number of entries ever removed from the head of the queue. Guarded by {@link #headLock}. */
+  private long removedCount;
+  /**
+   * Number of entries of the last rejected batch that haven't been uploaded or dead lettered yet,
+   * or 0. Batches are kept small until they are gone. Only used by the uploader thread.
+   */
+  private int rejectedRemaining;
+  /** The body of the request being uploaded. Only used by the uploader thread. */
+  private final FileObjectQueue.DirectByteArrayOutputStream batch =
+      new FileObjectQueue.DirectByteArrayOutputStream();
+  private final SegmentHTTPApi.StreamWriter batchWriter = new SegmentHTTPApi.StreamWriter() {
+    @Override public void writeTo(OutputStream out) throws IOException {
+      out.write(batch.getArray(), 0, batch.size());
+    }
+  };
   final boolean loggingEnabled;
   final Map<String, Boolean> integrations;
+  final BatchPayloadWriter batchPayloadWriter;
 
-  static Dispatcher create(Context context, int maxQueueSize, SegmentHTTPApi segmentHTTPApi,
-      Map<String, Boolean> integrations, String tag, Stats stats, boolean loggingEnabled) {
-    FileObjectQueue.Converter<BasePayload> converter = new PayloadConverter();
+  static Dispatcher create(Context context, ConnectivityMonitor connectivityMonitor,
+      int maxQueueSize, long flushInterval, FlushPolicy flushPolicy, int maxRequestSize,
+      int maxQueueBytes, Analytics.QueueOverflow queueOverflow, final Durability durability,
+      final boolean memoryMapped, final int segmentLength, int maxDeadLetters,
+      SegmentHTTPApi segmentHTTPApi, Map<String, Boolean> integrations, final String tag,
+      final Stats stats, final boolean loggingEnabled) {
     try {
-      File parent = context.getFilesDir();
+      final File parent = context.getFilesDir();
       if (!parent.exists()) parent.mkdirs();
-      File queueFile = new File(parent, TASK_QUEUE_FILE_NAME + tag);
-      ObjectQueue<BasePayload> queue = new FileObjectQueue<BasePayload>(queueFile, converter);
-      return new Dispatcher(context, maxQueueSize, segmentHTTPApi, queue, integrations, stats,
-          loggingEnabled);
+      final ContextStore contextStore =
+          new ContextStore(new File(parent, CONTEXT_STORE_NAME + tag));
+      // Recovering and migrating the queue is left to the dispatcher thread.
+      ObjectQueue<BasePayload> queue =
+          new LazyObjectQueue<BasePayload>(new LazyObjectQueue.Opener<BasePayload>() {
+            @Override public ObjectQueue<BasePayload> open() {
+              ObjectQueue<BasePayload> opened =
+                  openQueue(parent, contextStore, durability, memoryMapped, segmentLength, tag,
+                      stats, loggingEnabled);
+              if (opened.size() == 0) contextStore.retainLatest();
+              return opened;
+            }
+          });
+      File deadLettersFile =
+          maxDeadLetters > 0 ? new File(parent, DEAD_LETTERS_FILE_NAME + tag) : null;
+      return new Dispatcher(context, connectivityMonitor, maxQueueSize, flushInterval,
+          flushPolicy, maxRequestSize, maxQueueBytes, queueOverflow, durability, segmentHTTPApi,
+          queue, contextStore,
+          Backoff.create(getSharedPreferences(context), tag), deadLettersFile, maxDeadLetters,
+          integrations, stats, loggingEnabled);
     } catch (IOException e) {
       throw new RuntimeException("Unable to create file queue.", e);
     }
   }
 
-  Dispatcher(Context context, int maxQueueSize, SegmentHTTPApi segmentHTTPApi,
-      ObjectQueue<BasePayload> queue, Map<String, Boolean> integrations, Stats stats,
+  /**
+   * Opens the queue, carrying over the events of the single file queue if segments were enabled
+   * since it was written. Storage that can't be opened is deleted and started over; if that fails
+   * too, events are only kept in memory, so that a broken queue never crashes the app.
+   */
+  private static ObjectQueue<BasePayload> openQueue(File parent, ContextStore contextStore,
+      Durability durability, boolean memoryMapped, int segmentLength, String tag, Stats stats,
+      boolean loggingEnabled) {
+    FileObjectQueue.Converter<BasePayload> converter = new PayloadConverter(contextStore);
+    File queueFile = new File(parent, TASK_QUEUE_FILE_NAME + tag);
+    try {
+      if (segmentLength <= 0) {
+        return openFileQueue(queueFile, converter, durability, memoryMapped, stats,
+            loggingEnabled);
+      }
+      File directory = new File(parent, TASK_QUEUE_SEGMENTS_NAME + tag);
+      SegmentedObjectQueue<BasePayload> queue =
+          openSegmentedQueue(directory, segmentLength, converter, durability, stats,
+              loggingEnabled);
+      if (queueFile.exists()) {
+        migrateFileQueue(queueFile, queue, converter, stats, loggingEnabled);
+      }
+      return queue;
+    } catch (IOException e) {
+      if (loggingEnabled) {
+        error(OWNER_DISPATCHER, VERB_CREATE, "unable to store queue, keeping it in memory", e,
+            "directory: " + parent);
+      }
+      return new MemoryObjectQueue<BasePayload>(converter);
+    }
+  }
+
+  /**
+   * Opens the segmented queue, and reports how long checking it took to stats. Damaged events are
+   * discarded by the queue itself; if the segments can't be opened at all, they are deleted and an
+   * empty queue is started.
+   */
+  private static SegmentedObjectQueue<BasePayload> openSegmentedQueue(File directory,
+      int segmentLength, FileObjectQueue.Converter<BasePayload> converter, Durability durability,
+      Stats stats, boolean loggingEnabled) throws IOException {
+    SegmentedObjectQueue<BasePayload> queue;
+    try {
+      queue = new SegmentedObjectQueue<BasePayload>(directory, segmentLength, converter,
+          durability);
+    } catch (IOException e) {
+      if (loggingEnabled) {
+        error(OWNER_DISPATCHER, VERB_CREATE, "unable to open queue", e, "directory: " + directory);
+      }
+      File[] files = directory.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          if (!file.delete()) throw e;
+        }
+      }
+      queue = new SegmentedObjectQueue<BasePayload>(directory, segmentLength, converter,
+          durability);
+    }
+    if (loggingEnabled && queue.corruptEntries() > 0) {
+      debug(OWNER_DISPATCHER, VERB_CREATE, null,
+          String.format("corrupt events: %s, recovery: %sms", queue.corruptEntries(),
+              queue.recoveryMillis()));
+    }
+    stats.dispatchQueueRecovery(queue.recoveryMillis(), queue.corruptEntries());
+    return queue;
+  }
+
+  /**
+   * Carries over the events queued in the single file queue before segments were enabled.
+   * Entries that can't be read are skipped. If the events can't be written to the new queue, the
+   * file is kept to try again next time.
+   */
+  private static void migrateFileQueue(File queueFile, ObjectQueue<BasePayload> queue,
+      FileObjectQueue.Converter<BasePayload> converter, Stats stats, boolean loggingEnabled) {
+    FileObjectQueue<BasePayload> fileQueue;
+    try {
+      fileQueue = new FileObjectQueue<BasePayload>(queueFile, converter);
+    } catch (IOException e) {
+      if (loggingEnabled) {
+        error(OWNER_DISPATCHER, VERB_CREATE, "unable to open old queue", e, "file: " + queueFile);
+      }
+      queueFile.delete();
+      return;
+    }
+    int corrupt = fileQueue.corruptEntries();
+    boolean migrated = false;
+    try {
+      while (fileQueue.size() > 0) {
+        BasePayload payload = null;
+        try {
+          payload = fileQueue.peek();
+        } catch (IOException e) {
+          // A damaged entry is skipped rather than holding up the ones behind it.
+          corrupt++;
+        }
+        if (payload != null) queue.add(payload);
+        fileQueue.remove();
+      }
+      migrated = true;
+    } catch (IOException e) {
+      if (loggingEnabled) {
+        error(OWNER_DISPATCHER, VERB_CREATE, "unable to carry over old queue", e,
+            "file: " + queueFile);
+      }
+    }
+    try {
+      fileQueue.close();
+    } catch (IOException ignored) {
+      // Everything that could be carried over has been.
+    }
+    if (migrated) queueFile.delete();
+    stats.dispatchQueueRecovery(fileQueue.recoveryMillis(), corrupt);
+  }
+
+  /**
+   * Opens the single file queue, and reports how long checking it took to stats. Damaged events
+   * are discarded by the queue itself; if the file can't be opened at all, it is deleted and an
+   * empty queue is started, so that a broken file never keeps events from being queued.
+   */
+  private static FileObjectQueue<BasePayload> openFileQueue(File file,
+      FileObjectQueue.Converter<BasePayload> converter, Durability durability,
+      boolean memoryMapped, Stats stats, boolean loggingEnabled) throws IOException {
+    FileObjectQueue<BasePayload> queue;
+    try {
+      queue = new FileObjectQueue<BasePayload>(file, converter, durability, memoryMapped);
+    } catch (IOException e) {
+      if (loggingEnabled) {
+        error(OWNER_DISPATCHER, VERB_CREATE, "unable to open queue", e, "file: " + file);
+      }
+      if (!file.delete()) throw e;
+      queue = new FileObjectQueue<BasePayload>(file, converter, durability, memoryMapped);
+    }
+    if (loggingEnabled && queue.corruptEntries() > 0) {
+      debug(OWNER_DISPATCHER, VERB_CREATE, null,
+          String.format("corrupt events: %s, recovery: %sms", queue.corruptEntries(),
+              queue.recoveryMillis()));
+    }
+    stats.dispatchQueueRecovery(queue.recoveryMillis(), queue.corruptEntries());
+    return queue;
+  }
+
+  Dispatcher(Context context, ConnectivityMonitor connectivityMonitor, int maxQueueSize,
+      long flushInterval, FlushPolicy flushPolicy, int maxRequestSize, int maxQueueBytes,
+      Analytics.QueueOverflow queueOverflow, Durability durability, SegmentHTTPApi segmentHTTPApi,
+      ObjectQueue<BasePayload> queue, ContextStore contextStore, Backoff backoff,
+      File deadLettersFile, int maxDeadLetters, Map<String, Boolean> integrations, Stats stats,
       boolean loggingEnabled) {
     this.context = context;
+    this.connectivityMonitor = connectivityMonitor;
     this.maxQueueSize = maxQueueSize;
+    this.flushInterval = flushInterval;
+    this.flushPolicy = flushPolicy;
+    this.maxRequestSize = maxRequestSize;
+    this.maxQueueBytes = maxQueueBytes;
+    this.queueOverflow = queueOverflow;
+    this.durability = durability;
     this.segmentHTTPApi = segmentHTTPApi;
     this.queue = queue;
+    this.contextStore = contextStore;
+    this.backoff = backoff;
+    this.deadLettersFile = deadLettersFile;
+    this.maxDeadLetters = maxDeadLetters;
     this.stats = stats;
     this.loggingEnabled = loggingEnabled;
     this.integrations = integrations;
+    batchPayloadWriter =
+        new BatchPayloadWriter(queue, integrations, maxRequestSize, contextStore);
     dispatcherThread = new HandlerThread(DISPATCHER_THREAD_NAME, THREAD_PRIORITY_BACKGROUND);
     dispatcherThread.start();
     handler = new DispatcherHandler(dispatcherThread.getLooper(), this);
+    uploaderThread = new HandlerThread(UPLOADER_THREAD_NAME, THREAD_PRIORITY_BACKGROUND);
+    uploaderThread.start();
+    uploadHandler = new DispatcherHandler(uploaderThread.getLooper(), this);
+    // Opening the queue may take a while, so it's the first thing the dispatcher thread does.
+    handler.sendMessage(handler.obtainMessage(REQUEST_OPEN));
+    connectivityMonitor.addListener(this);
+  }
+
+  void performOpen() {
+    // Opens the queue if it hasn't been already.
+    int size = queue.size();
+    if (backoff.attempts() > 0 && size > 0) {
+      // Pick up the retries that were scheduled before the app was last closed.
+      scheduleRetry(backoff.remaining(System.currentTimeMillis()));
+    }
+  }
+
+  /**
+   * Hands the payloads built from a burst of calls to the dispatcher thread in a single message,
+   * which writes them all to the queue and then checks the queue size once.
+   */
+  void dispatchEnqueue(List<BasePayload> payloads) {
+    handler.sendMessage(handler.obtainMessage(REQUEST_ENQUEUE, payloads));
+  }
+
+  /**
+   * Asks for a flush. The {@link FlushPolicy} is told whether it was {@code forced}, which should
+   * only be the case when the user explicitly asked for it.
+   */
+  void dispatchFlush(boolean forced) {
+    if (forced) {
+      synchronized (flushLock) {
+        forceFlush = true;
+      }
+    }
+    scheduleFlush(0, false);
+  }
+
+  /**
+   * Makes sure writes grouped by the queue are synced once the durability policy's delay has
+   * passed, even if no more events are enqueued to complete the group.
+   */
+  void scheduleSync() {
+    if (durability.mode != Durability.Mode.GROUP_COMMIT) return;
+    if (handler.hasMessages(REQUEST_SYNC)) return;
+    handler.sendMessageDelayed(handler.obtainMessage(REQUEST_SYNC), durability.maxDelayMillis);
   }
 
-  void dispatchEnqueue(final BasePayload payload) {
-    handler.sendMessage(handler.obtainMessage(REQUEST_ENQUEUE, payload));
+  void performSync() {
+    try {
+      queue.sync();
+    } catch (IOException e) {
+      if (loggingEnabled) {
+        error(OWNER_DISPATCHER, VERB_SYNC, "unable to sync queue", e,
+            String.format("queue: %s", queue));
+      }
+    }
+  }
+
+  /**
+   * Asks the dispatcher thread to delete the context snapshots that are no longer referenced. It
+   * has to run there, since that's the thread that stores snapshots and adds the events referring
+   * to them; checking the queue from here could race with an event that is being added.
+   */
+  private void scheduleRetainContexts() {
+    if (contextStore == null || handler.hasMessages(REQUEST_RETAIN_CONTEXTS)) return;
+    handler.sendMessage(handler.obtainMessage(REQUEST_RETAIN_CONTEXTS));
+  }
+
+  /**
+   * Deletes the context snapshots no queued event refers to anymore. Usually the latest snapshot
+   * is the only one, and the queue only has to be walked after the context changed.
+   */
+  void performRetainContexts() {
+    if (queue.size() == 0) {
+      contextStore.retainLatest();
+      return;
+    }
+    if (contextStore.size() <= 1) return;
+
+    final Set<String> referenced = new HashSet<String>();
+    final byte[] prefix = new byte[PayloadConverter.CONTEXT_REF_PAYLOAD_OFFSET];
+    try {
+      queue.forEach(new QueueFile.ElementVisitor() {
+        @Override public boolean read(InputStream in, int length) throws IOException {
+          int count = Math.min(length, prefix.length);
+          for (int offset = 0; offset < count; ) {
+            int read = in.read(prefix, offset, count - offset);
+            if (read == -1) throw new EOFException();
+            offset += read;
+          }
+          String id = PayloadConverter.contextId(prefix, count);
+          if (id != null) referenced.add(id);
+          return true;
+        }
+      });
+    } catch (IOException e) {
+      // Keep every snapshot, rather than one that an unread event might refer to.
+      if (loggingEnabled) {
+        error(OWNER_DISPATCHER, VERB_SYNC, "unable to read queue", e,
+            String.format("queue: %s", queue));
+      }
+      return;
+    }
+    contextStore.retain(referenced);
   }
 
-  void dispatchFlush() {
-    handler.sendMessage(handler.obtainMessage(REQUEST_FLUSH));
+  void performEnqueue(List<BasePayload> payloads) {
+    int measured = 0;
+    long totalLatency = 0;
+    long maxLatency = 0;
+    for (BasePayload payload : payloads) {
+      write(payload);
+      if (payload.enqueuedAt != 0) {
+        long latency = System.nanoTime() - payload.enqueuedAt;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+        measured++;
+      }
+    }
+    if (measured > 0) {
+      stats.dispatchEnqueue(measured, totalLatency / 1000, maxLatency / 1000);
+    }
+    scheduleQueueFlush();
   }
 
   void performEnqueue(BasePayload payload) {
+    performEnqueue(Collections.singletonList(payload));
+  }
+
+  private void write(BasePayload payload) {
+    if (queue.usedBytes() >= maxQueueBytes) {
+      if (queueOverflow == Analytics.QueueOverflow.DROP_NEWEST) {
+        if (loggingEnabled) {
+          debug(OWNER_DISPATCHER, VERB_DROP, payload.id(),
+              String.format("queueBytes: %s", queue.usedBytes()));
+        }
+        stats.dispatchDrop(1);
+        return;
+      }
+      dropOldest();
+    }
+
     try {
       queue.add(payload);
+      scheduleSync();
     } catch (IOException e) {
       if (loggingEnabled) {
         error(OWNER_DISPATCHER, VERB_ENQUEUE, payload.id(), e,
@@ -112,84 +496,502 @@ class Dispatcher {
       }
     }
 
-    // Check if we've reached the maximum queue size
-    int queueSize = queue.size();
     if (loggingEnabled) {
       debug(OWNER_DISPATCHER, VERB_ENQUEUE, payload.id(),
-          String.format("queueSize: %s", queueSize));
-    }
-    if (queueSize >= maxQueueSize) {
-      performFlush();
+          String.format("queueSize: %s", queue.size()));
     }
   }
 
-  void performFlush() {
-    if (queue.size() <= 0 || !isConnected(context)) return;
+  /**
+   * Asks the uploader to flush right away if we've reached the maximum queue size, and otherwise
+   * once the flush interval has passed, unless a flush is already due sooner.
+   */
+  private void scheduleQueueFlush() {
+    if (queue.size() >= maxQueueSize) {
+      scheduleFlush(0, false);
+    } else if (queue.size() > 0) {
+      scheduleFlush(flushInterval, false);
+    }
+  }
 
-    final List<BasePayload> payloads = new ArrayList<BasePayload>();
+  /** Removes the eldest entries from the queue until it is within {@link #maxQueueBytes}. */
+  private void dropOldest() {
+    int dropped = 0;
     try {
-      queue.setListener(new ObjectQueue.Listener<BasePayload>() {
-        @Override public void onAdd(ObjectQueue<BasePayload> queue, BasePayload entry) {
-          if (loggingEnabled) {
-            debug(OWNER_DISPATCHER, VERB_FLUSH, entry.id(), null);
-          }
-          payloads.add(entry);
+      synchronized (headLock) {
+        while (queue.size() > 0 && queue.usedBytes() >= maxQueueBytes) {
+          queue.remove();
+          removedCount++;
+          dropped++;
         }
+      }
+    } catch (IOException e) {
+      if (loggingEnabled) {
+        error(OWNER_DISPATCHER, VERB_DROP, "unable to drop oldest events", e,
+            String.format("queue: %s", queue));
+      }
+    }
+    if (loggingEnabled) {
+      debug(OWNER_DISPATCHER, VERB_DROP, null, "oldest events: " + dropped);
+    }
+    stats.dispatchDrop(dropped);
+  }
 
-        @Override public void onRemove(ObjectQueue<BasePayload> queue) {
+  /** Flushes after {@code delay} milliseconds, replacing any flush that is already scheduled. */
+  private void scheduleRetry(long delay) {
+    scheduleFlush(delay, true);
+  }
 
+  /**
+   * Flushes when the device is back online, so that events held while offline go out right away.
+   * Switching between connections doesn't flush; uploads deferred on one wait for the next one.
+   */
+  @Override public void onConnectivityChanged(FlushPolicy.Connection connection,
+      boolean reconnected) {
+    if (reconnected) scheduleFlush(0, false);
+  }
+
+  /**
+   * Schedules a flush in {@code delay} milliseconds. Flushes are coalesced: if one is already
+   * pending, the earlier of the two is kept, unless {@code replace} is set.
+   */
+  private void scheduleFlush(long delay, boolean replace) {
+    synchronized (flushLock) {
+      long at = SystemClock.uptimeMillis() + delay;
+      if (uploadHandler.hasMessages(REQUEST_FLUSH)) {
+        if (!replace && flushAt <= at) return;
+        uploadHandler.removeMessages(REQUEST_FLUSH);
+      }
+      flushAt = at;
+      uploadHandler.sendMessageAtTime(uploadHandler.obtainMessage(REQUEST_FLUSH), at);
+    }
+  }
+
+  void performFlush() {
+    boolean forced;
+    synchronized (flushLock) {
+      forced = forceFlush;
+      forceFlush = false;
+    }
+    if (queue.size() == 0) return;
+    long wait = backoff.remaining(System.currentTimeMillis());
+    if (wait > 0) {
+      // Still backing off from a failed upload, so only the scheduled retry may upload.
+      scheduleRetry(wait);
+      return;
+    }
+    if (!shouldUpload(forced)) return;
+
+    // Upload the queue in batches that fit into a single request, so that a large backlog makes
+    // steady progress instead of being retried as a whole.
+    while (queue.size() > 0) {
+      // The batch is read into memory first, so that the queue is free while it is uploaded.
+      long removedBefore;
+      synchronized (headLock) {
+        removedBefore = removedCount;
+        batch.reset();
+        try {
+          batchPayloadWriter.writeTo(batch);
+        } catch (IOException e) {
+          // Retrying the upload won't fix an entry that can't be read.
+          if (skipUnreadable(e)) continue;
+          return;
         }
-      });
-      queue.setListener(null);
-    } catch (IOException e) {
+      }
+      try {
+        long start = System.nanoTime();
+        segmentHTTPApi.upload(batchWriter);
+        measureThroughput(batch.size(), System.nanoTime() - start);
+      } catch (IOException e) {
+        if (loggingEnabled) {
+          error(OWNER_DISPATCHER, VERB_FLUSH, "unable to upload queue", e,
+              String.format("queue: %s", queue));
+        }
+        // Network errors and overloaded servers are retried, requests the server rejected aren't.
+        long retryAfterMillis = -1;
+        if (e instanceof SegmentHTTPApi.HTTPException) {
+          SegmentHTTPApi.HTTPException httpException = (SegmentHTTPApi.HTTPException) e;
+          if (httpException.isBatchRejected() && isolateRejected(removedBefore)) continue;
+          if (!httpException.isRetryable()) return;
+          retryAfterMillis = httpException.retryAfterMillis;
+        }
+        long delay = backoff.fail(System.currentTimeMillis(), retryAfterMillis);
+        if (loggingEnabled) {
+          debug(OWNER_DISPATCHER, VERB_FLUSH, null,
+              String.format("attempt: %s, retry in: %sms", backoff.attempts(), delay));
+        }
+        scheduleRetry(delay);
+        return;
+      }
+      backoff.reset();
+      batchPayloadWriter.readLimit = Integer.MAX_VALUE;
+
+      int count = batchPayloadWriter.count;
+      if (rejectedRemaining > 0) {
+        rejectedRemaining -= count;
+        // The rejected batch went through in smaller ones, so there is no bad event left in it.
+        if (rejectedRemaining <= 0) resetRejected();
+      }
+      if (loggingEnabled) {
+        debug(OWNER_DISPATCHER, VERB_FLUSH, null, "events: " + count);
+      }
+      stats.dispatchFlush(count);
+      try {
+        synchronized (headLock) {
+          // Entries that were dropped while the batch was uploaded are already gone.
+          int remove = (int) Math.max(0, count - (removedCount - removedBefore));
+          queue.remove(remove);
+          removedCount += remove;
+        }
+        scheduleSync();
+        scheduleRetainContexts();
+      } catch (IOException e) {
+        if (loggingEnabled) {
+          error(OWNER_DISPATCHER, VERB_FLUSH, "unable to clear queue", e, "events: " + count);
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Deals with an entry of the queue that couldn't be read. The entries before it are uploaded
+   * first; once it's at the head of the queue, it is dropped, like the damaged entries that are
+   * found when the queue is opened. Returns true if the next batch should be read right away.
+   * Must be called while holding {@link #headLock}.
+   */
+  private boolean skipUnreadable(IOException e) {
+    if (loggingEnabled) {
+      error(OWNER_DISPATCHER, VERB_FLUSH, "unable to read queue", e,
+          String.format("queue: %s", queue));
+    }
+    int readCount = batchPayloadWriter.readCount;
+    if (readCount > 0 && readCount < batchPayloadWriter.readLimit) {
+      batchPayloadWriter.readLimit = readCount;
+      return true;
+    }
+    try {
+      queue.remove();
+      removedCount++;
+    } catch (IOException removeError) {
       if (loggingEnabled) {
-        error(OWNER_DISPATCHER, VERB_FLUSH, "could not read queue", e,
+        error(OWNER_DISPATCHER, VERB_FLUSH, "unable to remove unreadable event", removeError,
             String.format("queue: %s", queue));
       }
-      return;
+      return false;
+    }
+    batchPayloadWriter.readLimit = Integer.MAX_VALUE;
+    scheduleSync();
+    stats.dispatchQueueRecovery(0, 1);
+    return true;
+  }
+
+  /**
+   * Asks the {@link FlushPolicy} whether to upload now, and sets the request size for the uploads
+   * if so. Deferred uploads are scheduled for later; held ones wait for the next flush.
+   */
+  private boolean shouldUpload(boolean forced) {
+    Intent batteryStatus = getBatteryStatus(context);
+    FlushPolicy.Conditions conditions =
+        new FlushPolicy.Conditions(connectivityMonitor.connection(), getBatteryLevel(batteryStatus),
+            isCharging(batteryStatus), throughput);
+    FlushPolicy.Decision decision = flushPolicy.decide(conditions, forced);
+    if (loggingEnabled) {
+      debug(OWNER_DISPATCHER, VERB_FLUSH, null, conditions + ", " + decision);
+    }
+    if (!decision.upload) {
+      deferredUntil = 0;
+      stats.dispatchFlushDecision(Stats.DECISION_HOLD);
+      return false;
+    }
+    if (decision.delayMillis > 0) {
+      long now = SystemClock.uptimeMillis();
+      // The deadline is set by the first deferral, so that later flushes can't push it back.
+      if (deferredUntil == 0) deferredUntil = now + decision.delayMillis;
+      if (now < deferredUntil) {
+        stats.dispatchFlushDecision(Stats.DECISION_DEFER);
+        scheduleFlush(deferredUntil - now, true);
+        return false;
+      }
+    }
+    deferredUntil = 0;
+    stats.dispatchFlushDecision(Stats.DECISION_UPLOAD);
+    batchPayloadWriter.requestLimit = decision.maxRequestSize;
+    return true;
+  }
+
+  /**
+   * Folds the throughput of an upload into the running average. Small requests are skipped, since
+   * their time is mostly latency rather than transfer.
+   */
+  private void measureThroughput(int bytes, long nanos) {
+    if (bytes < MIN_THROUGHPUT_SAMPLE_BYTES || nanos <= 0) return;
+    long sample = bytes * 1000000000L / nanos;
+    throughput = throughput < 0 ? sample : (throughput * 3 + sample) / 4;
+    stats.dispatchThroughput(throughput);
+  }
+
+  /**
+   * Narrows down a batch that the server rejected, because of the events in it rather than the
+   * state of the server. The batch is halved until a single event is rejected, which is then taken
+   * out of the queue as a dead letter, so that it can't hold up the events behind it. Batches keep
+   * their reduced size until then, or until the events of the rejected batch have been uploaded,
+   * so that the bad event isn't uploaded with the whole batch again. Returns true if the next
+   * batch should be uploaded right away.
+   */
+  private boolean isolateRejected(long removedBefore) {
+    int count = batchPayloadWriter.count;
+    if (rejectedRemaining == 0) rejectedRemaining = count;
+    if (count > 1) {
+      batchPayloadWriter.maxCount = count / 2;
+      return true;
     }
 
-    int count = payloads.size();
+    BasePayload payload = null;
     try {
-      segmentHTTPApi.upload(new BatchPayload(payloads, integrations));
-      stats.dispatchFlush(count);
-      //noinspection ForLoopReplaceableByForEach
-      for (int i = 0; i < count; i++) {
-        queue.remove();
+      synchronized (headLock) {
+        // The event is already gone if it was dropped while the batch was uploaded.
+        if (removedCount == removedBefore) {
+          try {
+            payload = queue.peek();
+          } catch (IOException e) {
+            // It can't be kept if it can't be read, but it still has to go.
+          }
+          queue.remove();
+          removedCount++;
+        }
       }
+      resetRejected();
+      scheduleSync();
     } catch (IOException e) {
       if (loggingEnabled) {
-        error(OWNER_DISPATCHER, VERB_FLUSH, "unable to clear queue", e, "events: " + count);
+        error(OWNER_DISPATCHER, VERB_FLUSH, "unable to remove rejected event", e,
+            String.format("queue: %s", queue));
       }
+      return false;
+    }
+
+    if (loggingEnabled) {
+      debug(OWNER_DISPATCHER, VERB_FLUSH, null, "rejected event: " + payload);
     }
+    stats.dispatchDeadLetter(1);
+    QueueFile deadLetters = deadLetters();
+    if (deadLetters != null && payload != null) {
+      try {
+        deadLetters.add(payload.toString().getBytes("UTF-8"));
+        while (deadLetters.size() > maxDeadLetters) {
+          deadLetters.remove();
+        }
+      } catch (IOException e) {
+        if (loggingEnabled) {
+          error(OWNER_DISPATCHER, VERB_FLUSH, "unable to keep rejected event", e, null);
+        }
+      }
+    }
+    return true;
   }
 
-  static class BatchPayload extends JsonMap {
+  /**
+   * Returns the queue of dead letters, opening it the first time. Returns null if rejected events
+   * aren't kept, or if the file can't be opened, in which case they aren't kept from then on.
+   */
+  private QueueFile deadLetters() {
+    if (deadLetters == null && deadLettersFile != null) {
+      try {
+        deadLetters = new QueueFile(deadLettersFile);
+      } catch (IOException e) {
+        if (loggingEnabled) {
+          error(OWNER_DISPATCHER, VERB_FLUSH, "unable to open dead letters", e,
+              "file: " + deadLettersFile);
+        }
+        deadLettersFile = null;
+      }
+    }
+    return deadLetters;
+  }
+
+  private void resetRejected() {
+    rejectedRemaining = 0;
+    batchPayloadWriter.maxCount = Integer.MAX_VALUE;
+  }
+
+  /**
+   * Streams the entries of a queue as the body of a batch request. Json entries are copied in their
+   * serialized form, and compact entries are transcoded to json without being parsed back into
+   * payloads. Entries that refer to a context snapshot are written without a context, and the
+   * snapshot is sent once for the whole batch; a batch only holds entries of a single snapshot.
+   * Entries are written until the next one would make the request larger than {@code
+   * maxRequestSize} bytes. The first entry is always written, however large it is.
+   */
+  static class BatchPayloadWriter
+      implements SegmentHTTPApi.StreamWriter, QueueFile.ElementVisitor {
+    private static final byte[] BATCH_START = "{\"batch\":[".getBytes();
+
+    /**
+     * A dictionary of integration names that the message should be proxied to. 'All' is a special
+     * name that applies when no key for a specific integration is found, and is case-insensitive.
+     */
+    private static final byte[] INTEGRATIONS_KEY = "],\"integrations\":".getBytes();
+
     /**
      * The sent timestamp is an ISO-8601-formatted string that, if present on a message, can be
-     * used
-     * to correct the original timestamp in situations where the local clock cannot be trusted, for
-     * example in our mobile libraries. The sentAt and receivedAt timestamps will be assumed to
-     * have
-     * occurred at the same time, and therefore the difference is the local clock skew.
+     * used to correct the original timestamp in situations where the local clock cannot be
+     * trusted, for example in our mobile libraries. The sentAt and receivedAt timestamps will be
+     * assumed to have occurred at the same time, and therefore the difference is the local clock
+     * skew.
      */
-    private static final String SENT_AT_KEY = "sentAt";
+    private static final byte[] SENT_AT_KEY = ",\"sentAt\":\"".getBytes();
 
     /**
-     * A dictionary of integration names that the message should be proxied to. 'All' is a special
-     * name that applies when no key for a specific integration is found, and is case-insensitive.
+     * The context shared by every message in the batch, which is merged into the context of each
+     * message. Only sent when the entries refer to a context in the {@link ContextStore}.
+     */
+    private static final byte[] CONTEXT_KEY = ",\"context\":".getBytes();
+    private static final byte[] BATCH_END = "\"}".getBytes();
+    private static final int ENVELOPE_LENGTH =
+        BATCH_START.length + INTEGRATIONS_KEY.length + SENT_AT_KEY.length + BATCH_END.length;
+
+    private final ObjectQueue<?> queue;
+    private final Map<String, Boolean> integrations;
+    private final int maxRequestSize;
+    private final ContextStore contextStore;
+    /** Reusable buffer to copy entries through. */
+    private final byte[] buffer = new byte[4096];
+    /** Reusable buffer for compact entries, which are read whole to be transcoded. */
+    private byte[] entry = new byte[4096];
+    /** Reusable buffer for the json of compact entries. */
+    private final FileObjectQueue.DirectByteArrayOutputStream json =
+        new FileObjectQueue.DirectByteArrayOutputStream();
+    private final JsonStreamWriter jsonWriter = new JsonStreamWriter(json);
+    private OutputStream out;
+    /** Number of bytes that entries may still take up in the current request. */
+    private int remaining;
+    /** Id of the context shared by the entries in the current request, if they refer to one. */
+    private String contextId;
+    /** Json of the context shared by the entries in the current request. */
+    private final FileObjectQueue.DirectByteArrayOutputStream contextJson =
+        new FileObjectQueue.DirectByteArrayOutputStream();
+    private final JsonStreamWriter contextWriter = new JsonStreamWriter(contextJson);
+    private final FileObjectQueue.DirectByteArrayOutputStream integrationsJson =
+        new FileObjectQueue.DirectByteArrayOutputStream();
+    private final JsonStreamWriter integrationsWriter = new JsonStreamWriter(integrationsJson);
+    private final char[] sentAtChars = new char[Iso8601.LENGTH];
+    private final byte[] sentAt = new byte[Iso8601.LENGTH];
+    /** Number of entries written in the last request. */
+    int count;
+    /** Number of entries read completely for the last request, fewer than written if one failed. */
+    int readCount;
+    /** Maximum number of entries to read, so that the ones before an unreadable entry go out. */
+    int readLimit = Integer.MAX_VALUE;
+    /** Maximum number of entries to write in a request, used to narrow down rejected entries. */
+    int maxCount = Integer.MAX_VALUE;
+    /** Size the {@link FlushPolicy} limits requests to, if smaller than {@code maxRequestSize}. */
+    int requestLimit = Integer.MAX_VALUE;
+
+    BatchPayloadWriter(ObjectQueue<?> queue, Map<String, Boolean> integrations,
+        int maxRequestSize, ContextStore contextStore) {
+      this.queue = queue;
+      this.integrations = integrations;
+      this.maxRequestSize = maxRequestSize;
+      this.contextStore = contextStore;
+    }
+
+    @Override public void writeTo(OutputStream out) throws IOException {
+      integrationsJson.reset();
+      JsonUtils.mapToWriter(integrations, integrationsWriter);
+      integrationsWriter.flush();
+      Iso8601.format(System.currentTimeMillis(), sentAtChars, 0);
+      for (int i = 0; i < Iso8601.LENGTH; i++) {
+        sentAt[i] = (byte) sentAtChars[i];
+      }
+
+      this.out = out;
+      count = 0;
+      readCount = 0;
+      contextId = null;
+      remaining = Math.min(maxRequestSize, requestLimit) - ENVELOPE_LENGTH
+          - integrationsJson.size() - sentAt.length;
+      out.write(BATCH_START);
+      queue.forEach(this);
+      out.write(INTEGRATIONS_KEY);
+      out.write(integrationsJson.getArray(), 0, integrationsJson.size());
+      if (contextId != null) {
+        out.write(CONTEXT_KEY);
+        out.write(contextJson.getArray(), 0, contextJson.size());
+      }
+      out.write(SENT_AT_KEY);
+      out.write(sentAt);
+      out.write(BATCH_END);
+      this.out = null;
+    }
+
+    @Override public boolean read(InputStream in, int length) throws IOException {
+      // Entries that can't be written to this request aren't read either.
+      if (count > 0 && count >= Math.min(maxCount, readLimit)) return false;
+      int read = in.read(buffer, 0, buffer.length);
+      if (read > 0 && buffer[0] != PayloadConverter.FORMAT_JSON) {
+        // The length of the json is only known once the entry has been transcoded.
+        if (entry.length < length) entry = new byte[length];
+        System.arraycopy(buffer, 0, entry, 0, read);
+        for (int offset = read; offset < length; offset += read) {
+          read = in.read(entry, offset, length - offset);
+          if (read == -1) throw new EOFException();
+        }
+        String id = PayloadConverter.contextId(entry, length);
+        byte[] context = id == null || contextStore == null ? null : contextStore.get(id);
+        if (context == null) {
+          id = null;
+        } else if (count > 0 && !id.equals(contextId)) {
+          // Only entries with the same context can share it.
+          return false;
+        }
+        if (id == null && contextId != null) return false;
+
+        json.reset();
+        PayloadConverter.toJson(entry, length, jsonWriter);
+        jsonWriter.flush();
+        int required = json.size();
+        if (id != null && contextId == null) {
+          contextJson.reset();
+          BinaryJson.toJson(context, 0, context.length, contextWriter);
+          contextWriter.flush();
+          required += CONTEXT_KEY.length + contextJson.size();
+        }
+        if (!reserve(required)) return false;
+        contextId = id;
+        out.write(json.getArray(), 0, json.size());
+        readCount++;
+        return true;
+      }
+
+      if (contextId != null) return false;
+      if (!reserve(length)) return false;
+      while (read != -1) {
+        out.write(buffer, 0, read);
+        read = in.read(buffer, 0, buffer.length);
+      }
+      readCount++;
+      return true;
+    }
+
+    /**
+     * Makes room for an entry of the given length in the current request, and writes the separator
+     * before it. Returns false if the entry doesn't fit; the first entry always does.
      */
-    private static final String INTEGRATIONS_KEY = "integrations";
+    private boolean reserve(int length) throws IOException {
+      int required = count == 0 ? length : length + 1; // separator
+      if (count > 0 && required > remaining) return false;
 
-    BatchPayload(List<BasePayload> batch, Map<String, Boolean> integrations) {
-      put("batch", batch);
-      put(INTEGRATIONS_KEY, integrations);
-      put(SENT_AT_KEY, toISO8601Date(new Date()));
+      if (count > 0) out.write(',');
+      remaining -= required;
+      count++;
+      return true;
     }
   }
 
   void shutdown() {
     quitThread(dispatcherThread);
+    quitThread(uploaderThread);
   }
 
   private static class DispatcherHandler extends Handler {
@@ -203,12 +1005,21 @@ class Dispatcher {
     @Override public void handleMessage(final Message msg) {
       switch (msg.what) {
         case REQUEST_ENQUEUE:
-          BasePayload payload = (BasePayload) msg.obj;
-          dispatcher.performEnqueue(payload);
+          @SuppressWarnings("unchecked") List<BasePayload> payloads = (List<BasePayload>) msg.obj;
+          dispatcher.performEnqueue(payloads);
           break;
         case REQUEST_FLUSH:
           dispatcher.performFlush();
           break;
+        case REQUEST_SYNC:
+          dispatcher.performSync();
+          break;
+        case REQUEST_RETAIN_CONTEXTS:
+          dispatcher.performRetainContexts();
+          break;
+        case REQUEST_OPEN:
+          dispatcher.performOpen();
+          break;
         default:
           panic("Unknown dispatcher message." + msg.what);
       }
@@ -0,0 +1,88 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+/**
+ * Controls when events written to the disk queue are synced to storage. Syncing every write is
+ * the safest option, but on slow storage it limits how fast events can be queued. Writes that
+ * haven't been synced yet survive the app process being killed, but can be lost if the device
+ * loses power.
+ */
+public final class Durability {
+  enum Mode {
+    SYNC, GROUP_COMMIT, ASYNC
+  }
+
+  private static final Durability SYNC = new Durability(Mode.SYNC, 0, 0);
+  private static final Durability ASYNC = new Durability(Mode.ASYNC, 0, 0);
+
+  final Mode mode;
+  final long maxDelayMillis;
+  final int maxPendingWrites;
+
+  private Durability(Mode mode, long maxDelayMillis, int maxPendingWrites) {
+    this.mode = mode;
+    this.maxDelayMillis = maxDelayMillis;
+    this.maxPendingWrites = maxPendingWrites;
+  }
+
+  /** Sync every write to storage before returning. This is the default. */
+  public static Durability sync() {
+    return SYNC;
+  }
+
+  /**
+   * Sync writes in groups, at the latest {@code maxDelayMillis} after the first write that
+   * hasn't been synced, or once {@code maxPendingWrites} writes haven't been synced.
+   */
+  public static Durability groupCommit(long maxDelayMillis, int maxPendingWrites) {
+    if (maxDelayMillis <= 0) {
+      throw new IllegalArgumentException("maxDelayMillis must be greater than zero.");
+    }
+    if (maxPendingWrites <= 0) {
+      throw new IllegalArgumentException("maxPendingWrites must be greater than zero.");
+    }
+    return new Durability(Mode.GROUP_COMMIT, maxDelayMillis, maxPendingWrites);
+  }
+
+  /**
+   * Never sync writes explicitly, and leave it to the operating system to write them to storage.
+   * Only suitable for events you can afford to lose.
+   */
+  public static Durability async() {
+    return ASYNC;
+  }
+
+  @Override public String toString() {
+    return "Durability{"
+        + "mode="
+        + mode
+        + ", maxDelayMillis="
+        + maxDelayMillis
+        + ", maxPendingWrites="
+        + maxPendingWrites
+        + '}';
+  }
+}
@@ -6,11 +6,16 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Base queue class, implements common functionality for a QueueFile-backed
- * queue manager.  This class is not thread safe; instances should be kept
- * thread-confined.
+ * queue manager. Entries are added from one thread at a time, since they are
+ * serialized into a shared buffer; the dispatcher only adds from its own
+ * thread. Every other operation goes straight to the synchronized {@link
+ * QueueFile}, and is safe from any thread, which lets the upload thread peek
+ * and remove entries while the dispatcher thread adds them.
  *
  * @param <T> The type of elements in the queue.
  */
@@ -20,15 +25,39 @@ class FileObjectQueue<T> implements ObjectQueue<T> {
   /** Reusable byte output buffer. */
   private final DirectByteArrayOutputStream bytes = new DirectByteArrayOutputStream();
   private final Converter<T> converter;
-  private Listener<T> listener;
+  private volatile Listener<T> listener;
 
   FileObjectQueue(File file, Converter<T> converter) throws IOException {
+    this(file, converter, Durability.sync(), false);
+  }
+
+  /**
+   * @param mapped whether the file should be read and written through a memory mapping, which
+   * turns reads into memory copies instead of file system calls.
+   */
+  FileObjectQueue(File file, Converter<T> converter, Durability durability, boolean mapped)
+      throws IOException {
     this.converter = converter;
-    this.queueFile = new QueueFile(file);
+    // Removed entries don't need to be erased, they are overwritten as the queue wraps around.
+    this.queueFile = new QueueFile(file, false, durability, mapped);
+  }
+
+  /** Number of damaged entries that were discarded when the queue was opened. */
+  int corruptEntries() {
+    return queueFile.discardedElements;
+  }
+
+  /** Time it took to check the queue when it was opened, in milliseconds. */
+  long recoveryMillis() {
+    return queueFile.recoveryMillis;
   }
 
   @Override public int size() {
-    return 0;
+    return queueFile.size();
+  }
+
+  @Override public int usedBytes() {
+    return queueFile.usedBytes();
   }
 
   @Override public final void add(T entry) throws IOException {
@@ -44,11 +73,37 @@ class FileObjectQueue<T> implements ObjectQueue<T> {
     return converter.from(bytes);
   }
 
+  @Override public List<T> peek(int n) throws IOException {
+    List<byte[]> elements = queueFile.peek(n);
+    List<T> entries = new ArrayList<T>(elements.size());
+    for (byte[] element : elements) {
+      entries.add(converter.from(element));
+    }
+    return entries;
+  }
+
   @Override public final void remove() throws IOException {
     queueFile.remove();
     if (listener != null) listener.onRemove(this);
   }
 
+  @Override public final void remove(int n) throws IOException {
+    queueFile.remove(n);
+    if (listener != null) {
+      for (int i = 0; i < n; i++) {
+        listener.onRemove(this);
+      }
+    }
+  }
+
+  @Override public void sync() throws IOException {
+    queueFile.sync();
+  }
+
+  @Override public void forEach(QueueFile.ElementVisitor visitor) throws IOException {
+    queueFile.forEachUntil(visitor);
+  }
+
   final void close() throws IOException {
     queueFile.close();
   }
@@ -81,7 +136,7 @@ class FileObjectQueue<T> implements ObjectQueue<T> {
   }
 
   /** Enables direct access to the internal array. Avoids unnecessary copying. */
-  private static class DirectByteArrayOutputStream extends ByteArrayOutputStream {
+  static class DirectByteArrayOutputStream extends ByteArrayOutputStream {
     DirectByteArrayOutputStream() {
       super();
     }
@@ -0,0 +1,136 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+/**
+ * Decides when queued events are uploaded, and how many at a time, from the state of the device.
+ * The policy is asked before every upload, on a background thread. By default this is an {@link
+ * AdaptiveFlushPolicy}; set your own with {@link Analytics.Builder#flushPolicy(FlushPolicy)} to
+ * trade battery and bandwidth against latency differently. How often each decision was made is
+ * counted in {@link StatsSnapshot}.
+ */
+public interface FlushPolicy {
+  /**
+   * Returns what to do with the queue under the given {@code conditions}. {@code forced} is true
+   * if the upload was asked for with {@link Analytics#flush()} or the app is being backgrounded,
+   * in which case holding or deferring it should be the exception.
+   */
+  Decision decide(Conditions conditions, boolean forced);
+
+  /** How the device is connected. */
+  enum Connection {
+    /** We aren't allowed to check the connection. */
+    UNKNOWN,
+    NONE,
+    WIFI,
+    CELLULAR,
+    /** 2G and similar networks. */
+    SLOW_CELLULAR,
+    /** A cellular network away from home, where data is often expensive. */
+    ROAMING
+  }
+
+  /** The state of the device that a policy decides from. */
+  final class Conditions {
+    public final Connection connection;
+    /** Remaining battery in percent, or -1 if unknown. */
+    public final int batteryLevel;
+    public final boolean charging;
+    /** Throughput of recent uploads, in bytes per second, or -1 if none were measured yet. */
+    public final long throughput;
+
+    public Conditions(Connection connection, int batteryLevel, boolean charging,
+        long throughput) {
+      this.connection = connection;
+      this.batteryLevel = batteryLevel;
+      this.charging = charging;
+      this.throughput = throughput;
+    }
+
+    @Override public String toString() {
+      return "Conditions{"
+          + "connection="
+          + connection
+          + ", batteryLevel="
+          + batteryLevel
+          + ", charging="
+          + charging
+          + ", throughput="
+          + throughput
+          + '}';
+    }
+  }
+
+  /** What to do with the queue. */
+  final class Decision {
+    /** Don't upload until conditions change, or an upload is forced. */
+    public static final Decision HOLD = new Decision(false, 0, Integer.MAX_VALUE);
+
+    /** Upload right away, in requests of up to the configured maximum size. */
+    public static Decision upload() {
+      return upload(Integer.MAX_VALUE);
+    }
+
+    /** Upload right away, in requests of up to {@code maxRequestSize} bytes. */
+    public static Decision upload(int maxRequestSize) {
+      return new Decision(true, 0, maxRequestSize);
+    }
+
+    /**
+     * Upload after {@code delayMillis}, so that more events are sent per wakeup of the radio, in
+     * requests of up to {@code maxRequestSize} bytes.
+     */
+    public static Decision defer(long delayMillis, int maxRequestSize) {
+      return new Decision(true, delayMillis, maxRequestSize);
+    }
+
+    public final boolean upload;
+    public final long delayMillis;
+    public final int maxRequestSize;
+
+    private Decision(boolean upload, long delayMillis, int maxRequestSize) {
+      if (delayMillis < 0) {
+        throw new IllegalArgumentException("delayMillis must not be negative.");
+      }
+      if (maxRequestSize <= 0) {
+        throw new IllegalArgumentException("maxRequestSize must be greater than zero.");
+      }
+      this.upload = upload;
+      this.delayMillis = delayMillis;
+      this.maxRequestSize = maxRequestSize;
+    }
+
+    @Override public String toString() {
+      return "Decision{"
+          + "upload="
+          + upload
+          + ", delayMillis="
+          + delayMillis
+          + ", maxRequestSize="
+          + maxRequestSize
+          + '}';
+    }
+  }
+}
@@ -37,9 +37,9 @@ class GroupPayload extends BasePayload {
    */
   private static final String TRAITS_KEY = "traits";
 
-  GroupPayload(String anonymousId, AnalyticsContext context, String userId, String groupId,
-      Traits traits, Options options) {
-    super(Type.group, anonymousId, context, userId, options);
+  GroupPayload(String messageId, long timestamp, String anonymousId, AnalyticsContext context,
+      String userId, String groupId, Traits traits, Options options) {
+    super(Type.group, messageId, timestamp, anonymousId, context, userId, options);
     put(GROUP_ID_KEY, groupId);
     put(TRAITS_KEY, traits);
   }
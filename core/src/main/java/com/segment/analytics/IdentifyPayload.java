@@ -33,9 +33,9 @@ class IdentifyPayload extends BasePayload {
    */
   private static final String TRAITS_KEY = "traits";
 
-  IdentifyPayload(String anonymousId, AnalyticsContext context, String userId, Traits traits,
-      Options options) {
-    super(Type.identify, anonymousId, context, userId, options);
+  IdentifyPayload(String messageId, long timestamp, String anonymousId, AnalyticsContext context,
+      String userId, Traits traits, Options options) {
+    super(Type.identify, messageId, timestamp, anonymousId, context, userId, options);
     put(TRAITS_KEY, traits);
   }
 
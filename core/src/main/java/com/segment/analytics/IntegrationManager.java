@@ -15,7 +15,6 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
-import java.util.UUID;
 
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 import static com.segment.analytics.Analytics.OnIntegrationReadyListener;
@@ -28,7 +27,6 @@ import static com.segment.analytics.Utils.VERB_SKIP;
 import static com.segment.analytics.Utils.debug;
 import static com.segment.analytics.Utils.error;
 import static com.segment.analytics.Utils.getSharedPreferences;
-import static com.segment.analytics.Utils.isConnected;
 import static com.segment.analytics.Utils.isOnClassPath;
 import static com.segment.analytics.Utils.panic;
 import static com.segment.analytics.Utils.quitThread;
@@ -39,15 +37,18 @@ import static com.segment.analytics.Utils.quitThread;
  * integrations. Once we enable all integrations - we'll replay any events in the queue. This will
  * only affect the first app install, subsequent launches will be use the cached settings on disk.
  */
-class IntegrationManager {
+class IntegrationManager implements ConnectivityMonitor.Listener {
   static final int REQUEST_FETCH_SETTINGS = 1;
 
   private static final String PROJECT_SETTINGS_CACHE_KEY = "project-settings";
   private static final String MANAGER_THREAD_NAME = THREAD_PREFIX + "IntegrationManager";
   private static final long SETTINGS_REFRESH_INTERVAL = 1000 * 60 * 60 * 24; // 24 hours
   private static final long SETTINGS_ERROR_INTERVAL = 1000 * 60; // 1 minute
+  private static final Analytics.MessageIdGenerator OPERATION_ID_GENERATOR =
+      new TimeOrderedIdGenerator();
 
   final Context context;
+  final ConnectivityMonitor connectivityMonitor;
   final SegmentHTTPApi segmentHTTPApi;
   final HandlerThread integrationManagerThread;
   final Handler handler;
@@ -60,11 +61,15 @@ class IntegrationManager {
   final Map<String, Boolean> serverIntegrations = new LinkedHashMap<String, Boolean>();
   Queue<IntegrationOperation> operationQueue = new ArrayDeque<IntegrationOperation>();
   volatile boolean initialized;
+  /** Set when settings couldn't be fetched because the device was offline. */
+  volatile boolean fetchWhenConnected;
   OnIntegrationReadyListener listener;
 
-  private IntegrationManager(Context context, SegmentHTTPApi segmentHTTPApi,
-      StringCache projectSettingsCache, Stats stats, boolean loggingEnabled) {
+  private IntegrationManager(Context context, ConnectivityMonitor connectivityMonitor,
+      SegmentHTTPApi segmentHTTPApi, StringCache projectSettingsCache, Stats stats,
+      boolean loggingEnabled) {
     this.context = context;
+    this.connectivityMonitor = connectivityMonitor;
     this.segmentHTTPApi = segmentHTTPApi;
     this.stats = stats;
     this.loggingEnabled = loggingEnabled;
@@ -110,6 +115,7 @@ class IntegrationManager {
     }
 
     this.projectSettingsCache = projectSettingsCache;
+    connectivityMonitor.addListener(this);
     ProjectSettings projectSettings = ProjectSettings.load(projectSettingsCache);
     if (projectSettings == null) {
       dispatchFetch();
@@ -121,11 +127,12 @@ class IntegrationManager {
     }
   }
 
-  static IntegrationManager create(Context context, SegmentHTTPApi segmentHTTPApi, Stats stats,
-      boolean logging) {
+  static IntegrationManager create(Context context, ConnectivityMonitor connectivityMonitor,
+      SegmentHTTPApi segmentHTTPApi, Stats stats, boolean logging) {
     StringCache projectSettingsCache =
         new StringCache(getSharedPreferences(context), PROJECT_SETTINGS_CACHE_KEY);
-    return new IntegrationManager(context, segmentHTTPApi, projectSettingsCache, stats, logging);
+    return new IntegrationManager(context, connectivityMonitor, segmentHTTPApi,
+        projectSettingsCache, stats, logging);
   }
 
   private static boolean isBundledIntegrationEnabledForPayload(BasePayload payload,
@@ -157,27 +164,38 @@ class IntegrationManager {
         SETTINGS_ERROR_INTERVAL);
   }
 
+  /** Fetches the settings that couldn't be fetched while the device was offline. */
+  @Override public void onConnectivityChanged(FlushPolicy.Connection connection,
+      boolean reconnected) {
+    if (reconnected && fetchWhenConnected) {
+      fetchWhenConnected = false;
+      dispatchFetch();
+    }
+  }
+
   void performFetch() {
+    if (!connectivityMonitor.isConnected()) {
+      fetchWhenConnected = true;
+      // Check again, in case the device reconnected before the flag was set.
+      if (!connectivityMonitor.isConnected()) return;
+    }
+    fetchWhenConnected = false;
     try {
-      if (isConnected(context)) {
-        if (loggingEnabled) {
-          debug(OWNER_INTEGRATION_MANAGER, "request", "fetch settings", null);
-        }
+      if (loggingEnabled) {
+        debug(OWNER_INTEGRATION_MANAGER, "request", "fetch settings", null);
+      }
 
-        final ProjectSettings projectSettings = segmentHTTPApi.fetchSettings();
-        String projectSettingsJson = projectSettings.toString();
-        projectSettingsCache.set(projectSettingsJson);
-
-        if (!initialized) {
-          // Only initialize integrations if not done already
-          Analytics.MAIN_LOOPER.post(new Runnable() {
-            @Override public void run() {
-              initializeIntegrations(projectSettings);
-            }
-          });
-        }
-      } else {
-        retryFetch();
+      final ProjectSettings projectSettings = segmentHTTPApi.fetchSettings();
+      String projectSettingsJson = projectSettings.toString();
+      projectSettingsCache.set(projectSettingsJson);
+
+      if (!initialized) {
+        // Only initialize integrations if not done already
+        Analytics.MAIN_LOOPER.post(new Runnable() {
+          @Override public void run() {
+            initializeIntegrations(projectSettings);
+          }
+        });
       }
     } catch (IOException e) {
       if (loggingEnabled) {
@@ -291,12 +309,11 @@ class IntegrationManager {
     final Type type;
     final Bundle bundle;
     final Activity activity;
-    final String id;
+    String id;
 
     ActivityLifecyclePayload(Type type, Activity activity, Bundle bundle) {
       this.type = type;
       this.bundle = bundle;
-      this.id = UUID.randomUUID().toString();
       this.activity = activity;
     }
 
@@ -332,7 +349,11 @@ class IntegrationManager {
       }
     }
 
+    /** Only used for logging, so the id is generated the first time it is asked for. */
     @Override public String id() {
+      if (id == null) {
+        id = OPERATION_ID_GENERATOR.generateMessageId();
+      }
       return id;
     }
 
@@ -342,17 +363,16 @@ class IntegrationManager {
   }
 
   static class FlushOperation implements IntegrationOperation {
-    final String id;
-
-    FlushOperation() {
-      this.id = UUID.randomUUID().toString();
-    }
+    String id;
 
     @Override public void run(AbstractIntegrationAdapter integration) {
       integration.flush();
     }
 
     @Override public String id() {
+      if (id == null) {
+        id = OPERATION_ID_GENERATOR.generateMessageId();
+      }
       return id;
     }
   }
@@ -0,0 +1,222 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.segment.analytics;
+
+import java.text.ParseException;
+import java.util.TimeZone;
+
+/**
+ * Formats and parses ISO-8601 timestamps such as {@code 2014-11-20T10:01:02.345-0800}, from and to
+ * epoch milliseconds. Unlike {@link java.text.SimpleDateFormat}, it is safe to use from any thread,
+ * and formatting into a caller's buffer doesn't allocate.
+ *
+ * <p>Timestamps are formatted in the default time zone. Looking up its offset is the slow part,
+ * so the offset is cached for the quarter hour it was looked up in: offsets are multiples of a
+ * quarter hour and change on local quarter hours, so the offset can't change within one.
+ */
+final class Iso8601 {
+  /** Length of a formatted timestamp. */
+  static final int LENGTH = 28;
+
+  private static final long MILLIS_PER_QUARTER_HOUR = 15 * 60 * 1000;
+  private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+  private static volatile Offset cachedOffset = new Offset(Long.MIN_VALUE, 0);
+
+  private Iso8601() {
+    throw new AssertionError("No instances");
+  }
+
+  /** The offset of a time zone during the quarter hour that starts at {@code quarterHour}. */
+  private static class Offset {
+    final long quarterHour;
+    final int millis;
+
+    Offset(long quarterHour, int millis) {
+      this.quarterHour = quarterHour;
+      this.millis = millis;
+    }
+  }
+
+  private static int offsetMillis(long millis) {
+    long quarterHour = floorDiv(millis, MILLIS_PER_QUARTER_HOUR);
+    Offset offset = cachedOffset;
+    if (offset.quarterHour != quarterHour) {
+      // Only look up the default time zone when leaving the quarter hour, as doing so copies it.
+      TimeZone timeZone = TimeZone.getDefault();
+      offset = new Offset(quarterHour, timeZone.getOffset(quarterHour * MILLIS_PER_QUARTER_HOUR));
+      cachedOffset = offset;
+    }
+    return offset.millis;
+  }
+
+  /** Formats {@code millis} as a timestamp. */
+  static String format(long millis) {
+    char[] buffer = new char[LENGTH];
+    format(millis, buffer, 0);
+    return new String(buffer);
+  }
+
+  /**
+   * Writes {@code millis} as a timestamp of {@link #LENGTH} characters to {@code buffer}, starting
+   * at {@code offset}.
+   */
+  static void format(long millis, char[] buffer, int offset) {
+    int offsetMillis = offsetMillis(millis);
+    long local = millis + offsetMillis;
+    long days = floorDiv(local, MILLIS_PER_DAY);
+    int millisOfDay = (int) (local - days * MILLIS_PER_DAY);
+
+    // Converts days since the epoch to a civil date, see
+    // http://howardhinnant.github.io/date_algorithms.html
+    long z = days + 719468;
+    long era = floorDiv(z, 146097);
+    int dayOfEra = (int) (z - era * 146097);
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    int shiftedMonth = (5 * dayOfYear + 2) / 153;
+    int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+    int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+    int i = offset;
+    i = digits(buffer, i, (int) year, 4);
+    buffer[i++] = '-';
+    i = digits(buffer, i, month, 2);
+    buffer[i++] = '-';
+    i = digits(buffer, i, day, 2);
+    buffer[i++] = 'T';
+    i = digits(buffer, i, millisOfDay / 3600000, 2);
+    buffer[i++] = ':';
+    i = digits(buffer, i, millisOfDay / 60000 % 60, 2);
+    buffer[i++] = ':';
+    i = digits(buffer, i, millisOfDay / 1000 % 60, 2);
+    buffer[i++] = '.';
+    i = digits(buffer, i, millisOfDay % 1000, 3);
+    buffer[i++] = offsetMillis < 0 ? '-' : '+';
+    int offsetMinutes = Math.abs(offsetMillis) / 60000;
+    i = digits(buffer, i, offsetMinutes / 60, 2);
+    digits(buffer, i, offsetMinutes % 60, 2);
+  }
+
+  private static int digits(char[] buffer, int offset, int value, int count) {
+    for (int i = offset + count - 1; i >= offset; i--) {
+      buffer[i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+    return offset + count;
+  }
+
+  /**
+   * Parses a timestamp of the form {@code yyyy-MM-ddTHH:mm:ss}, optionally followed by a fraction
+   * of a second, and then either {@code Z} or an offset of the form {@code +hh}, {@code +hhmm} or
+   * {@code +hh:mm}. Returns the epoch milliseconds.
+   */
+  static long parse(String timestamp) throws ParseException {
+    int year = number(timestamp, 0, 4);
+    expect(timestamp, 4, '-');
+    int month = number(timestamp, 5, 2);
+    expect(timestamp, 7, '-');
+    int day = number(timestamp, 8, 2);
+    expect(timestamp, 10, 'T');
+    int hour = number(timestamp, 11, 2);
+    expect(timestamp, 13, ':');
+    int minute = number(timestamp, 14, 2);
+    expect(timestamp, 16, ':');
+    int second = number(timestamp, 17, 2);
+    if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59
+        || second > 60) {
+      throw new ParseException("Invalid timestamp: " + timestamp, 0);
+    }
+
+    int i = 19;
+    int millis = 0;
+    if (i < timestamp.length() && timestamp.charAt(i) == '.') {
+      int start = ++i;
+      for (int scale = 100; i < timestamp.length(); i++, scale /= 10) {
+        int digit = timestamp.charAt(i) - '0';
+        if (digit < 0 || digit > 9) break;
+        millis += digit * scale; // digits beyond milliseconds add nothing
+      }
+      if (i == start) throw new ParseException("Expected a fraction: " + timestamp, i);
+    }
+
+    int offsetMinutes;
+    if (i == timestamp.length()) throw new ParseException("Expected an offset: " + timestamp, i);
+    char sign = timestamp.charAt(i);
+    if (sign == 'Z' && i + 1 == timestamp.length()) {
+      offsetMinutes = 0;
+    } else if (sign == '+' || sign == '-') {
+      int offsetHours = number(timestamp, i + 1, 2);
+      i += 3;
+      if (i < timestamp.length() && timestamp.charAt(i) == ':') i++;
+      offsetMinutes = offsetHours * 60;
+      if (i < timestamp.length()) {
+        offsetMinutes += number(timestamp, i, 2);
+        i += 2;
+      }
+      if (i != timestamp.length()) throw new ParseException("Invalid offset: " + timestamp, i);
+      if (sign == '-') offsetMinutes = -offsetMinutes;
+    } else {
+      throw new ParseException("Invalid offset: " + timestamp, i);
+    }
+
+    // Converts a civil date to days since the epoch, the inverse of the conversion in format.
+    int y = month <= 2 ? year - 1 : year;
+    int era = (y >= 0 ? y : y - 399) / 400;
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    long days = era * 146097L + dayOfEra - 719468;
+
+    return days * MILLIS_PER_DAY + hour * 3600000L + minute * 60000L + second * 1000L + millis
+        - offsetMinutes * 60000L;
+  }
+
+  private static int number(String timestamp, int offset, int count) throws ParseException {
+    if (offset + count > timestamp.length()) {
+      throw new ParseException("Timestamp is too short: " + timestamp, timestamp.length());
+    }
+    int value = 0;
+    for (int i = offset; i < offset + count; i++) {
+      int digit = timestamp.charAt(i) - '0';
+      if (digit < 0 || digit > 9) throw new ParseException("Expected a digit: " + timestamp, i);
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  private static void expect(String timestamp, int offset, char c) throws ParseException {
+    if (offset >= timestamp.length() || timestamp.charAt(offset) != c) {
+      throw new ParseException("Expected '" + c + "': " + timestamp, offset);
+    }
+  }
+
+  private static long floorDiv(long dividend, long divisor) {
+    long quotient = dividend / divisor;
+    return (dividend % divisor != 0 && (dividend < 0) != (divisor < 0)) ? quotient - 1 : quotient;
+  }
+}
@@ -11,6 +11,8 @@ import java.util.Map;
 import java.util.Set;
 import org.json.JSONObject;
 
+import static com.segment.analytics.Utils.isNullOrEmpty;
+
 /**
  * A {@link Map} wrapper to expose Json functionality. Only the {@link #toString()} method is
  * modified to return a json formatted string. All other methods will be forwarded to a delegate
@@ -45,8 +47,11 @@ class JsonMap implements Map<String, Object> {
   }
 
   JsonMap(String json) {
+    if (isNullOrEmpty(json)) {
+      throw new IllegalArgumentException("Json must not be null or empty.");
+    }
     try {
-      this.delegate = JsonUtils.jsonToMap(json);
+      this.delegate = new LazyJsonMap(json);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -0,0 +1,365 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.segment.analytics;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes json tokens as UTF-8 straight to an output stream. Unlike {@link
+ * android.util.JsonWriter}, strings are encoded into the writer's own buffer as they are written,
+ * without a {@link java.io.Writer} or intermediate strings, and integers are written without
+ * being converted to strings first. Strings are escaped, and numbers formatted, the same way
+ * {@link android.util.JsonWriter} does.
+ *
+ * <p>The writer doesn't validate the structure of the json, so callers must balance objects and
+ * arrays and write a name before each value in an object. A writer may be reused for another
+ * stream with {@link #reset}, so its buffer is only allocated once.
+ */
+class JsonStreamWriter implements Flushable, Closeable {
+  private static final int BUFFER_SIZE = 2048;
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+  private static final byte[] NULL = "null".getBytes();
+  private static final byte[] TRUE = "true".getBytes();
+  private static final byte[] FALSE = "false".getBytes();
+  private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int position;
+  private OutputStream out;
+  /** Whether the object or array at each depth has had a value written to it. */
+  private boolean[] nonEmpty = new boolean[32];
+  private int depth;
+  /** True if a name was just written, so the next value must not be preceded by a comma. */
+  private boolean afterName;
+
+  JsonStreamWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  /** Flushes any buffered json, and continues writing a new document to {@code out}. */
+  void reset(OutputStream out) throws IOException {
+    flushBuffer();
+    this.out = out;
+    depth = 0;
+    afterName = false;
+  }
+
+  JsonStreamWriter beginObject() throws IOException {
+    return open('{');
+  }
+
+  JsonStreamWriter endObject() throws IOException {
+    return close('}');
+  }
+
+  JsonStreamWriter beginArray() throws IOException {
+    return open('[');
+  }
+
+  JsonStreamWriter endArray() throws IOException {
+    return close(']');
+  }
+
+  JsonStreamWriter name(String name) throws IOException {
+    beforeValue();
+    string(name);
+    writeByte(':');
+    afterName = true;
+    return this;
+  }
+
+  /** Writes a name that is already UTF-8 encoded, escaping it as needed. */
+  JsonStreamWriter name(byte[] utf8, int offset, int length) throws IOException {
+    beforeValue();
+    string(utf8, offset, length);
+    writeByte(':');
+    afterName = true;
+    return this;
+  }
+
+  JsonStreamWriter value(String value) throws IOException {
+    if (value == null) return nullValue();
+    beforeValue();
+    string(value);
+    return this;
+  }
+
+  /** Writes a string that is already UTF-8 encoded, escaping it as needed. */
+  JsonStreamWriter value(byte[] utf8, int offset, int length) throws IOException {
+    beforeValue();
+    string(utf8, offset, length);
+    return this;
+  }
+
+  JsonStreamWriter nullValue() throws IOException {
+    beforeValue();
+    writeBytes(NULL, 0, NULL.length);
+    return this;
+  }
+
+  JsonStreamWriter value(boolean value) throws IOException {
+    beforeValue();
+    byte[] bytes = value ? TRUE : FALSE;
+    writeBytes(bytes, 0, bytes.length);
+    return this;
+  }
+
+  JsonStreamWriter value(long value) throws IOException {
+    beforeValue();
+    if (value == Long.MIN_VALUE) {
+      writeBytes(MIN_LONG, 0, MIN_LONG.length);
+      return this;
+    }
+    if (value < 0) {
+      writeByte('-');
+      value = -value;
+    }
+    // Digits are produced backwards, so write them to the end of the space they need.
+    int length = 1;
+    for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+      length++;
+    }
+    require(length);
+    for (int i = position + length - 1; i >= position; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    position += length;
+    return this;
+  }
+
+  JsonStreamWriter value(double value) throws IOException {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+    }
+    beforeValue();
+    ascii(Double.toString(value));
+    return this;
+  }
+
+  JsonStreamWriter value(Number value) throws IOException {
+    if (value == null) return nullValue();
+    if (value instanceof Long || value instanceof Integer || value instanceof Short
+        || value instanceof Byte) {
+      return value(value.longValue());
+    }
+    if (value instanceof Double) return value(value.doubleValue());
+    String string = value.toString();
+    if (string.equals("NaN") || string.equals("Infinity") || string.equals("-Infinity")) {
+      throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+    }
+    beforeValue();
+    ascii(string);
+    return this;
+  }
+
+  /** Writes json that is already serialized and UTF-8 encoded as the next value. */
+  JsonStreamWriter rawValue(byte[] json, int offset, int length) throws IOException {
+    beforeValue();
+    writeBytes(json, offset, length);
+    return this;
+  }
+
+  /** Writes out the buffered json, and flushes the underlying stream. */
+  @Override public void flush() throws IOException {
+    flushBuffer();
+    out.flush();
+  }
+
+  /** Writes out the buffered json, and closes the underlying stream. */
+  @Override public void close() throws IOException {
+    flushBuffer();
+    out.close();
+  }
+
+  private JsonStreamWriter open(char bracket) throws IOException {
+    beforeValue();
+    if (++depth == nonEmpty.length) {
+      boolean[] expanded = new boolean[nonEmpty.length * 2];
+      System.arraycopy(nonEmpty, 0, expanded, 0, nonEmpty.length);
+      nonEmpty = expanded;
+    }
+    nonEmpty[depth] = false;
+    writeByte(bracket);
+    return this;
+  }
+
+  private JsonStreamWriter close(char bracket) throws IOException {
+    if (depth == 0) throw new IllegalStateException("Nesting problem.");
+    depth--;
+    writeByte(bracket);
+    return this;
+  }
+
+  private void beforeValue() throws IOException {
+    if (afterName) {
+      afterName = false;
+    } else if (depth > 0) {
+      if (nonEmpty[depth]) writeByte(',');
+      nonEmpty[depth] = true;
+    }
+  }
+
+  private void string(String value) throws IOException {
+    writeByte('"');
+    for (int i = 0, length = value.length(); i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        asciiChar(c);
+      } else if (c < 0x800) {
+        require(2);
+        buffer[position++] = (byte) (0xc0 | (c >> 6));
+        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+      } else if (c == '\u2028' || c == '\u2029') {
+        unicodeEscape(c);
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        require(4);
+        buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        // An unpaired surrogate can't be encoded, replace it as String.getBytes() would.
+        writeByte('?');
+      } else {
+        require(3);
+        buffer[position++] = (byte) (0xe0 | (c >> 12));
+        buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    writeByte('"');
+  }
+
+  private void string(byte[] utf8, int offset, int length) throws IOException {
+    writeByte('"');
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      int b = utf8[i] & 0xff;
+      if (b < 0x80) {
+        asciiChar((char) b);
+      } else if (b == 0xe2 && i + 2 < end && utf8[i + 1] == (byte) 0x80
+          && (utf8[i + 2] == (byte) 0xa8 || utf8[i + 2] == (byte) 0xa9)) {
+        // U+2028 and U+2029 are valid json, but not valid javascript.
+        unicodeEscape(utf8[i + 2] == (byte) 0xa8 ? '\u2028' : '\u2029');
+        i += 2;
+      } else {
+        writeByte(b);
+      }
+    }
+    writeByte('"');
+  }
+
+  private void asciiChar(char c) throws IOException {
+    switch (c) {
+      case '"':
+      case '\\':
+        require(2);
+        buffer[position++] = '\\';
+        buffer[position++] = (byte) c;
+        break;
+      case '\t':
+        escape('t');
+        break;
+      case '\b':
+        escape('b');
+        break;
+      case '\n':
+        escape('n');
+        break;
+      case '\r':
+        escape('r');
+        break;
+      case '\f':
+        escape('f');
+        break;
+      default:
+        if (c <= 0x1f) {
+          unicodeEscape(c);
+        } else {
+          writeByte(c);
+        }
+    }
+  }
+
+  private void escape(char c) throws IOException {
+    require(2);
+    buffer[position++] = '\\';
+    buffer[position++] = (byte) c;
+  }
+
+  private void unicodeEscape(char c) throws IOException {
+    require(6);
+    buffer[position++] = '\\';
+    buffer[position++] = 'u';
+    buffer[position++] = HEX[(c >> 12) & 0xf];
+    buffer[position++] = HEX[(c >> 8) & 0xf];
+    buffer[position++] = HEX[(c >> 4) & 0xf];
+    buffer[position++] = HEX[c & 0xf];
+  }
+
+  /** Writes a string that is known to be ASCII, such as a formatted number. */
+  private void ascii(String value) throws IOException {
+    int length = value.length();
+    require(length);
+    for (int i = 0; i < length; i++) {
+      buffer[position++] = (byte) value.charAt(i);
+    }
+  }
+
+  private void writeByte(int b) throws IOException {
+    require(1);
+    buffer[position++] = (byte) b;
+  }
+
+  private void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+    if (length > buffer.length) {
+      flushBuffer();
+      out.write(bytes, offset, length);
+      return;
+    }
+    require(length);
+    System.arraycopy(bytes, offset, buffer, position, length);
+    position += length;
+  }
+
+  /** Makes room for {@code count} more bytes in the buffer, which must not be more than fits. */
+  private void require(int count) throws IOException {
+    if (buffer.length - position < count) flushBuffer();
+  }
+
+  private void flushBuffer() throws IOException {
+    if (position > 0) {
+      out.write(buffer, 0, position);
+      position = 0;
+    }
+  }
+}
@@ -26,12 +26,9 @@ package com.segment.analytics;
 
 import android.util.JsonReader;
 import android.util.JsonToken;
-import android.util.JsonWriter;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -62,20 +59,37 @@ class JsonUtils {
 
   /** Converts the given map to a json format string. */
   static String mapToJson(Map<?, ?> map) throws IOException {
-    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-    JsonWriter writer = new JsonWriter(new OutputStreamWriter(bos));
+    FileObjectQueue.DirectByteArrayOutputStream bos =
+        new FileObjectQueue.DirectByteArrayOutputStream();
+    JsonStreamWriter writer = new JsonStreamWriter(bos);
     mapToWriter(map, writer);
-    writer.close();
-    return bos.toString();
+    writer.flush();
+    return new String(bos.getArray(), 0, bos.size(), "UTF-8");
   }
 
   /** Converts the given list to a json format string. */
   static String listToJson(List<?> list) throws IOException {
-    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-    JsonWriter writer = new JsonWriter(new OutputStreamWriter(bos));
+    FileObjectQueue.DirectByteArrayOutputStream bos =
+        new FileObjectQueue.DirectByteArrayOutputStream();
+    JsonStreamWriter writer = new JsonStreamWriter(bos);
     listToWriter(list, writer);
-    writer.close();
-    return bos.toString();
+    writer.flush();
+    return new String(bos.getArray(), 0, bos.size(), "UTF-8");
+  }
+
+  /**
+   * Writes the json representation of a map to the given writer, without building a string for
+   * it.
+   */
+  static void mapToWriter(Map<?, ?> map, JsonStreamWriter writer) throws IOException {
+    writer.beginObject();
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      Object key = entry.getKey();
+      Object value = entry.getValue();
+      writer.name(String.valueOf(key));
+      write(value, writer);
+    }
+    writer.endObject();
   }
 
   // Private APIs
@@ -106,20 +120,8 @@ class JsonUtils {
     return list;
   }
 
-  /** Print the json representation of a map to the given writer. */
-  private static void mapToWriter(Map<?, ?> map, JsonWriter writer) throws IOException {
-    writer.beginObject();
-    for (Map.Entry<?, ?> entry : map.entrySet()) {
-      Object key = entry.getKey();
-      Object value = entry.getValue();
-      writer.name(String.valueOf(key));
-      write(value, writer);
-    }
-    writer.endObject();
-  }
-
   /** Print the json representation of a List to the given writer. */
-  private static void listToWriter(List<?> list, JsonWriter writer) throws IOException {
+  private static void listToWriter(List<?> list, JsonStreamWriter writer) throws IOException {
     writer.beginArray();
     for (Object value : list) {
       write(value, writer);
@@ -127,7 +129,7 @@ class JsonUtils {
     writer.endArray();
   }
 
-  private static void write(Object value, JsonWriter writer) throws IOException {
+  private static void write(Object value, JsonStreamWriter writer) throws IOException {
     if (value == null) {
       writer.nullValue();
     } else if (value instanceof Number) {
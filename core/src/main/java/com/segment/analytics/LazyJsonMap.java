@@ -0,0 +1,460 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.segment.analytics;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A map over a json object that is only parsed as far as it is read. Creating one checks that the
+ * json is well formed and records where the value of each key starts, without building any
+ * values; a value is parsed when its key is first read. Nested objects are lazy maps over the
+ * same string, and are only indexed when they are read themselves.
+ *
+ * <p>Integers are kept as {@link Long}s rather than doubles, so that timestamps and ids don't
+ * lose precision; other numbers are {@link Double}s. Replacing the value of an existing key only
+ * changes that key; adding or removing keys, or iterating over the map, parses every value into
+ * a regular map first.
+ *
+ * <p>Reads change the state of the map, so they are synchronized: a map may be read from several
+ * threads at once, like a regular map that isn't being changed.
+ */
+class LazyJsonMap extends AbstractMap<String, Object> {
+  private static final Object UNREAD = new Object();
+
+  private final String json;
+  /** Offset of the opening brace of this object in {@link #json}. */
+  private final int start;
+  /** Guarded by this map, like the rest of its state. */
+  private String[] keys;
+  /** Offset of each key's value, or -1 if the value was overridden by a later duplicate key. */
+  private int[] valueOffsets;
+  private Object[] values;
+  private int size;
+  /** All entries, once keys were added or removed, or the map was iterated over. */
+  private Map<String, Object> inflated;
+
+  /** Checks and indexes {@code json}, which must be a single json object. */
+  LazyJsonMap(String json) throws IOException {
+    this.json = json;
+    int offset = skipWhitespace(json, 0);
+    if (offset == json.length() || json.charAt(offset) != '{') {
+      throw new IOException("Expected a json object at " + offset);
+    }
+    this.start = offset;
+    int end;
+    synchronized (this) {
+      end = skipWhitespace(json, index());
+    }
+    if (end != json.length()) throw new IOException("Unexpected json at " + end);
+  }
+
+  /** A map over a nested object of a json string that was already checked. */
+  private LazyJsonMap(String json, int start) {
+    this.json = json;
+    this.start = start;
+  }
+
+  @Override public synchronized int size() {
+    if (inflated != null) return inflated.size();
+    ensureIndexed();
+    return size;
+  }
+
+  @Override public synchronized boolean containsKey(Object key) {
+    if (inflated != null) return inflated.containsKey(key);
+    return indexOf(key) != -1;
+  }
+
+  @Override public synchronized Object get(Object key) {
+    if (inflated != null) return inflated.get(key);
+    int index = indexOf(key);
+    if (index == -1) return null;
+    return value(index);
+  }
+
+  @Override public synchronized Object put(String key, Object value) {
+    if (inflated == null) {
+      int index = indexOf(key);
+      if (index != -1) {
+        // Replacing a value leaves the other keys unparsed.
+        Object previous = value(index);
+        values[index] = value;
+        return previous;
+      }
+    }
+    return inflate().put(key, value);
+  }
+
+  @Override public synchronized Object remove(Object key) {
+    return inflate().remove(key);
+  }
+
+  @Override public synchronized void clear() {
+    inflate().clear();
+  }
+
+  @Override public synchronized Set<String> keySet() {
+    return inflate().keySet();
+  }
+
+  @Override public synchronized Collection<Object> values() {
+    return inflate().values();
+  }
+
+  @Override public synchronized Set<Entry<String, Object>> entrySet() {
+    return inflate().entrySet();
+  }
+
+  /** Returns true if every value was parsed into a regular map. */
+  synchronized boolean isInflated() {
+    return inflated != null;
+  }
+
+  private int indexOf(Object key) {
+    ensureIndexed();
+    for (int i = 0; i < keys.length; i++) {
+      if (valueOffsets[i] != -1 && keys[i].equals(key)) return i;
+    }
+    return -1;
+  }
+
+  private Object value(int index) {
+    Object value = values[index];
+    if (value == UNREAD) {
+      value = readValue(json, valueOffsets[index]);
+      values[index] = value;
+    }
+    return value;
+  }
+
+  private Map<String, Object> inflate() {
+    if (inflated == null) {
+      ensureIndexed();
+      Map<String, Object> map = new LinkedHashMap<String, Object>(keys.length * 4 / 3 + 1);
+      for (int i = 0; i < keys.length; i++) {
+        if (valueOffsets[i] != -1) map.put(keys[i], value(i));
+      }
+      inflated = map;
+      keys = null;
+      valueOffsets = null;
+      values = null;
+    }
+    return inflated;
+  }
+
+  private void ensureIndexed() {
+    if (keys != null) return;
+    try {
+      index();
+    } catch (IOException e) {
+      // Nested objects were checked along with the rest of the json.
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Records the keys of this object and where their values start. Returns the end offset. The
+   * index is built up in locals, and only assigned once it is complete.
+   */
+  private int index() throws IOException {
+    List<String> keyList = new ArrayList<String>();
+    int[] offsets = new int[8];
+    int count = 0;
+    int offset = skipWhitespace(json, start + 1);
+    if (offset < json.length() && json.charAt(offset) == '}') {
+      offset++;
+    } else {
+      while (true) {
+        if (offset == json.length() || json.charAt(offset) != '"') {
+          throw new IOException("Expected a name at " + offset);
+        }
+        int keyEnd = skipString(json, offset);
+        String key = readString(json, offset, keyEnd);
+        offset = skipWhitespace(json, keyEnd);
+        if (offset == json.length() || json.charAt(offset) != ':') {
+          throw new IOException("Expected ':' at " + offset);
+        }
+        int valueOffset = skipWhitespace(json, offset + 1);
+        offset = skipWhitespace(json, skipValue(json, valueOffset));
+
+        int duplicate = keyList.indexOf(key);
+        if (duplicate != -1) offsets[duplicate] = -1; // the last value wins
+        if (keyList.size() == offsets.length) {
+          int[] expanded = new int[offsets.length * 2];
+          System.arraycopy(offsets, 0, expanded, 0, offsets.length);
+          offsets = expanded;
+        }
+        offsets[keyList.size()] = valueOffset;
+        keyList.add(key);
+        if (duplicate == -1) count++;
+
+        if (offset == json.length()) throw new IOException("Unterminated object at " + start);
+        char c = json.charAt(offset++);
+        if (c == '}') break;
+        if (c != ',') throw new IOException("Expected ',' or '}' at " + (offset - 1));
+        offset = skipWhitespace(json, offset);
+      }
+    }
+    Object[] unread = new Object[keyList.size()];
+    for (int i = 0; i < unread.length; i++) {
+      unread[i] = UNREAD;
+    }
+    valueOffsets = offsets;
+    values = unread;
+    size = count;
+    keys = keyList.toArray(new String[keyList.size()]);
+    return offset;
+  }
+
+  /** Parses the value starting at {@code offset}, which was already checked. */
+  private static Object readValue(String json, int offset) {
+    char c = json.charAt(offset);
+    switch (c) {
+      case '{':
+        return new LazyJsonMap(json, offset);
+      case '[':
+        List<Object> list = new ArrayList<Object>();
+        offset = skipWhitespace(json, offset + 1);
+        if (json.charAt(offset) == ']') return list;
+        while (true) {
+          list.add(readValue(json, offset));
+          offset = skipWhitespace(json, skipValueUnchecked(json, offset));
+          if (json.charAt(offset) == ']') return list;
+          offset = skipWhitespace(json, offset + 1); // ','
+        }
+      case '"':
+        return readString(json, offset, skipValueUnchecked(json, offset));
+      case 't':
+        return Boolean.TRUE;
+      case 'f':
+        return Boolean.FALSE;
+      case 'n':
+        return null;
+      default:
+        return readNumber(json, offset, skipValueUnchecked(json, offset));
+    }
+  }
+
+  private static int skipValueUnchecked(String json, int offset) {
+    try {
+      return skipValue(json, offset);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /** Returns the string between the quote at {@code start} and the one before {@code end}. */
+  private static String readString(String json, int start, int end) {
+    int close = end - 1;
+    int escape = json.indexOf('\\', start + 1);
+    if (escape == -1 || escape >= close) return json.substring(start + 1, close);
+
+    StringBuilder builder = new StringBuilder(close - start);
+    builder.append(json, start + 1, escape);
+    for (int i = escape; i < close; i++) {
+      char c = json.charAt(i);
+      if (c != '\\') {
+        builder.append(c);
+        continue;
+      }
+      c = json.charAt(++i);
+      switch (c) {
+        case 'b':
+          builder.append('\b');
+          break;
+        case 'f':
+          builder.append('\f');
+          break;
+        case 'n':
+          builder.append('\n');
+          break;
+        case 'r':
+          builder.append('\r');
+          break;
+        case 't':
+          builder.append('\t');
+          break;
+        case 'u':
+          builder.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+          i += 4;
+          break;
+        default:
+          builder.append(c); // '"', '\\' and '/'
+      }
+    }
+    return builder.toString();
+  }
+
+  private static Number readNumber(String json, int start, int end) {
+    boolean integer = true;
+    for (int i = start; i < end; i++) {
+      char c = json.charAt(i);
+      if (c == '.' || c == 'e' || c == 'E') {
+        integer = false;
+        break;
+      }
+    }
+    String number = json.substring(start, end);
+    if (integer) {
+      try {
+        return Long.parseLong(number);
+      } catch (NumberFormatException ignored) {
+        // Doesn't fit in a long.
+      }
+    }
+    return Double.parseDouble(number);
+  }
+
+  private static int skipWhitespace(String json, int offset) {
+    int length = json.length();
+    while (offset < length) {
+      char c = json.charAt(offset);
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') break;
+      offset++;
+    }
+    return offset;
+  }
+
+  /** Checks the value starting at {@code offset}, and returns the offset after it. */
+  private static int skipValue(String json, int offset) throws IOException {
+    if (offset == json.length()) throw new IOException("Expected a value at " + offset);
+    char c = json.charAt(offset);
+    switch (c) {
+      case '{':
+        return skipObject(json, offset);
+      case '[':
+        offset = skipWhitespace(json, offset + 1);
+        if (offset < json.length() && json.charAt(offset) == ']') return offset + 1;
+        while (true) {
+          offset = skipWhitespace(json, skipValue(json, offset));
+          if (offset == json.length()) throw new IOException("Unterminated array at " + offset);
+          c = json.charAt(offset++);
+          if (c == ']') return offset;
+          if (c != ',') throw new IOException("Expected ',' or ']' at " + (offset - 1));
+          offset = skipWhitespace(json, offset);
+        }
+      case '"':
+        return skipString(json, offset);
+      case 't':
+        return skipLiteral(json, offset, "true");
+      case 'f':
+        return skipLiteral(json, offset, "false");
+      case 'n':
+        return skipLiteral(json, offset, "null");
+      default:
+        return skipNumber(json, offset);
+    }
+  }
+
+  private static int skipObject(String json, int offset) throws IOException {
+    int start = offset;
+    offset = skipWhitespace(json, offset + 1);
+    if (offset < json.length() && json.charAt(offset) == '}') return offset + 1;
+    while (true) {
+      if (offset == json.length() || json.charAt(offset) != '"') {
+        throw new IOException("Expected a name at " + offset);
+      }
+      offset = skipWhitespace(json, skipString(json, offset));
+      if (offset == json.length() || json.charAt(offset) != ':') {
+        throw new IOException("Expected ':' at " + offset);
+      }
+      offset = skipWhitespace(json, skipValue(json, skipWhitespace(json, offset + 1)));
+      if (offset == json.length()) throw new IOException("Unterminated object at " + start);
+      char c = json.charAt(offset++);
+      if (c == '}') return offset;
+      if (c != ',') throw new IOException("Expected ',' or '}' at " + (offset - 1));
+      offset = skipWhitespace(json, offset);
+    }
+  }
+
+  private static int skipString(String json, int offset) throws IOException {
+    int length = json.length();
+    for (int i = offset + 1; i < length; i++) {
+      char c = json.charAt(i);
+      if (c == '"') return i + 1;
+      if (c == '\\') {
+        if (++i == length) break;
+        c = json.charAt(i);
+        if (c == 'u') {
+          if (i + 4 >= length) break;
+          for (int j = i + 1; j <= i + 4; j++) {
+            if (Character.digit(json.charAt(j), 16) == -1) {
+              throw new IOException("Malformed unicode escape at " + (i - 1));
+            }
+          }
+          i += 4;
+        } else if ("\"\\/bfnrt".indexOf(c) == -1) {
+          throw new IOException("Malformed escape at " + (i - 1));
+        }
+      }
+    }
+    throw new IOException("Unterminated string at " + offset);
+  }
+
+  private static int skipLiteral(String json, int offset, String literal) throws IOException {
+    if (!json.startsWith(literal, offset)) throw new IOException("Unexpected json at " + offset);
+    return offset + literal.length();
+  }
+
+  private static int skipNumber(String json, int offset) throws IOException {
+    int start = offset;
+    int length = json.length();
+    if (offset < length && json.charAt(offset) == '-') offset++;
+    int digits = skipDigits(json, offset);
+    if (digits == offset) throw new IOException("Unexpected json at " + start);
+    offset = digits;
+    if (offset < length && json.charAt(offset) == '.') {
+      digits = skipDigits(json, offset + 1);
+      if (digits == offset + 1) throw new IOException("Malformed number at " + start);
+      offset = digits;
+    }
+    if (offset < length && (json.charAt(offset) == 'e' || json.charAt(offset) == 'E')) {
+      offset++;
+      if (offset < length && (json.charAt(offset) == '+' || json.charAt(offset) == '-')) {
+        offset++;
+      }
+      digits = skipDigits(json, offset);
+      if (digits == offset) throw new IOException("Malformed number at " + start);
+      offset = digits;
+    }
+    return offset;
+  }
+
+  private static int skipDigits(String json, int offset) {
+    int length = json.length();
+    while (offset < length && json.charAt(offset) >= '0' && json.charAt(offset) <= '9') {
+      offset++;
+    }
+    return offset;
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * An {@link ObjectQueue} that is opened the first time it is used, rather than when it is
+ * created. Opening a queue file checks and recovers its entries, and may migrate the events of an
+ * older queue, which shouldn't hold up the thread that creates the client.
+ */
+class LazyObjectQueue<T> implements ObjectQueue<T> {
+  /**
+   * Opens the queue. Called once, on the thread that first uses the queue. It must not fail:
+   * storage that can't be opened should be started over, or replaced by a queue that doesn't
+   * need it.
+   */
+  interface Opener<T> {
+    ObjectQueue<T> open();
+  }
+
+  private final Opener<T> opener;
+  private volatile ObjectQueue<T> delegate;
+
+  LazyObjectQueue(Opener<T> opener) {
+    this.opener = opener;
+  }
+
+  private ObjectQueue<T> delegate() {
+    ObjectQueue<T> queue = delegate;
+    if (queue == null) {
+      synchronized (this) {
+        queue = delegate;
+        if (queue == null) {
+          queue = opener.open();
+          delegate = queue;
+        }
+      }
+    }
+    return queue;
+  }
+
+  @Override public int size() {
+    return delegate().size();
+  }
+
+  @Override public int usedBytes() {
+    return delegate().usedBytes();
+  }
+
+  @Override public void add(T entry) throws IOException {
+    delegate().add(entry);
+  }
+
+  @Override public T peek() throws IOException {
+    return delegate().peek();
+  }
+
+  @Override public List<T> peek(int n) throws IOException {
+    return delegate().peek(n);
+  }
+
+  @Override public void remove() throws IOException {
+    delegate().remove();
+  }
+
+  @Override public void remove(int n) throws IOException {
+    delegate().remove(n);
+  }
+
+  @Override public void sync() throws IOException {
+    delegate().sync();
+  }
+
+  @Override public void forEach(QueueFile.ElementVisitor visitor) throws IOException {
+    delegate().forEach(visitor);
+  }
+
+  @Override public void setListener(Listener<T> listener) throws IOException {
+    delegate().setListener(listener);
+  }
+
+  @Override public String toString() {
+    ObjectQueue<T> queue = delegate;
+    return queue == null ? "LazyObjectQueue{unopened}" : queue.toString();
+  }
+}
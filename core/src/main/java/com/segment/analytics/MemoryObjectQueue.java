@@ -0,0 +1,122 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A queue that keeps its entries in memory, in their serialized form. Only used when the queue
+ * can't be stored on disk at all, so that events are still uploaded while the app is running
+ * rather than crashing it. Safe to use from several threads.
+ *
+ * @param <T> The type of elements in the queue.
+ */
+class MemoryObjectQueue<T> implements ObjectQueue<T> {
+  private final FileObjectQueue.Converter<T> converter;
+  private final LinkedList<byte[]> entries = new LinkedList<byte[]>();
+  private final FileObjectQueue.DirectByteArrayOutputStream bytes =
+      new FileObjectQueue.DirectByteArrayOutputStream();
+  private int usedBytes;
+  private Listener<T> listener;
+
+  MemoryObjectQueue(FileObjectQueue.Converter<T> converter) {
+    this.converter = converter;
+  }
+
+  @Override public synchronized int size() {
+    return entries.size();
+  }
+
+  @Override public synchronized int usedBytes() {
+    return usedBytes;
+  }
+
+  @Override public synchronized void add(T entry) throws IOException {
+    bytes.reset();
+    converter.toStream(entry, bytes);
+    entries.add(Arrays.copyOf(bytes.getArray(), bytes.size()));
+    usedBytes += bytes.size();
+    if (listener != null) listener.onAdd(this, entry);
+  }
+
+  @Override public synchronized T peek() throws IOException {
+    return entries.isEmpty() ? null : converter.from(entries.getFirst());
+  }
+
+  @Override public synchronized List<T> peek(int n) throws IOException {
+    List<T> peeked = new ArrayList<T>(Math.min(n, entries.size()));
+    for (byte[] entry : entries) {
+      if (peeked.size() == n) break;
+      peeked.add(converter.from(entry));
+    }
+    return peeked;
+  }
+
+  @Override public synchronized void remove() {
+    if (entries.isEmpty()) throw new NoSuchElementException();
+    usedBytes -= entries.removeFirst().length;
+    if (listener != null) listener.onRemove(this);
+  }
+
+  @Override public synchronized void remove(int n) {
+    if (n > entries.size()) {
+      throw new IllegalArgumentException(
+          "Cannot remove more elements (" + n + ") than present in queue (" + entries.size()
+              + ").");
+    }
+    for (int i = 0; i < n; i++) {
+      remove();
+    }
+  }
+
+  @Override public void sync() {
+  }
+
+  @Override public synchronized void forEach(QueueFile.ElementVisitor visitor)
+      throws IOException {
+    for (byte[] entry : entries) {
+      if (!visitor.read(new ByteArrayInputStream(entry), entry.length)) return;
+    }
+  }
+
+  @Override public synchronized void setListener(Listener<T> listener) throws IOException {
+    if (listener != null) {
+      for (byte[] entry : entries) {
+        listener.onAdd(this, converter.from(entry));
+      }
+    }
+    this.listener = listener;
+  }
+
+  @Override public synchronized String toString() {
+    return "MemoryObjectQueue{size=" + entries.size() + ", usedBytes=" + usedBytes + '}';
+  }
+}
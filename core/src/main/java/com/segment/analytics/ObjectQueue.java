@@ -2,6 +2,7 @@
 package com.segment.analytics;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * A queue of objects.
@@ -13,6 +14,9 @@ interface ObjectQueue<T> {
   /** Returns the number of entries in the queue. */
   int size();
 
+  /** Returns the number of bytes used to store the entries in the queue. */
+  int usedBytes();
+
   /** Enqueues an entry that can be processed at any time. */
   void add(T entry) throws IOException;
 
@@ -22,9 +26,32 @@ interface ObjectQueue<T> {
    */
   T peek() throws IOException;
 
+  /**
+   * Returns up to {@code n} entries from the head of the queue, eldest first. Does not modify the
+   * queue.
+   */
+  List<T> peek(int n) throws IOException;
+
   /** Removes the head of the queue. */
   void remove() throws IOException;
 
+  /** Removes {@code n} entries from the head of the queue. */
+  void remove(int n) throws IOException;
+
+  /**
+   * Syncs entries that have been added or removed, but not written to storage yet. Does nothing
+   * for queues that write synchronously, or that aren't backed by storage.
+   */
+  void sync() throws IOException;
+
+  /**
+   * Invokes the given visitor once for each entry in the queue, from eldest to most recently
+   * added, until the visitor returns false. The visitor receives the serialized form of each
+   * entry, which lets callers copy entries somewhere else without converting them back into
+   * objects.
+   */
+  void forEach(QueueFile.ElementVisitor visitor) throws IOException;
+
   /**
    * Sets a listener on this queue. Invokes {@link Listener#onAdd} once for each entry that's
    * already in the queue. If an error occurs while reading the data, the listener will not receive
@@ -2,12 +2,63 @@ package com.segment.analytics;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.util.Map;
 
 import static com.segment.analytics.Utils.isNullOrEmpty;
 
+/**
+ * Converts payloads to and from queue entries. The first byte of an entry tells its format:
+ * entries are written in the compact {@link BinaryJson} format, but entries queued as json by
+ * earlier versions are still read.
+ *
+ * <p>With a {@link ContextStore}, the context of a payload is stored there once, and entries only
+ * refer to it by id.
+ */
 class PayloadConverter implements FileObjectQueue.Converter<BasePayload> {
+  /** First byte of an entry that is a json object. */
+  static final byte FORMAT_JSON = '{';
+  /** First byte of an entry in the {@link BinaryJson} format. */
+  static final byte FORMAT_BINARY = 1;
+  /**
+   * First byte of an entry in the {@link BinaryJson} format without its context, which is
+   * followed by the id of the context in the {@link ContextStore} and then the payload.
+   */
+  static final byte FORMAT_BINARY_CONTEXT_REF = 2;
+
+  private static final String CONTEXT_KEY = "context";
+  /** Offset of the payload in entries that refer to their context. */
+  static final int CONTEXT_REF_PAYLOAD_OFFSET = 1 + ContextStore.ID_LENGTH;
+
+  private final ContextStore contextStore;
+  private final FileObjectQueue.DirectByteArrayOutputStream contextBytes =
+      new FileObjectQueue.DirectByteArrayOutputStream();
+
+  PayloadConverter() {
+    this(null);
+  }
+
+  /** @param contextStore where contexts are stored, or null to store them in each entry */
+  PayloadConverter(ContextStore contextStore) {
+    this.contextStore = contextStore;
+  }
+
   @Override public BasePayload from(byte[] bytes) throws IOException {
+    if (bytes.length == 0) {
+      throw new IOException("Cannot serialize payload from empty byte array.");
+    }
+    if (bytes[0] == FORMAT_BINARY) {
+      return new BasePayload(BinaryJson.readMap(bytes, 1, bytes.length - 1));
+    }
+    if (bytes[0] == FORMAT_BINARY_CONTEXT_REF) {
+      Map<String, Object> map = BinaryJson.readMap(bytes, CONTEXT_REF_PAYLOAD_OFFSET,
+          bytes.length - CONTEXT_REF_PAYLOAD_OFFSET);
+      byte[] context =
+          contextStore == null ? null : contextStore.get(contextId(bytes, bytes.length));
+      if (context != null) {
+        map.put(CONTEXT_KEY, BinaryJson.readMap(context, 0, context.length));
+      }
+      return new BasePayload(map);
+    }
     String json = new String(bytes);
     if (isNullOrEmpty(json)) {
       throw new IOException("Cannot serialize payload from empty byte array.");
@@ -15,13 +66,61 @@ class PayloadConverter implements FileObjectQueue.Converter<BasePayload> {
     return new BasePayload(json);
   }
 
+  /**
+   * Writes the payload. The context the payload was created with was encoded once for all the
+   * payloads that share it, and is written or stored as is instead of being encoded again.
+   */
   @Override public void toStream(BasePayload payload, OutputStream bytes) throws IOException {
-    String json = payload.toString();
-    if (isNullOrEmpty(json)) {
-      throw new IOException("Cannot deserialize payload : " + payload);
+    Object context = payload.get(CONTEXT_KEY);
+    byte[] encodedContext = payload.encodedContext();
+    if (!(context instanceof Map)) {
+      bytes.write(FORMAT_BINARY);
+      BinaryJson.write(payload, bytes);
+      return;
+    }
+    if (contextStore == null) {
+      bytes.write(FORMAT_BINARY);
+      if (encodedContext == null) {
+        BinaryJson.write(payload, bytes);
+      } else {
+        BinaryJson.write(payload, CONTEXT_KEY, encodedContext, bytes);
+      }
+      return;
+    }
+
+    String id;
+    if (encodedContext == null) {
+      contextBytes.reset();
+      BinaryJson.write((Map<?, ?>) context, contextBytes);
+      id = contextStore.put(contextBytes.getArray(), contextBytes.size());
+    } else {
+      id = contextStore.put(encodedContext);
+    }
+    bytes.write(FORMAT_BINARY_CONTEXT_REF);
+    bytes.write(id.getBytes("US-ASCII"));
+    BinaryJson.write(payload, CONTEXT_KEY, null, bytes);
+  }
+
+  /** Returns the id of the context an entry refers to, or null if it carries its own. */
+  static String contextId(byte[] entry, int length) throws IOException {
+    if (length < CONTEXT_REF_PAYLOAD_OFFSET || entry[0] != FORMAT_BINARY_CONTEXT_REF) {
+      return null;
+    }
+    return new String(entry, 1, ContextStore.ID_LENGTH, "US-ASCII");
+  }
+
+  /**
+   * Writes the json for an entry of {@code length} bytes to the writer, transcoding it if it
+   * isn't json already. Entries that refer to their context are written without it.
+   */
+  static void toJson(byte[] entry, int length, JsonStreamWriter writer) throws IOException {
+    if (length > 0 && entry[0] == FORMAT_BINARY) {
+      BinaryJson.toJson(entry, 1, length - 1, writer);
+    } else if (length > 0 && entry[0] == FORMAT_BINARY_CONTEXT_REF) {
+      BinaryJson.toJson(entry, CONTEXT_REF_PAYLOAD_OFFSET, length - CONTEXT_REF_PAYLOAD_OFFSET,
+          writer);
+    } else {
+      writer.rawValue(entry, 0, length);
     }
-    OutputStreamWriter outputStreamWriter = new OutputStreamWriter(bytes);
-    outputStreamWriter.write(json);
-    outputStreamWriter.close();
   }
 }
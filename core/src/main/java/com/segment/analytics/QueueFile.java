@@ -20,11 +20,14 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static java.lang.Math.max;
 import static java.lang.Math.min;
 
 /**
@@ -45,9 +48,17 @@ import static java.lang.Math.min;
  * <p><strong>NOTE:</strong> The current implementation is built
  * for file systems that support atomic segment writes (like YAFFS). Most
  * conventional file systems don't support this; if the power goes out while
- * writing a segment, the segment will contain garbage and the file will be
- * corrupt. We'll add journaling support so this class can be used with more
- * file systems later.
+ * writing a segment, the segment will contain garbage. Every element carries a
+ * checksum, and the file is checked when it is opened: damaged elements and
+ * everything after them are discarded, and a damaged header empties the queue,
+ * so that a corrupt file never keeps the queue from working.
+ *
+ * <p>Unless the queue is opened with {@link Durability#sync()}, writes are not
+ * synchronous; they are synced to storage as the {@link Durability} policy
+ * dictates, and the order in which they reach storage is up to the operating
+ * system. Writes that haven't been synced survive a process crash, but not a
+ * system crash. A memory mapped queue syncs the same way, but reads and writes
+ * are memory copies instead of file system calls.
  *
  * @author Bob Lee (bob@squareup.com)
  */
@@ -61,7 +72,19 @@ class QueueFile {
   private static final byte[] ZEROES = new byte[INITIAL_LENGTH];
 
   /** Length of header in bytes. */
-  static final int HEADER_LENGTH = 16;
+  static final int HEADER_LENGTH = 20;
+
+  /**
+   * First int of the header, which marks the file format. Files written before elements had
+   * checksums start with their file length, which never has the high bit set.
+   */
+  private static final int VERSIONED_HEADER = 0x80000001;
+
+  /** Length of the header of files written before elements had checksums. */
+  private static final int LEGACY_HEADER_LENGTH = 16;
+
+  /** Length of the element header of files written before elements had checksums. */
+  private static final int LEGACY_ELEMENT_HEADER_LENGTH = 4;
 
   /**
    * The underlying file. Uses a ring buffer to store entries. Designed so that
@@ -74,23 +97,25 @@ class QueueFile {
    * <p/>
    * <pre>
    *   Format:
-   *     Header              (16 bytes)
-   *     Element Ring Buffer (File Length - 16 bytes)
+   *     Header              (20 bytes)
+   *     Element Ring Buffer (File Length - 20 bytes)
    * <p/>
    *   Header:
+   *     Version                (4 bytes, high bit set)
    *     File Length            (4 bytes)
    *     Element Count          (4 bytes)
    *     First Element Position (4 bytes, =0 if null)
    *     Last Element Position  (4 bytes, =0 if null)
    * <p/>
    *   Element:
-   *     Length (4 bytes)
-   *     Data   (Length bytes)
+   *     Length   (4 bytes)
+   *     Checksum (4 bytes, CRC32 of the data)
+   *     Data     (Length bytes)
    * </pre>
    *
    * Visible for testing.
    */
-  final RandomAccessFile raf;
+  final QueueStorage storage;
 
   /** Cached file length. Always a power of 2. */
   int fileLength;
@@ -105,22 +130,62 @@ class QueueFile {
   private Element last;
 
   /** In-memory buffer. Big enough to hold the header. */
-  private final byte[] buffer = new byte[16];
+  private final byte[] buffer = new byte[HEADER_LENGTH];
+
+  /** Computes element checksums. */
+  private final CRC32 crc = new CRC32();
+
+  /** Number of damaged elements that were discarded when the file was opened. */
+  int discardedElements;
+
+  /** Time it took to check the file when it was opened, in milliseconds. */
+  long recoveryMillis;
+
+  /**
+   * When true, removing an element also overwrites its data with zeroes. Otherwise the data is
+   * left in place until a later addition reuses the space.
+   */
+  private final boolean zero;
+
+  /** When writes are synced to storage. */
+  private final Durability durability;
+
+  /** Number of writes that haven't been synced to storage yet. */
+  private int pendingWrites;
+
+  /** Time of the eldest write that hasn't been synced to storage yet, in milliseconds. */
+  private long pendingSince;
 
   /**
    * Constructs a new queue backed by the given file. Only one {@code QueueFile}
    * instance should access a given file at a time.
    */
   QueueFile(File file) throws IOException {
-    if (!file.exists()) initialize(file);
-    raf = open(file);
-    readHeader();
+    this(file, true, Durability.sync(), false);
   }
 
-  /** For testing. */
-  QueueFile(RandomAccessFile raf) throws IOException {
-    this.raf = raf;
+  /**
+   * Constructs a new queue backed by the given file. Only one {@code QueueFile}
+   * instance should access a given file at a time.
+   *
+   * @param zero whether removed elements should be overwritten with zeroes
+   * @param durability when writes should be synced to storage
+   * @param mapped whether the file should be read and written through a memory mapping
+   */
+  QueueFile(File file, boolean zero, Durability durability, boolean mapped) throws IOException {
+    long start = System.nanoTime();
+    if (!file.exists()) {
+      initialize(file);
+    } else if (isLegacy(file)) {
+      migrate(file);
+    }
+    RandomAccessFile raf = open(file, durability, mapped);
+    storage = mapped ? new QueueStorage.MappedStorage(raf)
+        : new QueueStorage.RandomAccessStorage(raf, durability.mode == Durability.Mode.SYNC);
+    this.zero = zero;
+    this.durability = durability;
     readHeader();
+    recoveryMillis = (System.nanoTime() - start) / 1000000;
   }
 
   /**
@@ -152,22 +217,100 @@ class QueueFile {
         + 2] & 0xff) << 8) + (buffer[offset + 3] & 0xff);
   }
 
-  /** Reads the header. */
+  /**
+   * Reads the header, and checks every element against its checksum. The first damaged element
+   * and everything after it are discarded, since the positions of later elements can't be trusted.
+   * If the header itself is damaged, the queue is emptied.
+   */
   private void readHeader() throws IOException {
-    raf.seek(0);
-    raf.readFully(buffer);
-    fileLength = readInt(buffer, 0);
-    if (fileLength > raf.length()) {
-      throw new IOException(
-          "File is truncated. Expected length: " + fileLength + ", Actual length: " + raf.length());
-    } else if (fileLength == 0) {
-      throw new IOException("File is corrupt; length stored in header is 0.");
-    }
-    elementCount = readInt(buffer, 4);
-    int firstOffset = readInt(buffer, 8);
-    int lastOffset = readInt(buffer, 12);
-    first = readElement(firstOffset);
-    last = readElement(lastOffset);
+    long length = storage.length();
+    if (length < HEADER_LENGTH) {
+      LOGGER.log(Level.WARNING, "File is truncated, length: " + length);
+      reset();
+      return;
+    }
+    storage.read(0, buffer, 0, HEADER_LENGTH);
+    int version = readInt(buffer, 0);
+    fileLength = readInt(buffer, 4);
+    int count = readInt(buffer, 8);
+    int firstPosition = readInt(buffer, 12);
+    int lastPosition = readInt(buffer, 16);
+    if (version != VERSIONED_HEADER
+        || fileLength < INITIAL_LENGTH
+        || fileLength > length
+        || count < 0
+        || !isValidPosition(firstPosition, count)
+        || !isValidPosition(lastPosition, count)) {
+      LOGGER.log(Level.WARNING, "Header is corrupt, version: " + version + ", file length: "
+          + fileLength + ", actual length: " + length + ", count: " + count);
+      discardedElements = version == VERSIONED_HEADER ? max(count, 0) : 0;
+      reset();
+      return;
+    }
+
+    // Walk over the elements, checking their lengths and checksums.
+    byte[] chunk = new byte[8192];
+    int usedBytes = HEADER_LENGTH;
+    int position = firstPosition;
+    Element firstValid = Element.NULL;
+    Element lastValid = Element.NULL;
+    int valid = 0;
+    while (valid < count) {
+      ringRead(position, buffer, 0, Element.HEADER_LENGTH);
+      int elementLength = readInt(buffer, 0);
+      int checksum = readInt(buffer, 4);
+      if (elementLength < 0 || elementLength > fileLength - usedBytes - Element.HEADER_LENGTH) {
+        break;
+      }
+      crc.reset();
+      int dataPosition = wrapPosition(position + Element.HEADER_LENGTH);
+      for (int remaining = elementLength; remaining > 0; ) {
+        int read = min(remaining, chunk.length);
+        ringRead(dataPosition, chunk, 0, read);
+        crc.update(chunk, 0, read);
+        dataPosition = wrapPosition(dataPosition + read);
+        remaining -= read;
+      }
+      if ((int) crc.getValue() != checksum) break;
+
+      lastValid = new Element(position, elementLength);
+      if (valid == 0) firstValid = lastValid;
+      valid++;
+      usedBytes += Element.HEADER_LENGTH + elementLength;
+      position = wrapPosition(position + Element.HEADER_LENGTH + elementLength);
+    }
+
+    discardedElements = count - valid;
+    if (valid == 0) {
+      elementCount = 0;
+      first = Element.NULL;
+      last = Element.NULL;
+      if (count > 0) {
+        LOGGER.log(Level.WARNING, "Discarding all " + count + " elements, the first is corrupt.");
+        clear();
+      }
+      return;
+    }
+    if (valid < count || lastValid.position != lastPosition) {
+      LOGGER.log(Level.WARNING, "Discarding " + (count - valid) + " corrupt elements.");
+      writeHeader(fileLength, valid, firstValid.position, lastValid.position);
+    }
+    elementCount = valid;
+    first = firstValid;
+    last = lastValid;
+  }
+
+  /** Returns true if position may point to an element of a queue with count elements. */
+  private boolean isValidPosition(int position, int count) {
+    if (count == 0) return position == 0;
+    return position >= HEADER_LENGTH && position < fileLength;
+  }
+
+  /** Empties a queue whose header is damaged, and shrinks it to its initial length. */
+  private void reset() throws IOException {
+    setLength(INITIAL_LENGTH);
+    fileLength = INITIAL_LENGTH;
+    clear();
   }
 
   /**
@@ -179,9 +322,8 @@ class QueueFile {
    */
   private void writeHeader(int fileLength, int elementCount, int firstPosition, int lastPosition)
       throws IOException {
-    writeInts(buffer, fileLength, elementCount, firstPosition, lastPosition);
-    raf.seek(0);
-    raf.write(buffer);
+    writeInts(buffer, VERSIONED_HEADER, fileLength, elementCount, firstPosition, lastPosition);
+    storage.write(0, buffer, 0, HEADER_LENGTH);
   }
 
   /** Returns the Element for the given offset. */
@@ -196,12 +338,12 @@ class QueueFile {
   private static void initialize(File file) throws IOException {
     // Use a temp file so we don't leave a partially-initialized file.
     File tempFile = new File(file.getPath() + ".tmp");
-    RandomAccessFile raf = open(tempFile);
+    RandomAccessFile raf = open(tempFile, Durability.sync(), false);
     try {
       raf.setLength(INITIAL_LENGTH);
       raf.seek(0);
-      byte[] headerBuffer = new byte[16];
-      writeInts(headerBuffer, INITIAL_LENGTH, 0, 0, 0);
+      byte[] headerBuffer = new byte[HEADER_LENGTH];
+      writeInts(headerBuffer, VERSIONED_HEADER, INITIAL_LENGTH, 0, 0, 0);
       raf.write(headerBuffer);
     } finally {
       raf.close();
@@ -211,9 +353,105 @@ class QueueFile {
     if (!tempFile.renameTo(file)) throw new IOException("Rename failed!");
   }
 
-  /** Opens a random access file that writes synchronously. */
-  private static RandomAccessFile open(File file) throws FileNotFoundException {
-    return new RandomAccessFile(file, "rwd");
+  /** Returns true if the file was written before elements had checksums. */
+  private static boolean isLegacy(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return raf.length() >= LEGACY_HEADER_LENGTH && (raf.readInt() & 0x80000000) == 0;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Atomically rewrites a file written before elements had checksums in the current format.
+   * Elements that can't be read are left behind.
+   */
+  private static void migrate(File file) throws IOException {
+    File tempFile = new File(file.getPath() + ".tmp");
+    tempFile.delete();
+    // Sync only once, when the migrated file is closed.
+    QueueFile migrated =
+        new QueueFile(tempFile, false, Durability.groupCommit(Long.MAX_VALUE, Integer.MAX_VALUE),
+            false);
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      byte[] header = new byte[LEGACY_HEADER_LENGTH];
+      raf.readFully(header);
+      int fileLength = readInt(header, 0);
+      int count = readInt(header, 4);
+      int position = readInt(header, 8);
+      if (fileLength > LEGACY_HEADER_LENGTH && fileLength <= raf.length()
+          && position >= LEGACY_HEADER_LENGTH) {
+        for (int i = 0; i < count; i++) {
+          legacyRingRead(raf, fileLength, position, header, LEGACY_ELEMENT_HEADER_LENGTH);
+          int length = readInt(header, 0);
+          if (length < 0 || length > fileLength - LEGACY_HEADER_LENGTH) break;
+          byte[] data = new byte[length];
+          legacyRingRead(raf, fileLength, position + LEGACY_ELEMENT_HEADER_LENGTH, data, length);
+          migrated.add(data);
+          position += LEGACY_ELEMENT_HEADER_LENGTH + length;
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to migrate all elements.", e);
+    } finally {
+      raf.close();
+      migrated.close();
+    }
+
+    if (!tempFile.renameTo(file)) throw new IOException("Rename failed!");
+  }
+
+  /** Reads count bytes from a file written before elements had checksums. Wraps if necessary. */
+  private static void legacyRingRead(RandomAccessFile raf, int fileLength, int position,
+      byte[] buffer, int count) throws IOException {
+    while (position >= fileLength) {
+      position = LEGACY_HEADER_LENGTH + position - fileLength;
+    }
+    int beforeEof = min(count, fileLength - position);
+    raf.seek(position);
+    raf.readFully(buffer, 0, beforeEof);
+    if (beforeEof < count) {
+      raf.seek(LEGACY_HEADER_LENGTH);
+      raf.readFully(buffer, beforeEof, count - beforeEof);
+    }
+  }
+
+  /**
+   * Opens a random access file. Writes are synchronous only if the durability policy syncs every
+   * write and the file won't be mapped, since writes to a mapping bypass the file.
+   */
+  private static RandomAccessFile open(File file, Durability durability, boolean mapped)
+      throws FileNotFoundException {
+    boolean synchronous = durability.mode == Durability.Mode.SYNC && !mapped;
+    return new RandomAccessFile(file, synchronous ? "rwd" : "rw");
+  }
+
+  /**
+   * Called after a change has been committed. Syncs pending writes if the durability policy
+   * syncs every change and storage doesn't, or if the policy groups them and the group is
+   * complete.
+   */
+  private void onCommit() throws IOException {
+    if (durability.mode == Durability.Mode.SYNC) {
+      if (!storage.synchronous) storage.force();
+      return;
+    }
+    if (durability.mode != Durability.Mode.GROUP_COMMIT) return;
+    long now = System.nanoTime() / 1000000;
+    if (pendingWrites++ == 0) pendingSince = now;
+    if (pendingWrites >= durability.maxPendingWrites
+        || now - pendingSince >= durability.maxDelayMillis) {
+      sync();
+    }
+  }
+
+  /** Syncs any writes that haven't been synced to storage yet. */
+  synchronized void sync() throws IOException {
+    if (pendingWrites == 0) return;
+    storage.force();
+    pendingWrites = 0;
   }
 
   /** Wraps the position if it exceeds the end of the file. */
@@ -232,16 +470,13 @@ class QueueFile {
   private void ringWrite(int position, byte[] buffer, int offset, int count) throws IOException {
     position = wrapPosition(position);
     if (position + count <= fileLength) {
-      raf.seek(position);
-      raf.write(buffer, offset, count);
+      storage.write(position, buffer, offset, count);
     } else {
       // The write overlaps the EOF.
       // # of bytes to write before the EOF.
       int beforeEof = fileLength - position;
-      raf.seek(position);
-      raf.write(buffer, offset, beforeEof);
-      raf.seek(HEADER_LENGTH);
-      raf.write(buffer, offset + beforeEof, count - beforeEof);
+      storage.write(position, buffer, offset, beforeEof);
+      storage.write(HEADER_LENGTH, buffer, offset + beforeEof, count - beforeEof);
     }
   }
 
@@ -264,16 +499,13 @@ class QueueFile {
   private void ringRead(int position, byte[] buffer, int offset, int count) throws IOException {
     position = wrapPosition(position);
     if (position + count <= fileLength) {
-      raf.seek(position);
-      raf.readFully(buffer, offset, count);
+      storage.read(position, buffer, offset, count);
     } else {
       // The read overlaps the EOF.
       // # of bytes to read before the EOF.
       int beforeEof = fileLength - position;
-      raf.seek(position);
-      raf.readFully(buffer, offset, beforeEof);
-      raf.seek(HEADER_LENGTH);
-      raf.readFully(buffer, offset + beforeEof, count - beforeEof);
+      storage.read(position, buffer, offset, beforeEof);
+      storage.read(HEADER_LENGTH, buffer, offset + beforeEof, count - beforeEof);
     }
   }
 
@@ -310,8 +542,11 @@ class QueueFile {
         : wrapPosition(last.position + Element.HEADER_LENGTH + last.length);
     Element newLast = new Element(position, count);
 
-    // Write length.
+    // Write length and checksum.
+    crc.reset();
+    crc.update(data, offset, count);
     writeInt(buffer, 0, count);
+    writeInt(buffer, 4, (int) crc.getValue());
     ringWrite(newLast.position, buffer, 0, Element.HEADER_LENGTH);
 
     // Write data.
@@ -323,10 +558,14 @@ class QueueFile {
     last = newLast;
     elementCount++;
     if (wasEmpty) first = last; // first element
+    onCommit();
   }
 
-  /** Returns the number of used bytes. */
-  private int usedBytes() {
+  /**
+   * Returns the number of used bytes, including the file header. This is computed from the
+   * positions of the first and last elements, so it doesn't need to read the file.
+   */
+  synchronized int usedBytes() {
     if (elementCount == 0) return HEADER_LENGTH;
 
     if (last.position >= first.position) {
@@ -380,12 +619,8 @@ class QueueFile {
 
     // If the buffer is split, we need to make it contiguous
     if (endOfLastElement <= first.position) {
-      FileChannel channel = raf.getChannel();
-      channel.position(fileLength); // destination position
       int count = endOfLastElement - HEADER_LENGTH;
-      if (channel.transferTo(HEADER_LENGTH, count, channel) != count) {
-        throw new AssertionError("Copied insufficient number of bytes!");
-      }
+      storage.copy(HEADER_LENGTH, fileLength, count);
       ringErase(HEADER_LENGTH, count);
     }
 
@@ -404,8 +639,7 @@ class QueueFile {
   /** Sets the length of the file. */
   private void setLength(int newLength) throws IOException {
     // Set new file length (considered metadata) and sync it to storage.
-    raf.setLength(newLength);
-    raf.getChannel().force(true);
+    storage.setLength(newLength);
   }
 
   /** Reads the eldest element. Returns null if the queue is empty. */
@@ -417,6 +651,21 @@ class QueueFile {
     return data;
   }
 
+  /** Reads the eldest {@code n} elements, or all of them if there are fewer than {@code n}. */
+  synchronized List<byte[]> peek(int n) throws IOException {
+    int count = min(n, elementCount);
+    List<byte[]> elements = new ArrayList<byte[]>(count);
+    int position = first.position;
+    for (int i = 0; i < count; i++) {
+      Element current = readElement(position);
+      byte[] data = new byte[current.length];
+      ringRead(current.position + Element.HEADER_LENGTH, data, 0, current.length);
+      elements.add(data);
+      position = wrapPosition(current.position + Element.HEADER_LENGTH + current.length);
+    }
+    return elements;
+  }
+
   /** Invokes reader with the eldest element, if an element is available. */
   synchronized void peek(ElementReader reader) throws IOException {
     if (elementCount > 0) {
@@ -437,6 +686,19 @@ class QueueFile {
     }
   }
 
+  /**
+   * Invokes the given visitor once for each element in the queue, from eldest to most recently
+   * added, until the visitor returns false.
+   */
+  synchronized void forEachUntil(ElementVisitor visitor) throws IOException {
+    int position = first.position;
+    for (int i = 0; i < elementCount; i++) {
+      Element current = readElement(position);
+      if (!visitor.read(new ElementInputStream(current), current.length)) return;
+      position = wrapPosition(current.position + Element.HEADER_LENGTH + current.length);
+    }
+  }
+
   /**
    * Returns t unless it's null.
    *
@@ -475,8 +737,7 @@ class QueueFile {
 
     @Override public int read() throws IOException {
       if (remaining == 0) return -1;
-      raf.seek(position);
-      int b = raf.read();
+      int b = storage.read(position);
       position = wrapPosition(position + 1);
       remaining--;
       return b;
@@ -495,38 +756,68 @@ class QueueFile {
    */
   synchronized void remove() throws IOException {
     if (isEmpty()) throw new NoSuchElementException();
-    if (elementCount == 1) {
+    remove(1);
+  }
+
+  /**
+   * Removes the eldest {@code n} elements. Only the element headers are read to find the new
+   * first element, and the removal is committed with a single header write.
+   *
+   * @throws IllegalArgumentException if {@code n} is negative or greater than the number of
+   * elements in the queue
+   */
+  synchronized void remove(int n) throws IOException {
+    if (n < 0) {
+      throw new IllegalArgumentException("Cannot remove negative (" + n + ") number of elements.");
+    }
+    if (n == 0) return;
+    if (n == elementCount) {
       clear();
-    } else {
-      // assert elementCount > 1
-      int firstTotalLength = Element.HEADER_LENGTH + first.length;
+      return;
+    }
+    if (n > elementCount) {
+      throw new IllegalArgumentException(
+          "Cannot remove more elements (" + n + ") than present in queue (" + elementCount + ").");
+    }
 
-      ringErase(first.position, firstTotalLength);
+    int eraseStartPosition = first.position;
+    int eraseTotalLength = 0;
 
-      int newFirstPosition = wrapPosition(first.position + firstTotalLength);
+    // Skip over the removed elements to find the position and length of the new first element.
+    int newFirstPosition = first.position;
+    int newFirstLength = first.length;
+    for (int i = 0; i < n; i++) {
+      eraseTotalLength += Element.HEADER_LENGTH + newFirstLength;
+      newFirstPosition = wrapPosition(newFirstPosition + Element.HEADER_LENGTH + newFirstLength);
       ringRead(newFirstPosition, buffer, 0, Element.HEADER_LENGTH);
-      int length = readInt(buffer, 0);
-      writeHeader(fileLength, elementCount - 1, newFirstPosition, last.position);
-      elementCount--;
-      first = new Element(newFirstPosition, length);
+      newFirstLength = readInt(buffer, 0);
     }
+
+    // Commit the removal.
+    writeHeader(fileLength, elementCount - n, newFirstPosition, last.position);
+    elementCount -= n;
+    first = new Element(newFirstPosition, newFirstLength);
+
+    if (zero) ringErase(eraseStartPosition, eraseTotalLength);
+    onCommit();
   }
 
   /** Clears this queue. Truncates the file to the initial size. */
   synchronized void clear() throws IOException {
-    raf.seek(0);
-    raf.write(ZEROES);
+    storage.write(0, ZEROES, 0, ZEROES.length);
     writeHeader(INITIAL_LENGTH, 0, 0, 0);
     elementCount = 0;
     first = Element.NULL;
     last = Element.NULL;
     if (fileLength > INITIAL_LENGTH) setLength(INITIAL_LENGTH);
     fileLength = INITIAL_LENGTH;
+    onCommit();
   }
 
-  /** Closes the underlying file. */
+  /** Syncs any pending writes and closes the underlying file. */
   synchronized void close() throws IOException {
-    raf.close();
+    sync();
+    storage.close();
   }
 
   @Override public String toString() {
@@ -560,8 +851,8 @@ class QueueFile {
   /** A pointer to an element. */
   static class Element {
 
-    /** Length of element header in bytes. */
-    static final int HEADER_LENGTH = 4;
+    /** Length of element header in bytes: the data length and its checksum. */
+    static final int HEADER_LENGTH = 8;
 
     /** Null element. */
     static final Element NULL = new Element(0, 0);
@@ -614,4 +905,19 @@ class QueueFile {
      */
     void read(InputStream in, int length) throws IOException;
   }
-}
\ No newline at end of file
+
+  /** Reads queue elements until told to stop. */
+  interface ElementVisitor {
+
+    /**
+     * Called once per element.
+     *
+     * @param in stream of element data. Reads as many bytes as requested,
+     * unless fewer than the request number of bytes remains, in
+     * which case it reads all the remaining bytes. Not buffered.
+     * @param length of element data in bytes
+     * @return true to continue reading elements, false to stop
+     */
+    boolean read(InputStream in, int length) throws IOException;
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads and writes the bytes of a {@link QueueFile}. The queue file owns the header and ring
+ * buffer layout, storage only moves bytes between memory and the file, so that both
+ * implementations share the same on-disk format.
+ */
+abstract class QueueStorage {
+  final RandomAccessFile raf;
+
+  /** True if writes reach storage before they return, so they never need to be forced. */
+  final boolean synchronous;
+
+  QueueStorage(RandomAccessFile raf, boolean synchronous) {
+    this.raf = raf;
+    this.synchronous = synchronous;
+  }
+
+  /** Reads exactly {@code count} bytes at {@code position} into the buffer. */
+  abstract void read(int position, byte[] buffer, int offset, int count) throws IOException;
+
+  /** Reads the byte at {@code position}. */
+  abstract int read(int position) throws IOException;
+
+  /** Writes {@code count} bytes from the buffer at {@code position}. */
+  abstract void write(int position, byte[] buffer, int offset, int count) throws IOException;
+
+  /** Copies {@code count} bytes from {@code from} to {@code to}. The ranges must not overlap. */
+  abstract void copy(int from, int to, int count) throws IOException;
+
+  /** Syncs writes to storage. */
+  abstract void force() throws IOException;
+
+  /** Returns the length of the file. */
+  long length() throws IOException {
+    return raf.length();
+  }
+
+  /** Sets the length of the file, and syncs the new length to storage. */
+  void setLength(int length) throws IOException {
+    raf.setLength(length);
+    raf.getChannel().force(true);
+  }
+
+  void close() throws IOException {
+    raf.close();
+  }
+
+  /** Reads and writes with {@link RandomAccessFile#seek} and friends. */
+  static class RandomAccessStorage extends QueueStorage {
+    RandomAccessStorage(RandomAccessFile raf, boolean synchronous) {
+      super(raf, synchronous);
+    }
+
+    @Override void read(int position, byte[] buffer, int offset, int count) throws IOException {
+      raf.seek(position);
+      raf.readFully(buffer, offset, count);
+    }
+
+    @Override int read(int position) throws IOException {
+      raf.seek(position);
+      return raf.read();
+    }
+
+    @Override void write(int position, byte[] buffer, int offset, int count) throws IOException {
+      raf.seek(position);
+      raf.write(buffer, offset, count);
+    }
+
+    @Override void copy(int from, int to, int count) throws IOException {
+      FileChannel channel = raf.getChannel();
+      channel.position(to);
+      if (channel.transferTo(from, count, channel) != count) {
+        throw new AssertionError("Copied insufficient number of bytes!");
+      }
+    }
+
+    @Override void force() throws IOException {
+      raf.getChannel().force(false);
+    }
+  }
+
+  /**
+   * Reads and writes through a {@link MappedByteBuffer} over the whole file. Reads are memory
+   * copies from the page cache, and writes reach storage only when they are forced. The file is
+   * mapped again when its length changes; the previous mapping is released once it is garbage
+   * collected, since Android has no way to unmap a buffer explicitly.
+   */
+  static class MappedStorage extends QueueStorage {
+    private MappedByteBuffer buffer;
+
+    MappedStorage(RandomAccessFile raf) throws IOException {
+      super(raf, false);
+      map();
+    }
+
+    private void map() throws IOException {
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    }
+
+    @Override void read(int position, byte[] buffer, int offset, int count) {
+      this.buffer.position(position);
+      this.buffer.get(buffer, offset, count);
+    }
+
+    @Override int read(int position) {
+      return buffer.get(position) & 0xff;
+    }
+
+    @Override void write(int position, byte[] buffer, int offset, int count) {
+      this.buffer.position(position);
+      this.buffer.put(buffer, offset, count);
+    }
+
+    @Override void copy(int from, int to, int count) {
+      ByteBuffer source = buffer.duplicate();
+      source.position(from);
+      source.limit(from + count);
+      buffer.position(to);
+      buffer.put(source);
+    }
+
+    @Override void force() {
+      buffer.force();
+    }
+
+    @Override void setLength(int length) throws IOException {
+      // Writes to the current mapping must not be lost when it is replaced.
+      buffer.force();
+      super.setLength(length);
+      map();
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded queue that any number of threads can offer to, and a single thread polls from. Its
+ * slots are allocated up front and claimed with a compare-and-set, so offering doesn't allocate
+ * or take a lock.
+ * <p/>
+ * Each slot has a sequence number that says whose turn it is: a slot can be filled for position
+ * {@code p} once its sequence is {@code p}, and read once its sequence is {@code p + 1}. Reading
+ * it sets the sequence to {@code p + capacity}, the position that next uses the slot.
+ */
+final class RingBuffer<T> {
+  private final Object[] elements;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  /** The next position to fill, shared by the producers. */
+  private final AtomicLong tail = new AtomicLong();
+  /** The next position to read, only used by the consumer. */
+  private long head;
+
+  /** Creates a buffer with at least {@code capacity} slots, rounded up to a power of two. */
+  RingBuffer(int capacity) {
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("capacity must be between 1 and 2^30: " + capacity);
+    }
+    int slots = Integer.highestOneBit(capacity);
+    if (slots < capacity) slots <<= 1;
+    elements = new Object[slots];
+    sequences = new AtomicLongArray(slots);
+    for (int i = 0; i < slots; i++) {
+      sequences.set(i, i);
+    }
+    mask = slots - 1;
+  }
+
+  int capacity() {
+    return elements.length;
+  }
+
+  /** Adds an element, or returns false if the buffer is full. Safe to call from any thread. */
+  boolean offer(T element) {
+    long position = tail.get();
+    int index;
+    while (true) {
+      index = (int) position & mask;
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) break;
+        position = tail.get();
+      } else if (difference < 0) {
+        return false; // The slot still holds the element from one lap ago.
+      } else {
+        position = tail.get(); // Another producer claimed this position first.
+      }
+    }
+    elements[index] = element;
+    sequences.set(index, position + 1);
+    return true;
+  }
+
+  /**
+   * Removes and returns the eldest element, or returns null if there is none. Must only be called
+   * from the consumer thread.
+   */
+  @SuppressWarnings("unchecked") T poll() {
+    int index = (int) head & mask;
+    if (sequences.get(index) != head + 1) {
+      return null; // Empty, or the producer that claimed the slot hasn't filled it yet.
+    }
+    T element = (T) elements[index];
+    elements[index] = null;
+    sequences.set(index, head + elements.length);
+    head++;
+    return element;
+  }
+}
@@ -38,9 +38,9 @@ class ScreenPayload extends BasePayload {
 
   String nameOrCategory;
 
-  ScreenPayload(String anonymousId, AnalyticsContext context, String userId, String category,
-      String name, Properties properties, Options options) {
-    super(Type.screen, anonymousId, context, userId, options);
+  ScreenPayload(String messageId, long timestamp, String anonymousId, AnalyticsContext context,
+      String userId, String category, String name, Properties properties, Options options) {
+    super(Type.screen, messageId, timestamp, anonymousId, context, userId, options);
     put(CATEGORY_KEY, category);
     put(NAME_KEY, name);
     put(PROPERTIES_KEY, properties);
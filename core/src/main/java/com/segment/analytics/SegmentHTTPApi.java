@@ -29,24 +29,44 @@ import android.util.Base64;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import javax.net.ssl.HttpsURLConnection;
-
-import static com.segment.analytics.Dispatcher.BatchPayload;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+import static com.segment.analytics.Utils.isNullOrEmpty;
 import static java.net.HttpURLConnection.HTTP_OK;
 
 class SegmentHTTPApi {
   static final String API_URL = "https://api.segment.io/";
 
-  private final String writeKey;
-
-  SegmentHTTPApi(String writeKey) {
-    this.writeKey = writeKey;
+  private final Client client;
+  private final URL importUrl;
+  private final URL settingsUrl;
+  /** Computed once, rather than encoded for every request. */
+  private final String authorization;
+  /** The gzip level uploads are compressed with, or 0 to leave them uncompressed. */
+  private final int compressionLevel;
+  private final Stats stats;
+
+  SegmentHTTPApi(Client client, String writeKey, int compressionLevel, Stats stats) {
+    this.client = client;
+    importUrl = createUrl("v1/import");
+    settingsUrl = createUrl("project/" + writeKey + "/settings");
+    authorization =
+        "Basic " + Base64.encodeToString((writeKey + ":").getBytes(), Base64.NO_WRAP);
+    this.compressionLevel = compressionLevel;
+    this.stats = stats;
 
     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
       // bug in pre-froyo, http://android-developers.blogspot.com/2011/09/androids-http-clients.html
@@ -63,37 +83,51 @@ class SegmentHTTPApi {
     }
   }
 
-  void upload(BatchPayload batchPayload) throws IOException {
-    HttpsURLConnection urlConnection = (HttpsURLConnection) createUrl("v1/import").openConnection();
+  /**
+   * Uploads a batch to the import endpoint. The request body is copied onto the connection by the
+   * given {@code writer}, compressing it on the way if enabled. The dispatcher renders batches
+   * into memory first, so errors thrown here come from the network or the server, not from the
+   * queue. The connection is left open to be reused by the next upload.
+   */
+  void upload(StreamWriter writer) throws IOException {
+    HttpURLConnection urlConnection = client.open(importUrl);
 
     urlConnection.setDoOutput(true);
     urlConnection.setDoInput(true);
     urlConnection.setRequestMethod("POST");
     urlConnection.setRequestProperty("Content-Type", "application/json");
-    urlConnection.setRequestProperty("Authorization",
-        "Basic " + Base64.encodeToString((writeKey + ":").getBytes(), Base64.NO_WRAP));
+    if (compressionLevel > 0) {
+      urlConnection.setRequestProperty("Content-Encoding", "gzip");
+    }
+    urlConnection.setRequestProperty("Authorization", authorization);
     urlConnection.setChunkedStreamingMode(0);
 
-    OutputStream out = new BufferedOutputStream(urlConnection.getOutputStream());
-    out.write(batchPayload.toString().getBytes());
+    CountingOutputStream compressed = new CountingOutputStream(urlConnection.getOutputStream());
+    CountingOutputStream raw = compressionLevel > 0
+        ? new CountingOutputStream(new GzipOutputStream(compressed, compressionLevel))
+        : compressed;
+    OutputStream out = new BufferedOutputStream(raw);
+    writer.writeTo(out);
     out.close();
 
     int responseCode = urlConnection.getResponseCode();
     if (responseCode != HTTP_OK) {
       String message = readFully(urlConnection.getErrorStream());
-      throw new IOException("Could not upload payloads. Response code: "
+      throw new HTTPException("Could not upload payloads. Response code: "
           + responseCode
           + ", response message: "
           + urlConnection.getResponseMessage()
           + ", body: "
-          + message);
+          + message, responseCode,
+          parseRetryAfter(urlConnection.getHeaderField("Retry-After"), System.currentTimeMillis()));
     }
-    urlConnection.disconnect();
+    // Reading the response to the end lets the connection go back to the pool.
+    readFully(urlConnection.getInputStream());
+    stats.dispatchUpload(raw.count, compressed.count);
   }
 
   ProjectSettings fetchSettings() throws IOException {
-    HttpsURLConnection urlConnection =
-        (HttpsURLConnection) createUrl("project/" + writeKey + "/settings").openConnection();
+    HttpURLConnection urlConnection = client.open(settingsUrl);
 
     urlConnection.setDoInput(true);
     urlConnection.setRequestMethod("GET");
@@ -114,17 +148,103 @@ class SegmentHTTPApi {
     }
 
     String json = readFully(in);
-    in.close();
-    urlConnection.disconnect();
     return ProjectSettings.create(json, System.currentTimeMillis());
   }
 
+  /**
+   * Returns the wait a Retry-After header asks for in milliseconds, or -1 if there isn't one or it
+   * can't be read. The header is either a number of seconds or an HTTP date.
+   */
+  static long parseRetryAfter(String retryAfter, long now) {
+    if (isNullOrEmpty(retryAfter)) return -1;
+    try {
+      return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+    } catch (NumberFormatException ignored) {
+      // Not a number of seconds, so it should be a date.
+    }
+    DateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    try {
+      return Math.max(0, format.parse(retryAfter.trim()).getTime() - now);
+    } catch (ParseException e) {
+      return -1;
+    }
+  }
+
+  /** Reads {@code in} to the end and closes it. */
   private static String readFully(InputStream in) throws IOException {
+    if (in == null) return null;
     BufferedReader r = new BufferedReader(new InputStreamReader(in));
-    StringBuilder response = new StringBuilder();
-    for (String line; (line = r.readLine()) != null; ) {
-      response.append(line);
+    try {
+      StringBuilder response = new StringBuilder();
+      for (String line; (line = r.readLine()) != null; ) {
+        response.append(line);
+      }
+      return response.toString();
+    } finally {
+      r.close();
+    }
+  }
+
+  /** Writes a request body to an output stream. */
+  interface StreamWriter {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /** An upload that the server answered with an error. */
+  static class HTTPException extends IOException {
+    final int responseCode;
+    /** How long the server asked us to wait before trying again, -1 if it didn't. */
+    final long retryAfterMillis;
+
+    HTTPException(String message, int responseCode, long retryAfterMillis) {
+      super(message);
+      this.responseCode = responseCode;
+      this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Returns true if the same request may succeed later: the request timed out ({@code 408}), or
+     * the server is overloaded or failing ({@code 429} and {@code 5xx}). Other errors are caused
+     * by the request itself.
+     */
+    boolean isRetryable() {
+      return responseCode == 408 || responseCode == 429 || responseCode >= 500;
+    }
+
+    /**
+     * Returns true if the server rejected the events in the batch, as opposed to the credentials
+     * or endpoint, so that sending the same events can never succeed.
+     */
+    boolean isBatchRejected() {
+      return responseCode == 400 || responseCode == 413 || responseCode == 422;
+    }
+  }
+
+  /** A {@link GZIPOutputStream} that compresses at the given level. */
+  static class GzipOutputStream extends GZIPOutputStream {
+    GzipOutputStream(OutputStream out, int level) throws IOException {
+      super(out);
+      def.setLevel(level);
+    }
+  }
+
+  /** Counts the bytes written through it. */
+  static class CountingOutputStream extends FilterOutputStream {
+    int count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
     }
-    return response.toString();
   }
 }
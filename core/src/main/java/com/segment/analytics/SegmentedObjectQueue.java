@@ -0,0 +1,550 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * A queue stored in a directory of segment files. Entries are appended to the newest segment,
+ * and a new segment is started once it would grow beyond the segment length. Segments are read
+ * from the eldest one, and deleted as soon as all their entries have been removed, so disk space
+ * is given back as the queue drains rather than kept until the queue is empty.
+ *
+ * <p>Adding entries only locks the newest segment, and reading or removing entries only locks
+ * the eldest one, so a thread can add entries while another one reads them.
+ *
+ * <pre>
+ *   Segment:
+ *     Version (4 bytes, high bit set)
+ *     Position of the first unread entry (4 bytes)
+ *     Entries
+ *
+ *   Entry:
+ *     Length   (4 bytes)
+ *     Checksum (4 bytes, CRC32 of the data)
+ *     Data     (Length bytes)
+ * </pre>
+ *
+ * Removals are committed by writing the position of the first unread entry into the eldest
+ * segment, after fully read segments have been deleted. When the queue is opened again, every
+ * unread entry is checked against its checksum; a segment is truncated at its first damaged or
+ * partly written entry, since the positions of the entries after it can't be trusted.
+ *
+ * @param <T> The type of elements in the queue.
+ */
+class SegmentedObjectQueue<T> implements ObjectQueue<T> {
+  /** Length of the segment header, which holds the version and the first unread position. */
+  static final int HEADER_LENGTH = 8;
+  /** Length of the header in front of each entry, which holds its length and checksum. */
+  static final int ENTRY_HEADER_LENGTH = 8;
+  private static final int VERSIONED_HEADER = 0x80000001;
+
+  private final File directory;
+  private final int segmentLength;
+  private final FileObjectQueue.Converter<T> converter;
+  private final Durability durability;
+
+  /** Segments from eldest to newest; entries are appended to the last one. Guarded by itself. */
+  private final LinkedList<Segment> segments = new LinkedList<Segment>();
+  /** Guards adding entries to the newest segment. */
+  private final Object writeLock = new Object();
+  /** Guards reading and removing entries from the eldest segments. */
+  private final Object readLock = new Object();
+
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicInteger usedBytes = new AtomicInteger();
+
+  /** Reusable buffer for entries being added. Guarded by writeLock. */
+  private final FileObjectQueue.DirectByteArrayOutputStream bytes =
+      new FileObjectQueue.DirectByteArrayOutputStream();
+  /** Checksum of entries being added. Guarded by writeLock. */
+  private final CRC32 crc = new CRC32();
+  /** Reusable buffer for ints being read. Guarded by readLock. */
+  private final ByteBuffer header = ByteBuffer.allocate(4);
+
+  private int discardedEntries;
+  private final long recoveryMillis;
+
+  /** Number of writes that haven't been synced to storage yet. Guarded by this. */
+  private int pendingWrites;
+  /** Time of the eldest write that hasn't been synced to storage yet. Guarded by this. */
+  private long pendingSince;
+
+  private volatile Listener<T> listener;
+
+  SegmentedObjectQueue(File directory, int segmentLength, FileObjectQueue.Converter<T> converter,
+      Durability durability) throws IOException {
+    this.directory = directory;
+    this.segmentLength = segmentLength;
+    this.converter = converter;
+    this.durability = durability;
+
+    long start = System.nanoTime();
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory " + directory);
+    }
+    File[] files = directory.listFiles();
+    if (files == null) throw new IOException("Unable to list directory " + directory);
+    long[] ids = new long[files.length];
+    int count = 0;
+    for (File file : files) {
+      try {
+        ids[count] = Long.parseLong(file.getName());
+        count++;
+      } catch (NumberFormatException ignored) {
+        // Not a segment.
+      }
+    }
+    ids = Arrays.copyOf(ids, count);
+    Arrays.sort(ids);
+
+    for (int i = 0; i < ids.length; i++) {
+      Segment segment = openSegment(ids[i]);
+      // Fully read segments that weren't deleted yet, other than the newest.
+      if (segment.readPosition == segment.writePosition && i < ids.length - 1) {
+        deleteSegment(segment);
+      } else {
+        segments.add(segment);
+      }
+    }
+    if (segments.isEmpty()) {
+      segments.add(createSegment(0));
+    }
+    recoveryMillis = (System.nanoTime() - start) / 1000000;
+  }
+
+  /** Number of damaged entries that were discarded when the queue was opened. */
+  int corruptEntries() {
+    return discardedEntries;
+  }
+
+  /** Time it took to check the segments when the queue was opened, in milliseconds. */
+  long recoveryMillis() {
+    return recoveryMillis;
+  }
+
+  /**
+   * Opens an existing segment, and checks its unread entries against their checksums. The segment
+   * is truncated at the first damaged or partly written entry, which is counted as discarded.
+   */
+  private Segment openSegment(long id) throws IOException {
+    Segment segment = new Segment(id, new File(directory, String.valueOf(id)));
+    long length = segment.channel.size();
+    if (length < HEADER_LENGTH || readInt(segment.channel, 0) != VERSIONED_HEADER) {
+      // The segment was only just created, or its header is damaged.
+      if (length > HEADER_LENGTH) discardedEntries++;
+      segment.channel.truncate(0);
+      initialize(segment);
+      return segment;
+    }
+
+    int readPosition = readInt(segment.channel, 4);
+    if (readPosition < HEADER_LENGTH || readPosition > length) readPosition = HEADER_LENGTH;
+    ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_LENGTH);
+    ByteBuffer chunk = ByteBuffer.allocate(8192);
+    int position = readPosition;
+    while (position + ENTRY_HEADER_LENGTH <= length) {
+      entryHeader.clear();
+      readFully(segment.channel, entryHeader, position);
+      int entryLength = entryHeader.getInt(0);
+      int checksum = entryHeader.getInt(4);
+      if (entryLength < 0 || entryLength > length - position - ENTRY_HEADER_LENGTH) break;
+      crc.reset();
+      long dataPosition = position + ENTRY_HEADER_LENGTH;
+      for (int remaining = entryLength; remaining > 0; ) {
+        chunk.clear();
+        chunk.limit(Math.min(remaining, chunk.capacity()));
+        readFully(segment.channel, chunk, dataPosition);
+        crc.update(chunk.array(), 0, chunk.limit());
+        dataPosition += chunk.limit();
+        remaining -= chunk.limit();
+      }
+      if ((int) crc.getValue() != checksum) break;
+      position += ENTRY_HEADER_LENGTH + entryLength;
+      size.incrementAndGet();
+      usedBytes.addAndGet(ENTRY_HEADER_LENGTH + entryLength);
+    }
+    if (position < length) {
+      discardedEntries++;
+      segment.channel.truncate(position);
+    }
+    segment.readPosition = readPosition;
+    segment.writePosition = position;
+    return segment;
+  }
+
+  /** Creates an empty segment. */
+  private Segment createSegment(long id) throws IOException {
+    Segment segment = new Segment(id, new File(directory, String.valueOf(id)));
+    initialize(segment);
+    return segment;
+  }
+
+  /** Writes the header of an empty segment. */
+  private void initialize(Segment segment) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+    buffer.putInt(0, VERSIONED_HEADER);
+    buffer.putInt(4, HEADER_LENGTH);
+    writeFully(segment.channel, buffer, 0);
+    segment.readPosition = HEADER_LENGTH;
+    segment.writePosition = HEADER_LENGTH;
+  }
+
+  private void deleteSegment(Segment segment) throws IOException {
+    synchronized (segments) {
+      segments.remove(segment);
+    }
+    segment.close();
+    if (!segment.file.delete()) throw new IOException("Unable to delete " + segment.file);
+  }
+
+  private void writeHeader(Segment segment, int readPosition) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(4);
+    buffer.putInt(0, readPosition);
+    writeFully(segment.channel, buffer, 4);
+  }
+
+  private int readInt(FileChannel channel, long position) throws IOException {
+    header.clear();
+    readFully(channel, header, position);
+    return header.getInt(0);
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read == -1) throw new EOFException();
+      position += read;
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private List<Segment> snapshot() {
+    synchronized (segments) {
+      return new ArrayList<Segment>(segments);
+    }
+  }
+
+  private Segment newest() {
+    synchronized (segments) {
+      return segments.getLast();
+    }
+  }
+
+  /** Syncs the segment if the durability policy asks for it. */
+  private void onCommit(Segment segment) throws IOException {
+    switch (durability.mode) {
+      case SYNC:
+        segment.channel.force(false);
+        break;
+      case GROUP_COMMIT:
+        segment.dirty = true;
+        synchronized (this) {
+          long now = System.nanoTime() / 1000000;
+          if (pendingWrites++ == 0) pendingSince = now;
+          if (pendingWrites >= durability.maxPendingWrites
+              || now - pendingSince >= durability.maxDelayMillis) {
+            sync();
+          }
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+  @Override public int size() {
+    return size.get();
+  }
+
+  @Override public int usedBytes() {
+    return usedBytes.get();
+  }
+
+  @Override public void add(T entry) throws IOException {
+    Segment segment;
+    int length;
+    synchronized (writeLock) {
+      bytes.reset();
+      bytes.write(new byte[ENTRY_HEADER_LENGTH]); // The entry length and checksum go here.
+      converter.toStream(entry, bytes);
+      length = bytes.size();
+      crc.reset();
+      crc.update(bytes.getArray(), ENTRY_HEADER_LENGTH, length - ENTRY_HEADER_LENGTH);
+      ByteBuffer buffer = ByteBuffer.wrap(bytes.getArray(), 0, length);
+      buffer.putInt(0, length - ENTRY_HEADER_LENGTH);
+      buffer.putInt(4, (int) crc.getValue());
+
+      segment = newest();
+      if (segment.writePosition > HEADER_LENGTH && segment.writePosition + length > segmentLength) {
+        Segment next = createSegment(segment.id + 1);
+        synchronized (segments) {
+          segments.addLast(next);
+        }
+        segment = next;
+      }
+      writeFully(segment.channel, buffer, segment.writePosition);
+      segment.writePosition += length;
+    }
+    size.incrementAndGet();
+    usedBytes.addAndGet(length);
+    onCommit(segment);
+    Listener<T> listener = this.listener;
+    if (listener != null) listener.onAdd(this, entry);
+  }
+
+  @Override public T peek() throws IOException {
+    List<T> entries = peek(1);
+    return entries.isEmpty() ? null : entries.get(0);
+  }
+
+  @Override public List<T> peek(int n) throws IOException {
+    List<T> entries = new ArrayList<T>(Math.min(n, size.get()));
+    synchronized (readLock) {
+      Cursor cursor = new Cursor();
+      while (entries.size() < n && cursor.next()) {
+        byte[] data = new byte[cursor.length];
+        readFully(cursor.segment.channel, ByteBuffer.wrap(data),
+            cursor.position + ENTRY_HEADER_LENGTH);
+        entries.add(converter.from(data));
+        cursor.skip();
+      }
+    }
+    return entries;
+  }
+
+  @Override public void remove() throws IOException {
+    if (size.get() == 0) throw new NoSuchElementException();
+    remove(1);
+  }
+
+  @Override public void remove(int n) throws IOException {
+    if (n < 0) {
+      throw new IllegalArgumentException("Cannot remove negative (" + n + ") number of elements.");
+    }
+    if (n == 0) return;
+
+    int removedBytes = 0;
+    synchronized (readLock) {
+      if (n > size.get()) {
+        throw new IllegalArgumentException(
+            "Cannot remove more elements (" + n + ") than present in queue (" + size.get() + ").");
+      }
+      Cursor cursor = new Cursor();
+      for (int i = 0; i < n; i++) {
+        if (!cursor.next()) throw new AssertionError("Queue has fewer entries than its size.");
+        removedBytes += ENTRY_HEADER_LENGTH + cursor.length;
+        cursor.skip();
+      }
+
+      // Segments before the cursor have been read completely, and so has the cursor's segment if
+      // it is at its end and no longer being written to.
+      for (int i = 0; i < cursor.index; i++) {
+        deleteSegment(cursor.segments.get(i));
+      }
+      Segment segment = cursor.segment;
+      if (cursor.position == segment.writePosition && segment != newest()) {
+        deleteSegment(segment);
+      } else {
+        writeHeader(segment, cursor.position);
+        segment.readPosition = cursor.position;
+        onCommit(segment);
+      }
+      size.addAndGet(-n);
+      usedBytes.addAndGet(-removedBytes);
+    }
+
+    Listener<T> listener = this.listener;
+    if (listener != null) {
+      for (int i = 0; i < n; i++) {
+        listener.onRemove(this);
+      }
+    }
+  }
+
+  @Override public synchronized void sync() throws IOException {
+    for (Segment segment : snapshot()) {
+      if (!segment.dirty) continue;
+      segment.dirty = false;
+      try {
+        segment.channel.force(false);
+      } catch (ClosedChannelException ignored) {
+        // The segment was deleted, there is nothing left to sync.
+      }
+    }
+    pendingWrites = 0;
+  }
+
+  @Override public void forEach(QueueFile.ElementVisitor visitor) throws IOException {
+    synchronized (readLock) {
+      Cursor cursor = new Cursor();
+      while (cursor.next()) {
+        InputStream in = new EntryInputStream(cursor.segment.channel,
+            cursor.position + ENTRY_HEADER_LENGTH, cursor.length);
+        if (!visitor.read(in, cursor.length)) return;
+        cursor.skip();
+      }
+    }
+  }
+
+  @Override public void setListener(final Listener<T> listener) throws IOException {
+    if (listener != null) {
+      forEach(new QueueFile.ElementVisitor() {
+        @Override public boolean read(InputStream in, int length) throws IOException {
+          byte[] data = new byte[length];
+          in.read(data, 0, length);
+          listener.onAdd(SegmentedObjectQueue.this, converter.from(data));
+          return true;
+        }
+      });
+    }
+    this.listener = listener;
+  }
+
+  /** Closes all segments. */
+  void close() throws IOException {
+    sync();
+    for (Segment segment : snapshot()) {
+      segment.close();
+    }
+  }
+
+  @Override public String toString() {
+    return "SegmentedObjectQueue{"
+        + "directory="
+        + directory
+        + ", segments="
+        + snapshot().size()
+        + ", size="
+        + size.get()
+        + ", usedBytes="
+        + usedBytes.get()
+        + '}';
+  }
+
+  /** Walks over the unread entries, eldest first. Only used while holding the read lock. */
+  private final class Cursor {
+    final List<Segment> segments = snapshot();
+    int index;
+    Segment segment = segments.get(0);
+    /** Position of the current entry. */
+    int position = segment.readPosition;
+    /** Length of the current entry. */
+    int length;
+
+    /** Moves to the next entry, returns false if there are no more entries. */
+    boolean next() throws IOException {
+      while (position >= segment.writePosition) {
+        if (index == segments.size() - 1) return false;
+        segment = segments.get(++index);
+        position = segment.readPosition;
+      }
+      length = readInt(segment.channel, position);
+      if (length < 0 || length > segment.writePosition - position - ENTRY_HEADER_LENGTH) {
+        throw new IOException("Corrupt entry at " + position + " in " + segment.file);
+      }
+      return true;
+    }
+
+    /** Skips over the current entry. */
+    void skip() {
+      position += ENTRY_HEADER_LENGTH + length;
+    }
+  }
+
+  /** Reads an entry from a segment. */
+  private static final class EntryInputStream extends InputStream {
+    private final FileChannel channel;
+    private long position;
+    private int remaining;
+
+    EntryInputStream(FileChannel channel, long position, int length) {
+      this.channel = channel;
+      this.position = position;
+      this.remaining = length;
+    }
+
+    @Override public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (remaining == 0) return -1;
+      if (length > remaining) length = remaining;
+      ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+      readFully(channel, target, position);
+      position += length;
+      remaining -= length;
+      return length;
+    }
+
+    @Override public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+  }
+
+  /** A segment file. */
+  static final class Segment {
+    final long id;
+    final File file;
+    final RandomAccessFile raf;
+    final FileChannel channel;
+    /** Position of the first unread entry. Guarded by the queue's read lock. */
+    int readPosition;
+    /** Position after the last entry. Only changed while holding the queue's write lock. */
+    volatile int writePosition;
+    /** Whether the segment has been written to since it was last synced. */
+    volatile boolean dirty;
+
+    Segment(long id, File file) throws IOException {
+      this.id = id;
+      this.file = file;
+      this.raf = new RandomAccessFile(file, "rw");
+      this.channel = raf.getChannel();
+    }
+
+    void close() throws IOException {
+      raf.close();
+    }
+  }
+}
@@ -13,6 +13,16 @@ class Stats {
   private static final String STATS_THREAD_NAME = Utils.THREAD_PREFIX + "Stats";
   private static final int FLUSH = 1;
   private static final int INTEGRATION_OPERATION = 2;
+  private static final int DROP = 3;
+  private static final int QUEUE_RECOVERY = 4;
+  private static final int ENQUEUE = 5;
+  private static final int UPLOAD = 6;
+  private static final int DEAD_LETTER = 7;
+  private static final int FLUSH_DECISION = 8;
+  private static final int THROUGHPUT = 9;
+  static final int DECISION_UPLOAD = 0;
+  static final int DECISION_DEFER = 1;
+  static final int DECISION_HOLD = 2;
 
   final HandlerThread statsThread;
   final Handler handler;
@@ -21,6 +31,19 @@ class Stats {
   long flushEventCount; // number of events we flushed to server
   long integrationOperationCount; // number of events sent to integrations
   long integrationOperationTime; // total time to run integrations
+  long droppedEventCount; // number of events dropped because the queue was full
+  long queueRecoveryDuration; // time to check the disk queue when it was opened
+  long corruptEventCount; // number of damaged events discarded from the disk queue
+  long enqueueCount; // number of events written to the disk queue
+  long enqueueLatency; // total time from being handed to the dispatcher to reaching disk, in µs
+  long enqueueMaxLatency; // longest time an event took to reach disk, in µs
+  long uploadByteCount; // bytes of json uploaded, before compression
+  long uploadCompressedByteCount; // bytes sent to the server, after compression
+  long deadLetterCount; // number of events the server rejected, taken out of the queue
+  long flushUploadCount; // number of flushes the flush policy let upload
+  long flushDeferCount; // number of flushes the flush policy deferred
+  long flushHoldCount; // number of flushes the flush policy held back
+  long uploadThroughput; // average throughput of recent uploads, in bytes per second
 
   Stats() {
     statsThread = new HandlerThread(STATS_THREAD_NAME, THREAD_PRIORITY_BACKGROUND);
@@ -40,6 +63,36 @@ class Stats {
     handler.sendMessage(handler.obtainMessage(INTEGRATION_OPERATION, duration));
   }
 
+  void dispatchDrop(int count) {
+    handler.sendMessage(handler.obtainMessage(DROP, count, 0));
+  }
+
+  void dispatchEnqueue(int count, long latency, long maxLatency) {
+    handler.sendMessage(handler.obtainMessage(ENQUEUE, count, 0, new long[] {
+        latency, maxLatency
+    }));
+  }
+
+  void dispatchUpload(int byteCount, int compressedByteCount) {
+    handler.sendMessage(handler.obtainMessage(UPLOAD, byteCount, compressedByteCount));
+  }
+
+  void dispatchDeadLetter(int count) {
+    handler.sendMessage(handler.obtainMessage(DEAD_LETTER, count, 0));
+  }
+
+  void dispatchFlushDecision(int decision) {
+    handler.sendMessage(handler.obtainMessage(FLUSH_DECISION, decision, 0));
+  }
+
+  void dispatchThroughput(long throughput) {
+    handler.sendMessage(handler.obtainMessage(THROUGHPUT, throughput));
+  }
+
+  void dispatchQueueRecovery(long duration, int corruptCount) {
+    handler.sendMessage(handler.obtainMessage(QUEUE_RECOVERY, corruptCount, 0, duration));
+  }
+
   void performIntegrationOperation(long duration) {
     integrationOperationCount++;
     integrationOperationTime += duration;
@@ -50,6 +103,46 @@ class Stats {
     flushEventCount += count;
   }
 
+  void performDrop(int count) {
+    droppedEventCount += count;
+  }
+
+  void performEnqueue(int count, long latency, long maxLatency) {
+    enqueueCount += count;
+    enqueueLatency += latency;
+    enqueueMaxLatency = Math.max(enqueueMaxLatency, maxLatency);
+  }
+
+  void performUpload(int byteCount, int compressedByteCount) {
+    uploadByteCount += byteCount;
+    uploadCompressedByteCount += compressedByteCount;
+  }
+
+  void performDeadLetter(int count) {
+    deadLetterCount += count;
+  }
+
+  void performFlushDecision(int decision) {
+    switch (decision) {
+      case DECISION_UPLOAD:
+        flushUploadCount++;
+        break;
+      case DECISION_DEFER:
+        flushDeferCount++;
+        break;
+      case DECISION_HOLD:
+        flushHoldCount++;
+        break;
+      default:
+        throw new AssertionError("Unknown flush decision: " + decision);
+    }
+  }
+
+  void performQueueRecovery(long duration, int corruptCount) {
+    queueRecoveryDuration += duration;
+    corruptEventCount += corruptCount;
+  }
+
   private static class StatsHandler extends Handler {
     private final Stats stats;
 
@@ -66,6 +159,28 @@ class Stats {
         case INTEGRATION_OPERATION:
           stats.performIntegrationOperation((Long) msg.obj);
           break;
+        case DROP:
+          stats.performDrop(msg.arg1);
+          break;
+        case QUEUE_RECOVERY:
+          stats.performQueueRecovery((Long) msg.obj, msg.arg1);
+          break;
+        case ENQUEUE:
+          long[] latencies = (long[]) msg.obj;
+          stats.performEnqueue(msg.arg1, latencies[0], latencies[1]);
+          break;
+        case UPLOAD:
+          stats.performUpload(msg.arg1, msg.arg2);
+          break;
+        case DEAD_LETTER:
+          stats.performDeadLetter(msg.arg1);
+          break;
+        case FLUSH_DECISION:
+          stats.performFlushDecision(msg.arg1);
+          break;
+        case THROUGHPUT:
+          stats.uploadThroughput = (Long) msg.obj;
+          break;
         default:
           panic("Unhandled stats message." + msg.what);
       }
@@ -74,6 +189,9 @@ class Stats {
 
   StatsSnapshot createSnapshot() {
     return new StatsSnapshot(System.currentTimeMillis(), flushCount, flushEventCount,
-        integrationOperationCount, integrationOperationTime);
+        integrationOperationCount, integrationOperationTime, droppedEventCount,
+        queueRecoveryDuration, corruptEventCount, enqueueCount, enqueueLatency, enqueueMaxLatency,
+        uploadByteCount, uploadCompressedByteCount, deadLetterCount, flushUploadCount,
+        flushDeferCount, flushHoldCount, uploadThroughput);
   }
 }
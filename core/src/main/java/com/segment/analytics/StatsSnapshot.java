@@ -7,15 +7,47 @@ public class StatsSnapshot {
   public final long integrationOperationCount;
   public final long integrationOperationDuration;
   public final long integrationOperationAverageDuration;
+  public final long droppedEventCount;
+  public final long queueRecoveryDuration;
+  public final long corruptEventCount;
+  public final long enqueueCount;
+  public final long enqueueLatency;
+  public final long enqueueAverageLatency;
+  public final long enqueueMaxLatency;
+  public final long uploadByteCount;
+  public final long uploadCompressedByteCount;
+  public final long deadLetterCount;
+  public final long flushUploadCount;
+  public final long flushDeferCount;
+  public final long flushHoldCount;
+  public final long uploadThroughput;
 
   public StatsSnapshot(long timestamp, long flushCount, long flushEventCount,
-      long integrationOperationCount, long integrationOperationDuration) {
+      long integrationOperationCount, long integrationOperationDuration, long droppedEventCount,
+      long queueRecoveryDuration, long corruptEventCount, long enqueueCount, long enqueueLatency,
+      long enqueueMaxLatency, long uploadByteCount, long uploadCompressedByteCount,
+      long deadLetterCount, long flushUploadCount, long flushDeferCount, long flushHoldCount,
+      long uploadThroughput) {
     this.timestamp = timestamp;
     this.flushCount = flushCount;
     this.flushEventCount = flushEventCount;
     this.integrationOperationCount = integrationOperationCount;
     this.integrationOperationDuration = integrationOperationDuration;
     integrationOperationAverageDuration = integrationOperationDuration / integrationOperationCount;
+    this.droppedEventCount = droppedEventCount;
+    this.queueRecoveryDuration = queueRecoveryDuration;
+    this.corruptEventCount = corruptEventCount;
+    this.enqueueCount = enqueueCount;
+    this.enqueueLatency = enqueueLatency;
+    enqueueAverageLatency = enqueueCount == 0 ? 0 : enqueueLatency / enqueueCount;
+    this.enqueueMaxLatency = enqueueMaxLatency;
+    this.uploadByteCount = uploadByteCount;
+    this.uploadCompressedByteCount = uploadCompressedByteCount;
+    this.deadLetterCount = deadLetterCount;
+    this.flushUploadCount = flushUploadCount;
+    this.flushDeferCount = flushDeferCount;
+    this.flushHoldCount = flushHoldCount;
+    this.uploadThroughput = uploadThroughput;
   }
 
   @Override public String toString() {
@@ -36,6 +68,34 @@ public class StatsSnapshot {
         + integrationOperationDuration
         + ", integrationOperationAverageDuration="
         + integrationOperationAverageDuration
+        + ", droppedEventCount="
+        + droppedEventCount
+        + ", queueRecoveryDuration="
+        + queueRecoveryDuration
+        + ", corruptEventCount="
+        + corruptEventCount
+        + ", enqueueCount="
+        + enqueueCount
+        + ", enqueueLatency="
+        + enqueueLatency
+        + ", enqueueAverageLatency="
+        + enqueueAverageLatency
+        + ", enqueueMaxLatency="
+        + enqueueMaxLatency
+        + ", uploadByteCount="
+        + uploadByteCount
+        + ", uploadCompressedByteCount="
+        + uploadCompressedByteCount
+        + ", deadLetterCount="
+        + deadLetterCount
+        + ", flushUploadCount="
+        + flushUploadCount
+        + ", flushDeferCount="
+        + flushDeferCount
+        + ", flushHoldCount="
+        + flushHoldCount
+        + ", uploadThroughput="
+        + uploadThroughput
         +
         '}';
   }
@@ -0,0 +1,106 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Segment.io, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.segment.analytics;
+
+import java.security.SecureRandom;
+
+/**
+ * Generates version 7 style UUIDs: 48 bits of milliseconds since the epoch, a 12 bit counter that
+ * keeps ids generated in the same millisecond in order, and 62 random bits.
+ * <p/>
+ * Unlike {@link java.util.UUID#randomUUID()}, this only reads {@link SecureRandom} once to seed an
+ * xorshift64* generator, so generating an id doesn't contend on its lock. The random bits keep ids
+ * from different devices apart, the timestamp and counter keep ids from this one apart.
+ */
+final class TimeOrderedIdGenerator implements Analytics.MessageIdGenerator {
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  private static final int MAX_SEQUENCE = 0xfff;
+
+  private long lastMillis;
+  private int sequence;
+  private long state;
+
+  TimeOrderedIdGenerator() {
+    this(new SecureRandom().nextLong());
+  }
+
+  TimeOrderedIdGenerator(long seed) {
+    // xorshift64* is stuck at zero forever.
+    this.state = seed == 0 ? 0x9e3779b97f4a7c15L : seed;
+  }
+
+  @Override public String generateMessageId() {
+    long millis;
+    int sequence;
+    long random;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      if (now > lastMillis) {
+        lastMillis = now;
+        this.sequence = 0;
+      } else if (this.sequence == MAX_SEQUENCE) {
+        // Borrow the next millisecond rather than go backwards, ids stay ordered and unique.
+        lastMillis++;
+        this.sequence = 0;
+      } else {
+        this.sequence++;
+      }
+      millis = lastMillis;
+      sequence = this.sequence;
+      random = nextRandom();
+    }
+
+    long mostSignificant = (millis << 16) | 0x7000 | sequence;
+    long leastSignificant = (random >>> 2) | 0x8000000000000000L;
+    char[] chars = new char[36];
+    hex(mostSignificant >>> 32, chars, 0, 8);
+    chars[8] = '-';
+    hex(mostSignificant >>> 16, chars, 9, 4);
+    chars[13] = '-';
+    hex(mostSignificant, chars, 14, 4);
+    chars[18] = '-';
+    hex(leastSignificant >>> 48, chars, 19, 4);
+    chars[23] = '-';
+    hex(leastSignificant, chars, 24, 12);
+    return new String(chars);
+  }
+
+  private long nextRandom() {
+    long x = state;
+    x ^= x >>> 12;
+    x ^= x << 25;
+    x ^= x >>> 27;
+    state = x;
+    return x * 0x2545f4914f6cdd1dL;
+  }
+
+  /** Writes the low {@code digits} nibbles of {@code value} into {@code chars}. */
+  private static void hex(long value, char[] chars, int offset, int digits) {
+    for (int i = offset + digits - 1; i >= offset; i--) {
+      chars[i] = HEX_DIGITS[(int) (value & 0xf)];
+      value >>>= 4;
+    }
+  }
+}
@@ -38,9 +38,9 @@ class TrackPayload extends BasePayload {
    */
   private static final String PROPERTIES_KEY = "properties";
 
-  TrackPayload(String anonymousId, AnalyticsContext context, String userId, String event,
-      Properties properties, Options options) {
-    super(Type.track, anonymousId, context, userId, options);
+  TrackPayload(String messageId, long timestamp, String anonymousId, AnalyticsContext context,
+      String userId, String event, Properties properties, Options options) {
+    super(Type.track, messageId, timestamp, anonymousId, context, userId, options);
     put(EVENT_KEY, event);
     put(PROPERTIES_KEY, properties);
   }
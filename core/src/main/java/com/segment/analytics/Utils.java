@@ -25,19 +25,20 @@
 package com.segment.analytics;
 
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Log;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -58,21 +59,25 @@ import static android.provider.Settings.Secure.getString;
 
 final class Utils {
   static final String THREAD_PREFIX = "SegmentAnalytics-";
-  static final DateFormat ISO_8601_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
 
   private Utils() {
     throw new AssertionError("No instances");
   }
 
-  /** Returns the date as a string formatted with {@link ISO_8601_DATE_FORMAT}. */
+  /** Returns the date as a string formatted with {@link Iso8601}. */
   static String toISO8601Date(Date date) {
-    return ISO_8601_DATE_FORMAT.format(date);
+    return Iso8601.format(date.getTime());
   }
 
-  /** Returns the date parsed with {@link ISO_8601_DATE_FORMAT}. */
+  /** Returns the epoch milliseconds as a string formatted with {@link Iso8601}. */
+  static String toISO8601Date(long millis) {
+    return Iso8601.format(millis);
+  }
+
+  /** Returns the date parsed with {@link Iso8601}, or null if it isn't a valid timestamp. */
   static Date fromISO8601Date(String date) {
     try {
-      return ISO_8601_DATE_FORMAT.parse(date);
+      return new Date(Iso8601.parse(date));
     } catch (ParseException e) {
       return null;
     }
@@ -191,18 +196,55 @@ final class Utils {
     return context.getResources().getIdentifier(key, type, context.getPackageName());
   }
 
-  /**
-   * Returns true if the phone is connected to a network, or if we don't have the permission to
-   * find
-   * out. False otherwise.
-   */
-  static boolean isConnected(Context context) {
+  /** Returns how the device is connected, as far as uploading events is concerned. */
+  static FlushPolicy.Connection getConnection(Context context) {
     if (!hasPermission(context, ACCESS_NETWORK_STATE)) {
-      return true; // assume we have the connection and try to upload
+      return FlushPolicy.Connection.UNKNOWN;
     }
     ConnectivityManager cm = getSystemService(context, CONNECTIVITY_SERVICE);
-    NetworkInfo activeNetwork = cm.getActiveNetworkInfo();
-    return activeNetwork != null && activeNetwork.isConnectedOrConnecting();
+    NetworkInfo activeNetwork = cm == null ? null : cm.getActiveNetworkInfo();
+    if (activeNetwork == null || !activeNetwork.isConnectedOrConnecting()) {
+      return FlushPolicy.Connection.NONE;
+    }
+    switch (activeNetwork.getType()) {
+      case ConnectivityManager.TYPE_WIFI:
+      case ConnectivityManager.TYPE_ETHERNET:
+        return FlushPolicy.Connection.WIFI;
+      default:
+        if (activeNetwork.isRoaming()) return FlushPolicy.Connection.ROAMING;
+        switch (activeNetwork.getSubtype()) {
+          case TelephonyManager.NETWORK_TYPE_GPRS:
+          case TelephonyManager.NETWORK_TYPE_EDGE:
+          case TelephonyManager.NETWORK_TYPE_CDMA:
+          case TelephonyManager.NETWORK_TYPE_1xRTT:
+          case TelephonyManager.NETWORK_TYPE_IDEN:
+            return FlushPolicy.Connection.SLOW_CELLULAR;
+          default:
+            return FlushPolicy.Connection.CELLULAR;
+        }
+    }
+  }
+
+  /**
+   * Returns the state of the battery from the sticky {@link Intent#ACTION_BATTERY_CHANGED}
+   * broadcast, which can be read without registering a receiver. Null if it isn't available.
+   */
+  static Intent getBatteryStatus(Context context) {
+    return context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+  }
+
+  /** Returns the remaining battery in percent, or -1 if unknown. */
+  static int getBatteryLevel(Intent batteryStatus) {
+    if (batteryStatus == null) return -1;
+    int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+    int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+    if (level < 0 || scale <= 0) return -1;
+    return level * 100 / scale;
+  }
+
+  /** Returns true if the device is plugged in. */
+  static boolean isCharging(Intent batteryStatus) {
+    return batteryStatus != null && batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
   }
 
   /** Quit a thread safely if possible. */
@@ -233,6 +275,21 @@ final class Utils {
     }
   }
 
+  /** Returns OkHttp's client if it is on the class path, or the platform's otherwise. */
+  static Client createDefaultClient() {
+    if (isOnClassPath("com.squareup.okhttp.OkUrlFactory")) {
+      return OkHttpClientCreator.create();
+    }
+    return new UrlConnectionClient();
+  }
+
+  /** Keeps OkHttp's classes from being loaded unless they are on the class path. */
+  private static class OkHttpClientCreator {
+    static Client create() {
+      return new OkClient();
+    }
+  }
+
   /** Throw an error if not called on main thread. */
   static void checkMain() {
     if (!isMain()) {
@@ -253,6 +310,8 @@ final class Utils {
   final static String VERB_ENQUEUE = "enqueue";
   final static String VERB_FLUSH = "flush";
   final static String VERB_SKIP = "skip";
+  final static String VERB_DROP = "drop";
+  final static String VERB_SYNC = "sync";
   final static String VERB_INITIALIZE = "initialize";
 
   final static String TAG = "Segment";